@@ -22,6 +22,7 @@
  */
 
 #include "AnimationInfo.h"
+#include "PixelBlend.h"
 #include <math.h>
 #ifndef M_PI
 #define M_PI 3.14159265358979323846
@@ -45,6 +46,8 @@ static bool is_inv_alpha_lut_initialized = false;
 static Uint32 inv_alpha_lut[256];
 #endif
 
+unsigned int AnimationInfo::last_image_serial = 0;
+
 AnimationInfo::AnimationInfo()
 {
     image_name = NULL;
@@ -129,6 +132,7 @@ AnimationInfo& AnimationInfo::operator =(const AnimationInfo &anim)
             memcpy(alpha_buf, anim.alpha_buf, image_surface->w*image_surface->h);
 #endif
         }
+        updateImageSerial();
     }
 
     return *this;
@@ -181,6 +185,7 @@ void AnimationInfo::deleteSurface(bool delete_surface_name)
     SDL_mutexV(mutex);
     if (alpha_buf) delete[] alpha_buf;
     alpha_buf = NULL;
+    updateImageSerial();
 }
 
 void AnimationInfo::remove()
@@ -432,26 +437,22 @@ void AnimationInfo::blendOnSurface( SDL_Surface *dst_surface, int dst_x, int dst
     ONSBuf *dst_buffer = (ONSBuf *)dst_surface->pixels   + dst_surface->w * dst_rect.y + dst_rect.x;
 #if defined(BPP16)    
     unsigned char *alphap = alpha_buf + image_surface->w * src_rect.y + image_surface->w*current_cell/num_of_cells + src_rect.x;
-#else
-#if SDL_BYTEORDER == SDL_LIL_ENDIAN
-    unsigned char *alphap = (unsigned char *)src_buffer + 3;
-#else
-    unsigned char *alphap = (unsigned char *)src_buffer;
-#endif
-#endif
-
     Uint32 mask2;
+#endif
     
     for (int i=0 ; i<dst_rect.h ; i++){
+#if defined(BPP16)
         for (int j=dst_rect.w ; j!=0 ; j--, src_buffer++, dst_buffer++){
             BLEND_PIXEL();
         }
-        src_buffer += pitch - dst_rect.w;
-#if defined(BPP16)
         alphap += image_surface->w - dst_rect.w;
 #else
-        alphap += (image_surface->w - dst_rect.w)*4;
+        // the alpha of each pixel is in its top byte, blendRowAlpha() reads it from there
+        blendRowAlpha( dst_buffer, src_buffer, alpha, dst_rect.w );
+        src_buffer += dst_rect.w;
+        dst_buffer += dst_rect.w;
 #endif        
+        src_buffer += pitch - dst_rect.w;
         dst_buffer += dst_surface->w  - dst_rect.w;
     }
 
@@ -613,6 +614,7 @@ void AnimationInfo::blendText( SDL_Surface *surface, int dst_x, int dst_y, SDL_C
                                SDL_Rect *clip, bool rotate_flag )
 {
     if (image_surface == NULL || surface == NULL) return;
+    updateImageSerial();
     
     SDL_Rect dst_rect;
     dst_rect.x = dst_x;
@@ -777,6 +779,7 @@ SDL_Surface *AnimationInfo::alloc32bitSurface( int w, int h, Uint32 texture_form
 
 void AnimationInfo::allocImage( int w, int h, Uint32 texture_format )
 {
+    updateImageSerial();
     if (!image_surface ||
         image_surface->w != w ||
         image_surface->h != h){
@@ -804,6 +807,7 @@ void AnimationInfo::allocImage( int w, int h, Uint32 texture_format )
 void AnimationInfo::copySurface( SDL_Surface *surface, SDL_Rect *src_rect, SDL_Rect *dst_rect )
 {
     if (!image_surface || !surface) return;
+    updateImageSerial();
     
     SDL_Rect _dst_rect = {0, 0};
     if (dst_rect) _dst_rect = *dst_rect;
@@ -847,6 +851,7 @@ void AnimationInfo::copySurface( SDL_Surface *surface, SDL_Rect *src_rect, SDL_R
 void AnimationInfo::fill( Uint8 r, Uint8 g, Uint8 b, Uint8 a )
 {
     if (!image_surface) return;
+    updateImageSerial();
     
     SDL_LockSurface( image_surface );
 
@@ -997,6 +1002,7 @@ SDL_Surface *AnimationInfo::setupImageAlpha( SDL_Surface *surface, SDL_Surface *
 void AnimationInfo::setImage( SDL_Surface *surface, Uint32 texture_format )
 {
     if (surface == NULL) return;
+    updateImageSerial();
 
     this->texture_format = texture_format;
 #if !defined(BPP16)    
@@ -1055,6 +1061,7 @@ unsigned char AnimationInfo::getAlpha(int x, int y)
 
 void AnimationInfo::convertFromYUV(SDL_Overlay *src)
 {
+    updateImageSerial();
     SDL_mutexP(mutex);
     if (!image_surface){
         SDL_mutexV(mutex);
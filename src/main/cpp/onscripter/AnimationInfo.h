@@ -88,6 +88,7 @@ public:
     unsigned char *alpha_buf;
     Uint32 texture_format;
     SDL_mutex *mutex;
+    unsigned int image_serial; // changes with the pixels of image_surface, never reused
         
     /* Variables for extended sprite (lsp2, drawsp2, etc.) */
     int scale_x, scale_y, rot;
@@ -155,6 +156,11 @@ public:
     unsigned char getAlpha(int x, int y);
 
     void convertFromYUV(SDL_Overlay *src);
+
+    void updateImageSerial(){ image_serial = ++last_image_serial; };
+
+private:
+    static unsigned int last_image_serial;
 };
 
 #endif // __ANIMATION_INFO_H__
@@ -0,0 +1,249 @@
+/* -*- C++ -*-
+ *
+ *  ArchiveStream.cpp - Incremental reader of a single archive entry
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "ArchiveStream.h"
+#include "BaseReader.h"
+#include <string.h>
+
+#ifndef SEEK_CUR
+#define SEEK_CUR 1
+#endif
+
+#define READ_LENGTH 4096
+
+// same parameters as DirectReader::decodeLZSS()
+#define EI 8
+#define EJ 4
+#define P   1
+#define N (1 << EI)
+#define F ((1 << EJ) + P)
+
+ArchiveStream::ArchiveStream( FILE *fp, size_t offset, size_t length, size_t original_length, int compression_type, const unsigned char *key_table )
+{
+    int i;
+
+    this->fp = fp;
+    this->offset = offset;
+    this->length = length;
+    this->original_length = original_length;
+    this->compression_type = compression_type;
+
+    if (key_table){
+        key_table_flag = true;
+        for (i=0 ; i<256 ; i++) this->key_table[i] = key_table[i];
+    }
+    else{
+        key_table_flag = false;
+        for (i=0 ; i<256 ; i++) this->key_table[i] = i;
+    }
+
+    read_buf = new unsigned char[READ_LENGTH];
+    strm_flag = false;
+    window = NULL;
+    if (compression_type == BaseReader::LZSS_COMPRESSION)
+        window = new unsigned char[N];
+
+    rewind();
+}
+
+ArchiveStream::~ArchiveStream()
+{
+    if (strm_flag) BZ2_bzDecompressEnd( &strm );
+    if (fp) fclose( fp );
+    delete[] read_buf;
+    if (window) delete[] window;
+}
+
+bool ArchiveStream::rewind()
+{
+    position = 0;
+    src_left = length;
+    read_len = read_count = 0;
+    fseek( fp, offset, SEEK_SET );
+
+    if (compression_type == BaseReader::NBZ_COMPRESSION){
+        if (strm_flag) BZ2_bzDecompressEnd( &strm );
+        strm_flag = false;
+
+        // the decompressed length in front of the bzip2 data is already known
+        unsigned char header[4];
+        if (readStored( header, 4 ) != 4) return false;
+
+        memset( &strm, 0, sizeof(strm) );
+        if (BZ2_bzDecompressInit( &strm, 0, 0 ) != BZ_OK) return false;
+        strm_flag = true;
+    }
+    else if (compression_type == BaseReader::LZSS_COMPRESSION){
+        memset( window, 0, N-F );
+        window_pos = N - F;
+        getbit_mask = 0;
+        copy_left = 0;
+    }
+
+    return true;
+}
+
+size_t ArchiveStream::fillBuffer()
+{
+    if (read_count == read_len && src_left > 0){
+        size_t len = src_left;
+        if (len > READ_LENGTH) len = READ_LENGTH;
+        read_len = fread( read_buf, 1, len, fp );
+        read_count = 0;
+        src_left -= len;
+        if (read_len < len) src_left = 0;
+        // NBZ data is not scrambled, see DirectReader::decodeNBZ()
+        if (key_table_flag && compression_type != BaseReader::NBZ_COMPRESSION)
+            for (size_t i=0 ; i<read_len ; i++) read_buf[i] = key_table[read_buf[i]];
+    }
+
+    return read_len - read_count;
+}
+
+size_t ArchiveStream::read( unsigned char *buf, size_t len )
+{
+    if (len > original_length - position) len = original_length - position;
+    if (len == 0) return 0;
+
+    size_t ret;
+    if      (compression_type == BaseReader::NBZ_COMPRESSION)
+        ret = readNBZ( buf, len );
+    else if (compression_type == BaseReader::LZSS_COMPRESSION)
+        ret = readLZSS( buf, len );
+    else
+        ret = readStored( buf, len );
+
+    position += ret;
+    return ret;
+}
+
+long ArchiveStream::seek( long offset, int whence )
+{
+    long pos = offset;
+    if      (whence == SEEK_CUR) pos += position;
+    else if (whence == SEEK_END) pos += original_length;
+    if (pos < 0) return -1;
+    if ((size_t)pos > original_length) pos = original_length;
+
+    if (compression_type != BaseReader::NBZ_COMPRESSION &&
+        compression_type != BaseReader::LZSS_COMPRESSION){
+        fseek( fp, this->offset + pos, SEEK_SET );
+        src_left = length - pos;
+        read_len = read_count = 0;
+        position = pos;
+        return pos;
+    }
+
+    // compressed data can only be decoded forward, seeking back starts over
+    if ((size_t)pos < position && !rewind()) return -1;
+
+    unsigned char skip_buf[READ_LENGTH];
+    while (position < (size_t)pos){
+        size_t len = pos - position;
+        if (len > READ_LENGTH) len = READ_LENGTH;
+        if (read( skip_buf, len ) == 0) return -1;
+    }
+
+    return position;
+}
+
+size_t ArchiveStream::readStored( unsigned char *buf, size_t len )
+{
+    size_t count = 0;
+
+    while (count < len){
+        size_t c = fillBuffer();
+        if (c == 0) break;
+        if (c > len - count) c = len - count;
+        memcpy( buf + count, read_buf + read_count, c );
+        read_count += c;
+        count += c;
+    }
+
+    return count;
+}
+
+size_t ArchiveStream::readNBZ( unsigned char *buf, size_t len )
+{
+    if (!strm_flag) return 0;
+
+    strm.next_out  = (char*)buf;
+    strm.avail_out = len;
+
+    while (strm.avail_out > 0){
+        if (strm.avail_in == 0){
+            size_t c = fillBuffer();
+            if (c == 0) break;
+            strm.next_in  = (char*)read_buf + read_count;
+            strm.avail_in = c;
+            read_count += c;
+        }
+        if (BZ2_bzDecompress( &strm ) != BZ_OK) break;
+    }
+
+    return len - strm.avail_out;
+}
+
+size_t ArchiveStream::readLZSS( unsigned char *buf, size_t len )
+{
+    size_t count = 0;
+    int i, j, c;
+
+    while (count < len){
+        if (copy_left > 0){
+            c = window[copy_pos++ & (N - 1)];
+            copy_left--;
+        }
+        else if (getbit( 1 )){
+            if ((c = getbit( 8 )) == EOF) break;
+        }
+        else{
+            if ((i = getbit( EI )) == EOF) break;
+            if ((j = getbit( EJ )) == EOF) break;
+            copy_pos = i;
+            copy_left = j + 2;
+            continue;
+        }
+        buf[ count++ ] = c;
+        window[window_pos++] = c;  window_pos &= (N - 1);
+    }
+
+    return count;
+}
+
+int ArchiveStream::getbit( int n )
+{
+    int i, x = 0;
+
+    for ( i=0 ; i<n ; i++ ){
+        if ( getbit_mask == 0 ){
+            if (fillBuffer() == 0) return EOF;
+            getbit_buf = read_buf[read_count++];
+            getbit_mask = 128;
+        }
+        x <<= 1;
+        if ( getbit_buf & getbit_mask ) x++;
+        getbit_mask >>= 1;
+    }
+    return x;
+}
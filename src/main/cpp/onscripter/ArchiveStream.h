@@ -0,0 +1,77 @@
+/* -*- C++ -*-
+ *
+ *  ArchiveStream.h - Incremental reader of a single archive entry
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __ARCHIVE_STREAM_H__
+#define __ARCHIVE_STREAM_H__
+
+#include <stdio.h>
+#include <bzlib.h>
+
+// Decodes a stored, NBZ or LZSS entry while it is read. The stream has a file
+// handle and decoder state of its own, so it stays valid after the reader that
+// opened it is closed and may be read from another thread.
+class ArchiveStream
+{
+public:
+    // takes over fp, offset and length give the entry as it is stored
+    ArchiveStream( FILE *fp, size_t offset, size_t length, size_t original_length, int compression_type, const unsigned char *key_table=NULL );
+    ~ArchiveStream();
+
+    size_t getLength(){ return original_length; };
+    size_t tell(){ return position; };
+
+    size_t read( unsigned char *buf, size_t len );
+    // whence is one of SEEK_SET, SEEK_CUR and SEEK_END, returns the new position or -1
+    long seek( long offset, int whence );
+
+private:
+    FILE *fp;
+    size_t offset;
+    size_t length;
+    size_t original_length;
+    int compression_type;
+    unsigned char key_table[256];
+    bool key_table_flag;
+
+    size_t position;      // decoded bytes handed out so far
+    size_t src_left;      // stored bytes not read from fp yet
+    unsigned char *read_buf;
+    size_t read_len, read_count;
+
+    bz_stream strm;
+    bool strm_flag;
+
+    unsigned char *window;
+    int window_pos;
+    int getbit_mask, getbit_buf;
+    int copy_pos, copy_left;
+
+    bool rewind();
+    size_t fillBuffer();
+    size_t readStored( unsigned char *buf, size_t len );
+    size_t readNBZ( unsigned char *buf, size_t len );
+    size_t readLZSS( unsigned char *buf, size_t len );
+    int getbit( int n );
+};
+
+#endif // __ARCHIVE_STREAM_H__
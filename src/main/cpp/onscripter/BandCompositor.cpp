@@ -0,0 +1,192 @@
+/* -*- C++ -*-
+ *
+ *  BandCompositor.cpp - Runs the layer compositing on horizontal bands in parallel
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "BandCompositor.h"
+#include <stdio.h>
+
+BandCompositor::BandCompositor()
+{
+    num_of_threads = 1;
+    for ( int i=0 ; i<MAX_COMPOSITE_THREADS ; i++ ) thread[i] = NULL;
+    mutex = NULL;
+    start_cond = done_cond = NULL;
+    quit_flag = false;
+    generation = 0;
+    func = NULL;
+    data = NULL;
+    num_of_bands = next_band = bands_left = 0;
+}
+
+BandCompositor::~BandCompositor()
+{
+    stop();
+}
+
+void BandCompositor::start( int threads )
+{
+    if ( num_of_threads > 1 ) return;
+
+    if ( threads <= 0 ) threads = countBigCores();
+    if ( threads > MAX_COMPOSITE_THREADS ) threads = MAX_COMPOSITE_THREADS;
+    if ( threads <= 1 ) return;
+
+    mutex = SDL_CreateMutex();
+    start_cond = SDL_CreateCond();
+    done_cond = SDL_CreateCond();
+    quit_flag = false;
+
+    // thread[0] stays NULL, its bands are run by the caller of run()
+    for ( int i=1 ; i<threads ; i++ ){
+        thread[i] = SDL_CreateThread( threadMain, this );
+        if ( thread[i] == NULL ) break;
+        num_of_threads = i+1;
+    }
+
+    if ( num_of_threads <= 1 ) stop();
+}
+
+void BandCompositor::stop()
+{
+    if ( mutex == NULL ) return;
+
+    SDL_mutexP( mutex );
+    quit_flag = true;
+    SDL_CondBroadcast( start_cond );
+    SDL_mutexV( mutex );
+
+    for ( int i=1 ; i<MAX_COMPOSITE_THREADS ; i++ ){
+        if ( thread[i] ) SDL_WaitThread( thread[i], NULL );
+        thread[i] = NULL;
+    }
+
+    SDL_DestroyCond( done_cond );
+    SDL_DestroyCond( start_cond );
+    SDL_DestroyMutex( mutex );
+    mutex = NULL;
+    start_cond = done_cond = NULL;
+    num_of_threads = 1;
+}
+
+void BandCompositor::run( BandFunc func, void *data, SDL_Rect &rect )
+{
+    int num = rect.h / MIN_COMPOSITE_BAND_HEIGHT;
+    if ( num > num_of_threads ) num = num_of_threads;
+    if ( num <= 1 ){
+        func( data, rect );
+        return;
+    }
+
+    SDL_mutexP( mutex );
+    this->func = func;
+    this->data = data;
+    for ( int i=0 ; i<num ; i++ ){
+        band[i].x = rect.x;
+        band[i].w = rect.w;
+        band[i].y = rect.y + rect.h * i / num;
+        band[i].h = rect.y + rect.h * (i+1) / num - band[i].y;
+    }
+    num_of_bands = bands_left = num;
+    next_band = 0;
+    generation++;
+    SDL_CondBroadcast( start_cond );
+    SDL_mutexV( mutex );
+
+    while ( runBand() );
+
+    SDL_mutexP( mutex );
+    while ( bands_left > 0 )
+        SDL_CondWait( done_cond, mutex );
+    SDL_mutexV( mutex );
+}
+
+bool BandCompositor::runBand()
+{
+    SDL_mutexP( mutex );
+    if ( next_band >= num_of_bands ){
+        SDL_mutexV( mutex );
+        return false;
+    }
+    int no = next_band++;
+    SDL_mutexV( mutex );
+
+    func( data, band[no] );
+
+    SDL_mutexP( mutex );
+    if ( --bands_left == 0 ) SDL_CondSignal( done_cond );
+    SDL_mutexV( mutex );
+
+    return true;
+}
+
+int BandCompositor::threadMain( void *data )
+{
+    BandCompositor *bc = (BandCompositor*)data;
+
+    SDL_mutexP( bc->mutex );
+    unsigned int done_generation = bc->generation;
+    while ( 1 ){
+        while ( !bc->quit_flag && bc->generation == done_generation )
+            SDL_CondWait( bc->start_cond, bc->mutex );
+        if ( bc->quit_flag ) break;
+        done_generation = bc->generation;
+
+        SDL_mutexV( bc->mutex );
+        while ( bc->runBand() );
+        SDL_mutexP( bc->mutex );
+    }
+    SDL_mutexV( bc->mutex );
+
+    return 0;
+}
+
+int BandCompositor::countBigCores()
+{
+    int num = SDL_GetCPUCount();
+
+#if defined(LINUX)
+    // The little cores of a big.LITTLE system report the lowest maximum
+    // frequency. Cores that are offline at the moment are counted as well.
+    long freq[32], min_freq = 0, max_freq = 0;
+    int num_of_freqs = 0;
+    for ( int i=0 ; i<32 ; i++ ){
+        char path[64];
+        sprintf( path, "/sys/devices/system/cpu/cpu%d/cpufreq/cpuinfo_max_freq", i );
+        FILE *fp = fopen( path, "r" );
+        if ( fp == NULL ) continue;
+        if ( fscanf( fp, "%ld", &freq[num_of_freqs] ) == 1 ){
+            if ( num_of_freqs == 0 || freq[num_of_freqs] < min_freq ) min_freq = freq[num_of_freqs];
+            if ( num_of_freqs == 0 || freq[num_of_freqs] > max_freq ) max_freq = freq[num_of_freqs];
+            num_of_freqs++;
+        }
+        fclose( fp );
+    }
+
+    if ( num_of_freqs > 0 && min_freq < max_freq ){
+        num = 0;
+        for ( int i=0 ; i<num_of_freqs ; i++ )
+            if ( freq[i] > min_freq ) num++;
+    }
+#endif
+
+    return num;
+}
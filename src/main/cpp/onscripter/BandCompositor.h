@@ -0,0 +1,70 @@
+/* -*- C++ -*-
+ *
+ *  BandCompositor.h - Runs the layer compositing on horizontal bands in parallel
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __BAND_COMPOSITOR_H__
+#define __BAND_COMPOSITOR_H__
+
+#include <SDL.h>
+
+#define MAX_COMPOSITE_THREADS 8
+#define MIN_COMPOSITE_BAND_HEIGHT 32
+
+// Splits a rectangle into horizontal bands and calls the band function once
+// for each of them, the calling thread takes bands as well and returns when
+// all of them are done. A band function must not write outside its band.
+class BandCompositor
+{
+public:
+    typedef void (*BandFunc)( void *data, SDL_Rect &band );
+
+    BandCompositor();
+    ~BandCompositor();
+
+    // threads counts the calling thread, 0 uses one thread per big core
+    void start( int threads=0 );
+    void stop();
+    bool isEnabled(){ return num_of_threads > 1; };
+    int getNumThreads(){ return num_of_threads; };
+
+    void run( BandFunc func, void *data, SDL_Rect &rect );
+
+private:
+    int num_of_threads;
+    SDL_Thread *thread[MAX_COMPOSITE_THREADS];
+    SDL_mutex *mutex;
+    SDL_cond *start_cond;
+    SDL_cond *done_cond;
+    bool quit_flag;
+    unsigned int generation;
+
+    BandFunc func;
+    void *data;
+    SDL_Rect band[MAX_COMPOSITE_THREADS];
+    int num_of_bands, next_band, bands_left;
+
+    static int countBigCores();
+    static int threadMain( void *data );
+    bool runBand();
+};
+
+#endif // __BAND_COMPOSITOR_H__
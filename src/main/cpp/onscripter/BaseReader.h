@@ -25,10 +25,16 @@
 #define __BASE_READER_H__
 
 #include <stdio.h>
+#if defined(LINUX) || defined(MACOSX)
+#define ARCHIVE_MMAP
+#include <sys/mman.h>
+#endif
 #ifdef ANDROID
 #include "ONScripter_log.h"
 #endif
 
+class ArchiveStream;
+
 #ifndef SEEK_END
 #define SEEK_END 2
 #endif
@@ -81,6 +87,8 @@ struct BaseReader
         FileInfo *fi_list;
         unsigned int num_of_files;
         unsigned long base_offset;
+        unsigned char *map_data; // whole archive when it is memory mapped
+        size_t map_length;
 
         ArchiveInfo(){
             next = NULL;
@@ -89,8 +97,13 @@ struct BaseReader
             file_name = NULL;
             fi_list = NULL;
             num_of_files = 0;
+            map_data = NULL;
+            map_length = 0;
         }
         ~ArchiveInfo(){
+#if defined(ARCHIVE_MMAP)
+            if (map_data)    munmap( map_data, map_length );
+#endif
             if (file_handle) fclose( file_handle );
             if (file_name)   delete[] file_name;
             if (fi_list)     delete[] fi_list;
@@ -105,10 +118,23 @@ struct BaseReader
     virtual const char *getArchiveName() const = 0;
     virtual int  getNumFiles() = 0;
     virtual void registerCompressionType( const char *ext, int type ) = 0;
+    virtual void enableMemoryMap() = 0;
+    // file to keep the parsed archive headers in between launches
+    virtual void enableHeaderCache( const char *path ) = 0;
 
     virtual FileInfo getFileByIndex( unsigned int index ) = 0;
     virtual size_t getFileLength( const char *file_name ) = 0;
     virtual size_t getFile( const char *file_name, unsigned char *buffer, int *location=NULL ) = 0;
+    // stored entry of a memory mapped archive, NULL when it has to be read with getFile()
+    virtual const unsigned char *getMappedFile( const char *file_name, size_t *length, int *location=NULL ) = 0;
+    // entry decoded while it is read, NULL when it has to be read with getFile()
+    virtual ArchiveStream *openStream( const char *file_name, int *location=NULL ) = 0;
+
+    // copies decoded ahead of use by a prefetcher, getFile() hands out each of them once
+    virtual bool isResidentFile( const char *file_name ) = 0;
+    virtual void addResidentFile( const char *file_name, unsigned char *buffer, size_t length, int location, size_t budget ) = 0;
+    // entry the prefetcher is reading outside the reader, its copy is dropped if the script reads it first
+    virtual void setPendingFile( const char *file_name ) = 0;
 };
 
 #endif // __BASE_READER_H__
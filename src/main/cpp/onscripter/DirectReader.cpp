@@ -22,10 +22,14 @@
  */
 
 #include "DirectReader.h"
+#include "ArchiveStream.h"
 #include <bzlib.h>
 #if !defined(WIN32) && !defined(MACOS9) && !defined(PSP) && !defined(__OS2__)
 #include <dirent.h>
 #endif
+#if defined(ARCHIVE_MMAP)
+#include <sys/stat.h>
+#endif
 
 #define IS_TWO_BYTE(x) \
         ( ((x) & 0xe0) == 0xe0 || ((x) & 0xe0) == 0x80 )
@@ -54,6 +58,12 @@ DirectReader::DirectReader( const char *path, const unsigned char *key_table, bo
     file_sub_path = NULL;
     file_path_len = 0;
     try_parent_flag = try_parent;
+    mmap_flag = false;
+    header_cache_path = NULL;
+    resident_file = NULL;
+    resident_size = 0;
+    pending_file = NULL;
+    pending_taken_flag = false;
 
     capital_name = new char[MAX_FILE_NAME_LENGTH*2+1];
     capital_name_tmp = new char[MAX_FILE_NAME_LENGTH*3+1];
@@ -78,6 +88,7 @@ DirectReader::DirectReader( const char *path, const unsigned char *key_table, bo
     }
 
     read_buf = new unsigned char[READ_LENGTH];
+    getbit_src = read_buf;
     decomp_buffer = new unsigned char[N*2];
     decomp_buffer_len = N*2;
 
@@ -93,10 +104,21 @@ DirectReader::~DirectReader()
     if (file_full_path) delete[] file_full_path;
     if (file_sub_path)  delete[] file_sub_path;
 
+    if (header_cache_path) delete[] header_cache_path;
+
     delete[] capital_name;
     delete[] capital_name_tmp;
     delete[] read_buf;
     delete[] decomp_buffer;
+
+    while ( resident_file ){
+        ResidentFile *rf = resident_file;
+        resident_file = rf->next;
+        delete[] rf->name;
+        delete[] rf->buffer;
+        delete rf;
+    }
+    if (pending_file) delete[] pending_file;
     
     last_registered_compression_type = root_registered_compression_type.next;
     while ( last_registered_compression_type ){
@@ -200,6 +222,22 @@ unsigned long DirectReader::readLong( FILE *fp )
     return ret;
 }
 
+unsigned short DirectReader::readShort( const unsigned char *data )
+{
+    return key_table[data[0]] << 8 | key_table[data[1]];
+}
+
+unsigned long DirectReader::readLong( const unsigned char *data )
+{
+    unsigned long ret;
+
+    ret = key_table[data[0]];
+    ret = ret << 8 | key_table[data[1]];
+    ret = ret << 8 | key_table[data[2]];
+    ret = ret << 8 | key_table[data[3]];
+    return ret;
+}
+
 void DirectReader::writeChar( FILE *fp, unsigned char ch )
 {
     fwrite( &ch, 1, 1, fp );
@@ -255,6 +293,39 @@ int DirectReader::getNumFiles()
 {
     return 0;
 }
+
+void DirectReader::enableMemoryMap()
+{
+    mmap_flag = true;
+}
+
+void DirectReader::enableHeaderCache( const char *path )
+{
+    if ( header_cache_path ) delete[] header_cache_path;
+    header_cache_path = new char[ strlen(path) + 1 ];
+    strcpy( header_cache_path, path );
+}
+
+void DirectReader::mapArchive( ArchiveInfo *ai )
+{
+#if defined(ARCHIVE_MMAP)
+    if ( !mmap_flag ) return;
+
+    // a large archive may not fit in a 32bit address space, stdio is used for it then
+    struct stat st;
+    if ( fstat( fileno( ai->file_handle ), &st ) != 0 || st.st_size <= 0 ||
+         (off_t)(size_t)st.st_size != st.st_size ) return;
+
+    void *data = mmap( NULL, (size_t)st.st_size, PROT_READ, MAP_SHARED, fileno( ai->file_handle ), 0 );
+    if ( data == MAP_FAILED ){
+        logw( stderr, " *** can't map archive [%s], reading it with stdio ***\n", ai->file_name );
+        return;
+    }
+
+    ai->map_data = (unsigned char*)data;
+    ai->map_length = (size_t)st.st_size;
+#endif
+}
     
 void DirectReader::registerCompressionType( const char *ext, int type )
 {
@@ -268,14 +339,16 @@ int DirectReader::getRegisteredCompressionType( const char *file_name )
     while( *ext_buf != '.' && ext_buf != file_name ) ext_buf--;
     ext_buf++;
     
-    strcpy( capital_name, ext_buf );
-    for ( unsigned int i=0 ; i<strlen(ext_buf)+1 ; i++ )
-        if ( capital_name[i] >= 'a' && capital_name[i] <= 'z' )
-            capital_name[i] += 'A' - 'a';
-    
+    // no shared buffer here, archive headers may be read by several threads
     RegisteredCompressionType *reg = root_registered_compression_type.next;
     while (reg){
-        if ( !strcmp( capital_name, reg->ext ) ) return reg->type;
+        unsigned int i;
+        for ( i=0 ; ext_buf[i] ; i++ ){
+            char ch = ext_buf[i];
+            if ( ch >= 'a' && ch <= 'z' ) ch += 'A' - 'a';
+            if ( ch != reg->ext[i] ) break;
+        }
+        if ( ext_buf[i] == '\0' && reg->ext[i] == '\0' ) return reg->type;
 
         reg = reg->next;
     }
@@ -338,6 +411,9 @@ FILE *DirectReader::getFileHandle( const char *file_name, int &compression_type,
 
 size_t DirectReader::getFileLength( const char *file_name )
 {
+    ResidentFile *rf = findResidentFile( file_name );
+    if ( rf ) return rf->length;
+
     int compression_type;
     size_t len;
     FILE *fp = getFileHandle( file_name, compression_type, &len );
@@ -347,8 +423,59 @@ size_t DirectReader::getFileLength( const char *file_name )
     return len;
 }
 
+const unsigned char *DirectReader::getMappedFile( const char *file_name, size_t *length, int *location )
+{
+    return NULL;
+}
+
+ArchiveStream *DirectReader::openStream( const char *file_name, int *location )
+{
+    if ( findResidentFile( file_name ) ) return NULL;
+    takePendingFile( file_name );
+
+    int compression_type;
+    size_t len;
+    FILE *fp = getFileHandle( file_name, compression_type, &len );
+    if ( fp == NULL ) return NULL;
+
+    // decodeSPB() fills the image bottom-up, so SPB files are read whole
+    if ( compression_type & SPB_COMPRESSION ){
+        fclose( fp );
+        return NULL;
+    }
+
+    size_t length = len;
+    if ( compression_type & NBZ_COMPRESSION ){
+        compression_type = NBZ_COMPRESSION;
+        fseek( fp, 0, SEEK_END );
+        length = ftell( fp );
+    }
+    else{
+        compression_type = NO_COMPRESSION;
+    }
+    if ( location ) *location = ARCHIVE_TYPE_NONE;
+
+    return new ArchiveStream( fp, 0, length, len, compression_type );
+}
+
 size_t DirectReader::getFile( const char *file_name, unsigned char *buffer, int *location )
 {
+    ResidentFile **link;
+    ResidentFile *rf = findResidentFile( file_name, &link );
+    if ( rf ){
+        size_t length = rf->length;
+        memcpy( buffer, rf->buffer, length );
+        if ( location ) *location = rf->location;
+
+        *link = rf->next;
+        resident_size -= length;
+        delete[] rf->name;
+        delete[] rf->buffer;
+        delete rf;
+        return length;
+    }
+    takePendingFile( file_name );
+
     int compression_type;
     size_t len, c, total = 0;
     FILE *fp = getFileHandle( file_name, compression_type, &len );
@@ -373,6 +500,94 @@ size_t DirectReader::getFile( const char *file_name, unsigned char *buffer, int
     return total;
 }
 
+DirectReader::ResidentFile *DirectReader::findResidentFile( const char *file_name, ResidentFile ***link )
+{
+    ResidentFile **prev = &resident_file;
+    for ( ; *prev ; prev = &(*prev)->next ){
+        if ( isSameFileName( (*prev)->name, file_name ) ){
+            if ( link ) *link = prev;
+            return *prev;
+        }
+    }
+
+    return NULL;
+}
+
+bool DirectReader::isSameFileName( const char *name1, const char *name2 )
+{
+    for ( ; *name1 && *name2 ; name1++, name2++ ){
+        char c1 = *name1, c2 = *name2;
+        if ( 'a' <= c1 && c1 <= 'z' ) c1 += 'A' - 'a';
+        else if ( c1 == '/' ) c1 = '\\';
+        if ( 'a' <= c2 && c2 <= 'z' ) c2 += 'A' - 'a';
+        else if ( c2 == '/' ) c2 = '\\';
+        if ( c1 != c2 ) break;
+    }
+
+    return *name1 == *name2;
+}
+
+bool DirectReader::isResidentFile( const char *file_name )
+{
+    return findResidentFile( file_name ) != NULL;
+}
+
+void DirectReader::addResidentFile( const char *file_name, unsigned char *buffer, size_t length, int location, size_t budget )
+{
+    bool taken_flag = false;
+    if ( pending_file && isSameFileName( pending_file, file_name ) ){
+        taken_flag = pending_taken_flag;
+        setPendingFile( NULL );
+    }
+
+    // a copy of an entry the script has already read would only push useful ones out
+    if ( taken_flag || length > budget || findResidentFile( file_name ) ){
+        delete[] buffer;
+        return;
+    }
+
+    // drop the oldest copies, they were most likely skipped over by the script
+    while ( resident_file && resident_size + length > budget ){
+        ResidentFile *rf = resident_file;
+        resident_file = rf->next;
+        resident_size -= rf->length;
+        delete[] rf->name;
+        delete[] rf->buffer;
+        delete rf;
+    }
+
+    ResidentFile *rf = new ResidentFile();
+    rf->next = NULL;
+    rf->name = new char[ strlen(file_name) + 1 ];
+    strcpy( rf->name, file_name );
+    rf->buffer = buffer;
+    rf->length = length;
+    rf->location = location;
+    resident_size += length;
+
+    ResidentFile **tail = &resident_file;
+    while ( *tail ) tail = &(*tail)->next;
+    *tail = rf;
+}
+
+void DirectReader::setPendingFile( const char *file_name )
+{
+    if ( pending_file ) delete[] pending_file;
+    pending_file = NULL;
+    pending_taken_flag = false;
+
+    if ( file_name ){
+        pending_file = new char[ strlen(file_name) + 1 ];
+        strcpy( pending_file, file_name );
+    }
+}
+
+void DirectReader::takePendingFile( const char *file_name )
+{
+    if ( pending_file && isSameFileName( pending_file, file_name ) )
+        pending_taken_flag = true;
+}
+
 void DirectReader::convertFromSJISToEUC( char *buf )
 {
     int i = 0;
@@ -472,6 +687,34 @@ size_t DirectReader::decodeNBZ( FILE *fp, size_t offset, unsigned char *buf )
     return original_length - count;
 }
 
+size_t DirectReader::decodeNBZ( const unsigned char *data, size_t length, unsigned char *buf )
+{
+    if (key_table_flag)
+        logw(stderr, "may not decode NBZ with key_table enabled.\n");
+    if ( length < 4 ) return 0;
+
+    unsigned int original_length = readLong( data );
+    bz_stream strm;
+    memset( &strm, 0, sizeof(strm) );
+    if ( BZ2_bzDecompressInit( &strm, 0, 0 ) != BZ_OK ) return 0;
+
+    strm.next_in   = (char*)data + 4;
+    strm.avail_in  = length - 4;
+    strm.next_out  = (char*)buf;
+    strm.avail_out = original_length;
+
+    int err;
+    unsigned int avail_out;
+    do{
+        avail_out = strm.avail_out;
+        err = BZ2_bzDecompress( &strm );
+    } while( err == BZ_OK && strm.avail_out > 0 && strm.avail_out != avail_out );
+
+    BZ2_bzDecompressEnd( &strm );
+
+    return original_length - strm.avail_out;
+}
+
 size_t DirectReader::encodeNBZ( FILE *fp, size_t length, unsigned char *buf )
 {
     unsigned int bytes_in, bytes_out;
@@ -505,12 +748,14 @@ int DirectReader::getbit( FILE *fp, int n )
     for ( i=0 ; i<n ; i++ ){
         if ( getbit_mask == 0 ){
             if (getbit_len == getbit_count){
+                if (fp == NULL) return EOF; // mapped entry, getbit_src holds all of it
                 getbit_len = fread(read_buf, 1, READ_LENGTH, fp);
                 if (getbit_len == 0) return EOF;
+                getbit_src = read_buf;
                 getbit_count = 0;
             }
 
-            getbit_buf = key_table[read_buf[getbit_count++]];
+            getbit_buf = key_table[getbit_src[getbit_count++]];
             getbit_mask = 128;
         }
         x <<= 1;
@@ -522,11 +767,6 @@ int DirectReader::getbit( FILE *fp, int n )
 
 size_t DirectReader::decodeSPB( FILE *fp, size_t offset, unsigned char *buf )
 {
-    unsigned int count;
-    unsigned char *pbuf, *psbuf;
-    size_t i, j, k;
-    int c, n, m;
-
     getbit_mask = 0;
     getbit_len = getbit_count = 0;
     
@@ -534,6 +774,28 @@ size_t DirectReader::decodeSPB( FILE *fp, size_t offset, unsigned char *buf )
     size_t width  = readShort( fp );
     size_t height = readShort( fp );
 
+    return decodeSPBSub( fp, width, height, buf );
+}
+
+size_t DirectReader::decodeSPB( const unsigned char *data, size_t length, unsigned char *buf )
+{
+    if ( length < 4 ) return 0;
+
+    getbit_mask = 0;
+    getbit_src = data + 4;
+    getbit_len = length - 4;
+    getbit_count = 0;
+
+    return decodeSPBSub( NULL, readShort( data ), readShort( data+2 ), buf );
+}
+
+size_t DirectReader::decodeSPBSub( FILE *fp, size_t width, size_t height, unsigned char *buf )
+{
+    unsigned int count;
+    unsigned char *pbuf, *psbuf;
+    size_t i, j, k;
+    int c, n, m;
+
     size_t width_pad  = (4 - width * 3 % 4) % 4;
 
     size_t total_size = (width * 3 + width_pad) * height + 54;
@@ -619,21 +881,29 @@ size_t DirectReader::decodeLZSS( struct ArchiveInfo *ai, int no, unsigned char *
     unsigned int count = 0;
     int i, j, k, r, c;
 
+    FILE *fp = ai->file_handle;
     getbit_mask = 0;
     getbit_len = getbit_count = 0;
 
-    fseek( ai->file_handle, ai->fi_list[no].offset, SEEK_SET );
+    if ( isMapped( ai, ai->fi_list[no].offset, ai->fi_list[no].length ) ){
+        fp = NULL;
+        getbit_src = ai->map_data + ai->fi_list[no].offset;
+        getbit_len = ai->fi_list[no].length;
+    }
+    else{
+        fseek( fp, ai->fi_list[no].offset, SEEK_SET );
+    }
     memset( decomp_buffer, 0, N-F );
     r = N - F;
 
     while ( count < ai->fi_list[no].original_length ){
-        if ( getbit( ai->file_handle, 1 ) ) {
-            if ((c = getbit( ai->file_handle, 8 )) == EOF) break;
+        if ( getbit( fp, 1 ) ) {
+            if ((c = getbit( fp, 8 )) == EOF) break;
             buf[ count++ ] = c;
             decomp_buffer[r++] = c;  r &= (N - 1);
         } else {
-            if ((i = getbit( ai->file_handle, EI )) == EOF) break;
-            if ((j = getbit( ai->file_handle, EJ )) == EOF) break;
+            if ((i = getbit( fp, EI )) == EOF) break;
+            if ((j = getbit( fp, EJ )) == EOF) break;
             for (k = 0; k <= j + 1  ; k++) {
                 c = decomp_buffer[(i + k) & (N - 1)];
                 buf[ count++ ] = c;
@@ -663,3 +933,21 @@ size_t DirectReader::getDecompressedFileLength( int type, FILE *fp, size_t offse
 
     return length;
 }
+
+size_t DirectReader::getDecompressedFileLength( int type, const unsigned char *data, size_t length )
+{
+    if ( length < 4 ) return 0;
+
+    if ( type == NBZ_COMPRESSION ){
+        return readLong( data );
+    }
+    else if ( type == SPB_COMPRESSION ){
+        size_t width  = readShort( data );
+        size_t height = readShort( data+2 );
+        size_t width_pad  = (4 - width * 3 % 4) % 4;
+
+        return (width * 3 +width_pad) * height + 54;
+    }
+
+    return 0;
+}
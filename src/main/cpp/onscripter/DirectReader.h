@@ -41,10 +41,17 @@ public:
     const char *getArchiveName() const;
     int getNumFiles();
     void registerCompressionType( const char *ext, int type );
+    void enableMemoryMap();
+    void enableHeaderCache( const char *path );
 
     struct FileInfo getFileByIndex( unsigned int index );
     size_t getFileLength( const char *file_name );
     size_t getFile( const char *file_name, unsigned char *buffer, int *location=NULL );
+    const unsigned char *getMappedFile( const char *file_name, size_t *length, int *location=NULL );
+    ArchiveStream *openStream( const char *file_name, int *location=NULL );
+    bool isResidentFile( const char *file_name );
+    void addResidentFile( const char *file_name, unsigned char *buffer, size_t length, int location, size_t budget );
+    void setPendingFile( const char *file_name );
 
     static void convertFromSJISToEUC( char *buf );
     static void convertFromSJISToUTF8( char *dst_buf, const char *src_buf );
@@ -63,9 +70,23 @@ protected:
     int  getbit_mask;
     size_t getbit_len, getbit_count;
     unsigned char *read_buf;
+    const unsigned char *getbit_src;
     unsigned char *decomp_buffer;
     size_t decomp_buffer_len;
     bool try_parent_flag;
+    bool mmap_flag;
+    char *header_cache_path;
+
+    struct ResidentFile{
+        ResidentFile *next;
+        char *name;
+        unsigned char *buffer;
+        size_t length;
+        int location;
+    } *resident_file; // oldest first
+    size_t resident_size;
+    char *pending_file;
+    bool pending_taken_flag; // the script has read pending_file itself
     
     struct RegisteredCompressionType{
         RegisteredCompressionType *next;
@@ -94,19 +115,34 @@ protected:
     unsigned char readChar( FILE *fp );
     unsigned short readShort( FILE *fp );
     unsigned long readLong( FILE *fp );
+    unsigned short readShort( const unsigned char *data );
+    unsigned long readLong( const unsigned char *data );
     void writeChar( FILE *fp, unsigned char ch );
     void writeShort( FILE *fp, unsigned short ch );
     void writeLong( FILE *fp, unsigned long ch );
     static unsigned short swapShort( unsigned short ch );
     static unsigned long swapLong( unsigned long ch );
     size_t decodeNBZ( FILE *fp, size_t offset, unsigned char *buf );
+    size_t decodeNBZ( const unsigned char *data, size_t length, unsigned char *buf );
     size_t encodeNBZ( FILE *fp, size_t length, unsigned char *buf );
     int getbit( FILE *fp, int n );
     size_t decodeSPB( FILE *fp, size_t offset, unsigned char *buf );
+    size_t decodeSPB( const unsigned char *data, size_t length, unsigned char *buf );
+    size_t decodeSPBSub( FILE *fp, size_t width, size_t height, unsigned char *buf );
     size_t decodeLZSS( struct ArchiveInfo *ai, int no, unsigned char *buf );
     int getRegisteredCompressionType( const char *file_name );
     size_t getDecompressedFileLength( int type, FILE *fp, size_t offset );
+    size_t getDecompressedFileLength( int type, const unsigned char *data, size_t length );
+
+    void mapArchive( ArchiveInfo *ai );
+    static bool isMapped( ArchiveInfo *ai, size_t offset, size_t length ){
+        return ai->map_data && offset <= ai->map_length && length <= ai->map_length - offset;
+    };
     
+    ResidentFile *findResidentFile( const char *file_name, ResidentFile ***link=NULL );
+    static bool isSameFileName( const char *name1, const char *name2 );
+    void takePendingFile( const char *file_name );
+
 private:
     FILE *getFileHandle( const char *file_name, int &compression_type, size_t *length );
 };
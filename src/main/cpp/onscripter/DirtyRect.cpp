@@ -27,13 +27,12 @@ DirtyRect::DirtyRect()
 {
     screen_width = screen_height = 0;
     bounding_box.w = bounding_box.h = 0;
+    num_rects = 0;
 }
 
 DirtyRect::DirtyRect( const DirtyRect &d )
 {
-    screen_width  = d.screen_width;
-    screen_height = d.screen_height;
-    bounding_box = d.bounding_box;
+    *this = d;
 }
 
 DirtyRect& DirtyRect::operator =( const DirtyRect &d )
@@ -41,6 +40,9 @@ DirtyRect& DirtyRect::operator =( const DirtyRect &d )
     screen_width  = d.screen_width;
     screen_height = d.screen_height;
     bounding_box = d.bounding_box;
+    num_rects = d.num_rects;
+    for (int i=0 ; i<num_rects ; i++)
+        rects[i] = d.rects[i];
 
     return *this;
 }
@@ -80,6 +82,48 @@ void DirtyRect::add( SDL_Rect src )
         src.h = screen_height-src.y;
 
     bounding_box = calcBoundingBox( bounding_box, src );
+    addRegion( src );
+}
+
+void DirtyRect::addRegion( SDL_Rect src )
+{
+    // absorb every rect close enough, the grown rect may then reach the others
+    int i = 0;
+    while ( i < num_rects ){
+        if ( isNear( rects[i], src ) ){
+            src = calcBoundingBox( rects[i], src );
+            rects[i] = rects[--num_rects];
+            i = 0;
+        }
+        else
+            i++;
+    }
+
+    if ( num_rects < MAX_DIRTY_RECTS ){
+        rects[num_rects++] = src;
+        return;
+    }
+
+    // list is full, fold src into the rect that grows the least
+    int best = 0, best_growth = 0;
+    for ( i=0 ; i<num_rects ; i++ ){
+        SDL_Rect r = calcBoundingBox( rects[i], src );
+        int growth = r.w*r.h - rects[i].w*rects[i].h;
+        if ( i == 0 || growth < best_growth ){
+            best = i;
+            best_growth = growth;
+        }
+    }
+    src = calcBoundingBox( rects[best], src );
+    rects[best] = rects[--num_rects];
+    addRegion( src );
+}
+
+bool DirtyRect::isNear( SDL_Rect &src1, SDL_Rect &src2 )
+{
+    SDL_Rect r = calcBoundingBox( src1, src2 );
+
+    return r.w*r.h <= src1.w*src1.h + src2.w*src2.h + DIRTY_RECT_MERGE_WASTE;
 }
 
 SDL_Rect DirtyRect::calcBoundingBox( SDL_Rect src1, SDL_Rect &src2 )
@@ -112,6 +156,7 @@ SDL_Rect DirtyRect::calcBoundingBox( SDL_Rect src1, SDL_Rect &src2 )
 void DirtyRect::clear()
 {
     bounding_box.w = bounding_box.h = 0;
+    num_rects = 0;
 }
 
 void DirtyRect::fill( int w, int h )
@@ -119,4 +164,6 @@ void DirtyRect::fill( int w, int h )
     bounding_box.x = bounding_box.y = 0;
     bounding_box.w = w;
     bounding_box.h = h;
+    rects[0] = bounding_box;
+    num_rects = (w > 0 && h > 0) ? 1 : 0;
 }
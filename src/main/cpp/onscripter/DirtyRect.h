@@ -26,6 +26,9 @@
 
 #include <SDL.h>
 
+#define MAX_DIRTY_RECTS 16
+#define DIRTY_RECT_MERGE_WASTE (32*32) // merge two rects when their union adds at most this many pixels
+
 struct DirtyRect
 {
     DirtyRect();
@@ -42,6 +45,14 @@ struct DirtyRect
 
     int screen_width, screen_height;
     SDL_Rect bounding_box;
+
+    // disjoint-ish region list, each rect is flushed separately
+    SDL_Rect rects[MAX_DIRTY_RECTS];
+    int num_rects;
+
+private:
+    void addRegion( SDL_Rect src );
+    bool isNear( SDL_Rect &src1, SDL_Rect &src2 );
 };
 
 #endif // __DIRTY_RECT__
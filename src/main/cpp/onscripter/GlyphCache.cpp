@@ -0,0 +1,189 @@
+/* -*- C++ -*-
+ *
+ *  GlyphCache.cpp - Cache of rendered glyphs packed in atlas pages
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "GlyphCache.h"
+#include <string.h>
+
+GlyphCache::GlyphCache()
+{
+    for ( int i=0 ; i<GLYPH_CACHE_HASH_SIZE ; i++ ) table[i] = NULL;
+    for ( int i=0 ; i<GLYPH_CACHE_PAGES ; i++ ){
+        page[i].buf = NULL;
+        page[i].shelf_y = page[i].shelf_h = page[i].cursor_x = 0;
+        page[i].last_used = 0;
+        page[i].root = NULL;
+    }
+    use_count = 0;
+}
+
+GlyphCache::~GlyphCache()
+{
+    clear();
+    for ( int i=0 ; i<GLYPH_CACHE_PAGES ; i++ )
+        if ( page[i].buf ) delete[] page[i].buf;
+}
+
+void GlyphCache::clear()
+{
+    for ( int i=0 ; i<GLYPH_CACHE_PAGES ; i++ ) evictPage( i );
+}
+
+GlyphCache::Glyph *GlyphCache::get( void *font, int style, unsigned short unicode )
+{
+    Entry *e = table[ calcHash( font, style, unicode ) ];
+    while ( e ){
+        if ( e->font == font && e->style == style && e->unicode == unicode ){
+            page[e->page].last_used = ++use_count;
+            return &e->glyph;
+        }
+        e = e->next;
+    }
+
+    return NULL;
+}
+
+GlyphCache::Glyph *GlyphCache::put( void *font, int style, unsigned short unicode, Glyph &metrics, SDL_Surface *surface )
+{
+    Entry *e = new Entry();
+    e->font = font;
+    e->style = style;
+    e->unicode = unicode;
+    e->glyph = metrics;
+    e->glyph.surface = NULL;
+    e->own_surface = false;
+
+    int x = 0, y = 0;
+    if ( surface == NULL || surface->w == 0 || surface->h == 0 ){
+        // blank, only the metrics are kept
+        e->page = allocRect( 0, 0, x, y );
+        if ( surface ) SDL_FreeSurface( surface );
+    }
+    else{
+        e->page = allocRect( surface->w, surface->h, x, y );
+        if ( e->page >= 0 ){
+            unsigned char *dst = page[e->page].buf + GLYPH_CACHE_PAGE_SIZE * y + x;
+            e->glyph.surface = SDL_CreateRGBSurfaceFrom( dst, surface->w, surface->h, 8,
+                                                         GLYPH_CACHE_PAGE_SIZE, 0, 0, 0, 0 );
+        }
+        if ( e->glyph.surface ){
+            SDL_LockSurface( surface );
+            unsigned char *src = (unsigned char*)surface->pixels;
+            for ( int i=0 ; i<surface->h ; i++ ){
+                memcpy( page[e->page].buf + GLYPH_CACHE_PAGE_SIZE * (y+i) + x, src, surface->w );
+                src += surface->pitch;
+            }
+            SDL_UnlockSurface( surface );
+            SDL_FreeSurface( surface );
+        }
+        else{
+            // larger than a page, it is dropped with the page used last
+            e->page = allocRect( 0, 0, x, y );
+            e->glyph.surface = surface;
+            e->own_surface = true;
+        }
+    }
+
+    unsigned int hash = calcHash( font, style, unicode );
+    e->next = table[hash];
+    table[hash] = e;
+    e->next_page = page[e->page].root;
+    page[e->page].root = e;
+    page[e->page].last_used = ++use_count;
+
+    return &e->glyph;
+}
+
+unsigned int GlyphCache::calcHash( void *font, int style, unsigned short unicode )
+{
+    unsigned int hash = (unsigned int)(size_t)font * 31 + style;
+    hash = hash * 65599 + unicode;
+
+    return (hash ^ (hash >> 10)) % GLYPH_CACHE_HASH_SIZE;
+}
+
+int GlyphCache::allocRect( int w, int h, int &x, int &y )
+{
+    if ( w > GLYPH_CACHE_PAGE_SIZE || h > GLYPH_CACHE_PAGE_SIZE ) return -1;
+
+    // the pages in use first, then an empty one, then the least recently used one
+    int i, lru = 0;
+    for ( i=0 ; i<GLYPH_CACHE_PAGES ; i++ ){
+        Page &p = page[i];
+        if ( p.buf == NULL ) continue;
+
+        if ( p.cursor_x + w > GLYPH_CACHE_PAGE_SIZE ){
+            if ( p.shelf_y + p.shelf_h + h > GLYPH_CACHE_PAGE_SIZE ) continue;
+        }
+        else if ( p.shelf_y + h > GLYPH_CACHE_PAGE_SIZE ){
+            continue;
+        }
+        break;
+    }
+
+    if ( i == GLYPH_CACHE_PAGES ){
+        for ( i=0 ; i<GLYPH_CACHE_PAGES ; i++ ){
+            if ( page[i].buf == NULL ) break;
+            if ( page[i].last_used < page[lru].last_used ) lru = i;
+        }
+        if ( i == GLYPH_CACHE_PAGES ){
+            evictPage( lru );
+            i = lru;
+        }
+        else{
+            page[i].buf = new unsigned char[ GLYPH_CACHE_PAGE_SIZE * GLYPH_CACHE_PAGE_SIZE ];
+        }
+    }
+
+    // shelf packing, the glyphs of a font have similar heights
+    Page &p = page[i];
+    if ( p.cursor_x + w > GLYPH_CACHE_PAGE_SIZE ){
+        p.shelf_y += p.shelf_h;
+        p.shelf_h = 0;
+        p.cursor_x = 0;
+    }
+    x = p.cursor_x;
+    y = p.shelf_y;
+    p.cursor_x += w;
+    if ( p.shelf_h < h ) p.shelf_h = h;
+
+    return i;
+}
+
+void GlyphCache::evictPage( int no )
+{
+    Page &p = page[no];
+
+    while ( p.root ){
+        Entry *e = p.root;
+        p.root = e->next_page;
+
+        Entry **prev = &table[ calcHash( e->font, e->style, e->unicode ) ];
+        while ( *prev != e ) prev = &(*prev)->next;
+        *prev = e->next;
+
+        if ( e->glyph.surface ) SDL_FreeSurface( e->glyph.surface );
+        delete e;
+    }
+
+    p.shelf_y = p.shelf_h = p.cursor_x = 0;
+}
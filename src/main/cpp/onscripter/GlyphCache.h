@@ -0,0 +1,82 @@
+/* -*- C++ -*-
+ *
+ *  GlyphCache.h - Cache of rendered glyphs packed in atlas pages
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __GLYPH_CACHE_H__
+#define __GLYPH_CACHE_H__
+
+#include <SDL.h>
+
+#define GLYPH_CACHE_PAGE_SIZE 512
+#define GLYPH_CACHE_PAGES 8
+#define GLYPH_CACHE_HASH_SIZE 1024
+
+// The 8bit glyphs of TTF_RenderGlyph_Shaded() are copied into pages of
+// GLYPH_CACHE_PAGE_SIZE square. When all the pages are full, the page used
+// least recently is emptied with all its glyphs.
+class GlyphCache
+{
+public:
+    struct Glyph{
+        int minx, maxx, miny, maxy, advance; // TTF_GlyphMetrics()
+        SDL_Surface *surface; // NULL for a blank glyph, owned by the cache
+    };
+
+    GlyphCache();
+    ~GlyphCache();
+
+    void clear();
+
+    // style is TTF_GetFontStyle() of font
+    Glyph *get( void *font, int style, unsigned short unicode );
+    // takes surface over, the returned glyph is valid until the next put()
+    // evicts its page
+    Glyph *put( void *font, int style, unsigned short unicode, Glyph &metrics, SDL_Surface *surface );
+
+private:
+    struct Entry{
+        void *font;
+        int style;
+        unsigned short unicode;
+        Glyph glyph;
+        bool own_surface; // too large for a page
+        int page;
+        Entry *next;      // in the same hash bucket
+        Entry *next_page; // in the same page
+    };
+    struct Page{
+        unsigned char *buf;
+        int shelf_y, shelf_h, cursor_x;
+        unsigned int last_used;
+        Entry *root;
+    };
+
+    Entry *table[GLYPH_CACHE_HASH_SIZE];
+    Page page[GLYPH_CACHE_PAGES];
+    unsigned int use_count;
+
+    unsigned int calcHash( void *font, int style, unsigned short unicode );
+    int allocRect( int w, int h, int &x, int &y );
+    void evictPage( int no );
+};
+
+#endif // __GLYPH_CACHE_H__
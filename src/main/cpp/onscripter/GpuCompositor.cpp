@@ -0,0 +1,467 @@
+/* -*- C++ -*-
+ *
+ *  GpuCompositor.cpp - Draws the top layers of the screen as textures
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "GpuCompositor.h"
+
+// SDL_RenderCopyQuad() and SDL_UpdateRectsNoPresent() are only in the in-tree SDL
+#if defined(ANDROID) && !defined(USE_SDL_RENDERER) && !defined(BPP16)
+#define GPU_COMPOSITOR_AVAILABLE
+#endif
+
+GpuCompositor::GpuCompositor()
+{
+    root = NULL;
+    white_texture = NULL;
+    max_texture_size = 0;
+    effect_texture[0] = effect_texture[1] = NULL;
+    effect_w = effect_h = 0;
+    effect_format = 0;
+    mask_texture = NULL;
+    mosaic_texture = NULL;
+    mosaic_w = mosaic_h = 0;
+}
+
+GpuCompositor::~GpuCompositor()
+{
+    deleteTextures( false );
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    if (white_texture) SDL_DestroyTexture( white_texture );
+    for (int i=0 ; i<2 ; i++)
+        if (effect_texture[i]) SDL_DestroyTexture( effect_texture[i] );
+    if (mask_texture) SDL_DestroyTexture( mask_texture );
+    if (mosaic_texture) SDL_DestroyTexture( mosaic_texture );
+#endif
+}
+
+bool GpuCompositor::init()
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    if (white_texture) return true;
+
+    SDL_RendererInfo info;
+    if (SDL_GetRendererInfo( &info ) < 0) return false;
+    max_texture_size = info.max_texture_width;
+    if (max_texture_size > info.max_texture_height) max_texture_size = info.max_texture_height;
+    if (max_texture_size <= 0) return false;
+
+    // a 1x1 white texture is used to multiply the screen by a color
+    white_texture = SDL_CreateTexture( SDL_PIXELFORMAT_ABGR8888, SDL_TEXTUREACCESS_STATIC, 1, 1 );
+    if (white_texture == NULL) return false;
+    Uint32 white = 0xffffffff;
+    SDL_Rect rect = {0, 0, 1, 1};
+    SDL_UpdateTexture( white_texture, &rect, &white, 4 );
+    SDL_SetTextureBlendMode( white_texture, SDL_BLENDMODE_MOD );
+
+    return true;
+#else
+    return false;
+#endif
+}
+
+void GpuCompositor::reset()
+{
+    for (Texture *t = root ; t ; t = t->next) t->texture = NULL;
+    deleteTextures( false );
+    effect_texture[0] = effect_texture[1] = NULL;
+    mask_texture = NULL;
+    mosaic_texture = NULL;
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    if (white_texture){
+        white_texture = NULL;
+        init();
+    }
+#endif
+}
+
+bool GpuCompositor::canDraw( AnimationInfo *anim, bool affine_flag )
+{
+    if (!isEnabled() || anim->image_surface == NULL) return false;
+    if (anim->pos.w > max_texture_size || anim->pos.h > max_texture_size) return false;
+    if (affine_flag){
+        // OpenGL ES 1.x has no subtractive blending
+        if (anim->blending_mode == AnimationInfo::BLEND_SUB) return false;
+        if (anim->scale_x == 0 || anim->scale_y == 0) return false;
+    }
+
+    return true;
+}
+
+bool GpuCompositor::begin( SDL_Surface *screen, int num_rects, SDL_Rect *rects )
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    for (Texture *t = root ; t ; t = t->next) t->used = false;
+
+    return SDL_UpdateRectsNoPresent( screen, num_rects, rects ) != 0;
+#else
+    return false;
+#endif
+}
+
+void GpuCompositor::draw( AnimationInfo *anim, int x, int y, int alpha, bool affine_flag )
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    Texture *t = getTexture( anim );
+    if (t == NULL) return;
+
+    int cell_x = 0;
+    if (t->cell < 0){
+        if (affine_flag)
+            cell_x = anim->pos.w * anim->current_cell;
+        else
+            cell_x = anim->image_surface->w * anim->current_cell / anim->num_of_cells;
+    }
+
+    SDL_Rect src_rect;
+    float corners[8];
+    int blend_mode = SDL_BLENDMODE_BLEND;
+
+    if (!affine_flag){
+        src_rect.x = cell_x;
+        src_rect.y = 0;
+        src_rect.w = anim->pos.w;
+        src_rect.h = anim->pos.h;
+        for (int i=0 ; i<4 ; i++){
+            corners[i*2  ] = x + ((i&1) ? anim->pos.w : 0);
+            corners[i*2+1] = y + ((i&2) ? anim->pos.h : 0);
+        }
+    }
+    else{
+        // the same source area and matrix as blendOnSurface2()
+        int sx0 = anim->affine_pos.x, sx1 = anim->affine_pos.x + anim->affine_pos.w;
+        int sy0 = anim->affine_pos.y, sy1 = anim->affine_pos.y + anim->affine_pos.h;
+        if (sx0 < 0) sx0 = 0;
+        if (sy0 < 0) sy0 = 0;
+        if (sx1 > anim->pos.w) sx1 = anim->pos.w;
+        if (sy1 > anim->pos.h) sy1 = anim->pos.h;
+        if (sx0 >= sx1 || sy0 >= sy1) return;
+
+        float cx = anim->affine_pos.x + anim->affine_pos.w * 0.5f;
+        float cy = anim->affine_pos.y + anim->affine_pos.h * 0.5f;
+        src_rect.x = cell_x + sx0;
+        src_rect.y = sy0;
+        src_rect.w = sx1 - sx0;
+        src_rect.h = sy1 - sy0;
+        for (int i=0 ; i<4 ; i++){
+            float dx = ((i&1) ? sx1 : sx0) - cx;
+            float dy = ((i&2) ? sy1 : sy0) - cy;
+            corners[i*2  ] = x + (anim->mat[0][0] * dx + anim->mat[0][1] * dy) / 1024.0f;
+            corners[i*2+1] = y + (anim->mat[1][0] * dx + anim->mat[1][1] * dy) / 1024.0f;
+        }
+        if (anim->blending_mode == AnimationInfo::BLEND_ADD)
+            blend_mode = SDL_BLENDMODE_ADD;
+    }
+
+    SDL_SetTextureAlphaMod( t->texture, alpha & 0xff );
+    SDL_SetTextureBlendMode( t->texture, blend_mode );
+    SDL_RenderCopyQuad( t->texture, &src_rect, corners );
+#endif
+}
+
+void GpuCompositor::multiply( SDL_Rect &rect, uchar3 &color )
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    SDL_Rect src_rect = {0, 0, 1, 1};
+    float corners[8];
+    for (int i=0 ; i<4 ; i++){
+        corners[i*2  ] = rect.x + ((i&1) ? rect.w : 0);
+        corners[i*2+1] = rect.y + ((i&2) ? rect.h : 0);
+    }
+
+    SDL_SetTextureColorMod( white_texture, color[0], color[1], color[2] );
+    SDL_RenderCopyQuad( white_texture, &src_rect, corners );
+#endif
+}
+
+void GpuCompositor::end()
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    SDL_RenderPresent();
+    deleteTextures( true );
+#endif
+}
+
+bool GpuCompositor::loadEffect( SDL_Surface *src, SDL_Surface *dst, Uint32 texture_format )
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    if (!isEnabled() || src->w > max_texture_size || src->h > max_texture_size) return false;
+
+    // the alpha of accumulation_surface is undefined, a crossfade needs it opaque
+    int bpp;
+    Uint32 rmask, gmask, bmask, amask;
+    SDL_PixelFormatEnumToMasks( texture_format, &bpp, &rmask, &gmask, &bmask, &amask );
+    Uint32 *buf = new Uint32[src->w * src->h];
+
+    SDL_Surface *surface[2] = {src, dst};
+    for (int i=0 ; i<2 ; i++){
+        if (effect_texture[i] && (effect_w != src->w || effect_h != src->h)){
+            SDL_DestroyTexture( effect_texture[i] );
+            effect_texture[i] = NULL;
+        }
+        if (effect_texture[i] == NULL)
+            effect_texture[i] = SDL_CreateTexture( texture_format, SDL_TEXTUREACCESS_STATIC, src->w, src->h );
+        if (effect_texture[i] == NULL){
+            delete[] buf;
+            return false;
+        }
+
+        SDL_LockSurface( surface[i] );
+        for (int j=0 ; j<src->h ; j++){
+            Uint32 *src_buf = (Uint32*)((Uint8*)surface[i]->pixels + surface[i]->pitch * j);
+            Uint32 *dst_buf = buf + src->w * j;
+            for (int k=src->w ; k!=0 ; k--) *dst_buf++ = *src_buf++ | amask;
+        }
+        SDL_UnlockSurface( surface[i] );
+
+        SDL_Rect rect = {0, 0, (Uint16)src->w, (Uint16)src->h};
+        SDL_UpdateTexture( effect_texture[i], &rect, buf, src->w * 4 );
+    }
+    effect_w = src->w;
+    effect_h = src->h;
+    effect_format = texture_format;
+    delete[] buf;
+
+    return true;
+#else
+    return false;
+#endif
+}
+
+void GpuCompositor::beginEffect()
+{
+    SDL_Rect rect = {0, 0, (Uint16)effect_w, (Uint16)effect_h};
+    drawEffect( false, rect, rect );
+}
+
+void GpuCompositor::drawEffect( bool dst_flag, SDL_Rect &src_rect, SDL_Rect &dst_rect, int alpha )
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    SDL_Texture *texture = effect_texture[dst_flag ? 1 : 0];
+    float corners[8];
+    for (int i=0 ; i<4 ; i++){
+        corners[i*2  ] = dst_rect.x + ((i&1) ? src_rect.w : 0);
+        corners[i*2+1] = dst_rect.y + ((i&2) ? src_rect.h : 0);
+    }
+
+    if (alpha > 255) alpha = 255;
+    SDL_SetTextureAlphaMod( texture, alpha );
+    SDL_SetTextureBlendMode( texture, (alpha == 255) ? SDL_BLENDMODE_NONE : SDL_BLENDMODE_BLEND );
+    SDL_RenderCopyQuad( texture, &src_rect, corners );
+#endif
+}
+
+void GpuCompositor::endEffect()
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    SDL_RenderPresent();
+#endif
+}
+
+bool GpuCompositor::loadEffectMask( SDL_Surface *surface, const Uint8 *alpha )
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    if (surface->w != effect_w || surface->h != effect_h) return false;
+
+    int bpp;
+    Uint32 rmask, gmask, bmask, amask;
+    SDL_PixelFormatEnumToMasks( effect_format, &bpp, &rmask, &gmask, &bmask, &amask );
+    int ashift = 0;
+    while (ashift < 32 && !((amask >> ashift) & 1)) ashift++;
+
+    if (mask_texture == NULL){
+        mask_texture = SDL_CreateTexture( effect_format, SDL_TEXTUREACCESS_STATIC, effect_w, effect_h );
+        if (mask_texture == NULL) return false;
+    }
+
+    Uint32 *buf = new Uint32[effect_w * effect_h];
+    SDL_LockSurface( surface );
+    for (int j=0 ; j<effect_h ; j++){
+        Uint32 *src_buf = (Uint32*)((Uint8*)surface->pixels + surface->pitch * j);
+        Uint32 *dst_buf = buf + effect_w * j;
+        const Uint8 *alpha_buf = alpha + effect_w * j;
+        for (int k=effect_w ; k!=0 ; k--)
+            *dst_buf++ = (*src_buf++ & ~amask) | ((Uint32)*alpha_buf++ << ashift);
+    }
+    SDL_UnlockSurface( surface );
+
+    SDL_Rect rect = {0, 0, (Uint16)effect_w, (Uint16)effect_h};
+    SDL_UpdateTexture( mask_texture, &rect, buf, effect_w * 4 );
+    delete[] buf;
+
+    return true;
+#else
+    return false;
+#endif
+}
+
+void GpuCompositor::drawEffectMask( SDL_Rect &src_rect, SDL_Rect &dst_rect, int ref )
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    float corners[8];
+    for (int i=0 ; i<4 ; i++){
+        corners[i*2  ] = dst_rect.x + ((i&1) ? src_rect.w : 0);
+        corners[i*2+1] = dst_rect.y + ((i&2) ? src_rect.h : 0);
+    }
+
+    if (ref < 0) ref = 0;
+    if (ref > 255) ref = 255;
+    SDL_RenderCopyQuadAlphaTest( mask_texture, &src_rect, corners, ref );
+#endif
+}
+
+void GpuCompositor::blendEffectMask( SDL_Rect &rect, int offset )
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    float corners[8];
+    for (int i=0 ; i<4 ; i++){
+        corners[i*2  ] = rect.x + ((i&1) ? rect.w : 0);
+        corners[i*2+1] = rect.y + ((i&2) ? rect.h : 0);
+    }
+
+    SDL_RenderCopyQuadAlphaOffset( mask_texture, &rect, corners, offset );
+#endif
+}
+
+void GpuCompositor::drawMosaic( SDL_Surface *src, int width )
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    // the cells are counted from the bottom left corner as in generateMosaic()
+    int w = (effect_w + width - 1) / width;
+    int h = (effect_h + width - 1) / width;
+
+    if (mosaic_texture && (mosaic_w != w || mosaic_h != h)){
+        SDL_DestroyTexture( mosaic_texture );
+        mosaic_texture = NULL;
+    }
+    if (mosaic_texture == NULL){
+        mosaic_texture = SDL_CreateTexture( effect_format, SDL_TEXTUREACCESS_STATIC, w, h );
+        if (mosaic_texture == NULL) return;
+        SDL_SetTextureScaleMode( mosaic_texture, SDL_TEXTURESCALEMODE_FAST );
+        mosaic_w = w;
+        mosaic_h = h;
+    }
+
+    int bpp;
+    Uint32 rmask, gmask, bmask, amask;
+    SDL_PixelFormatEnumToMasks( effect_format, &bpp, &rmask, &gmask, &bmask, &amask );
+    Uint32 *buf = new Uint32[w * h];
+    SDL_LockSurface( src );
+    for (int i=0 ; i<h ; i++){
+        Uint32 *src_buf = (Uint32*)((Uint8*)src->pixels + src->pitch * (effect_h - 1 - (h - 1 - i) * width));
+        Uint32 *dst_buf = buf + w * i;
+        for (int j=0 ; j<w ; j++) *dst_buf++ = src_buf[j * width] | amask;
+    }
+    SDL_UnlockSurface( src );
+
+    SDL_Rect rect = {0, 0, (Uint16)w, (Uint16)h};
+    SDL_UpdateTexture( mosaic_texture, &rect, buf, w * 4 );
+    delete[] buf;
+
+    float corners[8];
+    for (int i=0 ; i<4 ; i++){
+        corners[i*2  ] = (i&1) ? w * width : 0;
+        corners[i*2+1] = effect_h - ((i&2) ? 0 : h * width);
+    }
+    SDL_SetTextureBlendMode( mosaic_texture, SDL_BLENDMODE_NONE );
+    SDL_RenderCopyQuad( mosaic_texture, &rect, corners );
+#endif
+}
+
+GpuCompositor::Texture *GpuCompositor::getTexture( AnimationInfo *anim )
+{
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+    SDL_Surface *surface = anim->image_surface;
+
+    // a texture holds all the cells when they fit, otherwise only the current one
+    int cell = -1;
+    if (surface->w > max_texture_size || surface->h > max_texture_size)
+        cell = anim->current_cell;
+
+    Texture *t = root;
+    while (t && t->anim != anim) t = t->next;
+
+    if (t && (t->surface != surface || (t->cell < 0) != (cell < 0))){
+        SDL_DestroyTexture( t->texture );
+        t->texture = NULL;
+    }
+
+    if (t == NULL){
+        t = new Texture();
+        t->anim = anim;
+        t->texture = NULL;
+        t->next = root;
+        root = t;
+    }
+
+    if (t->texture == NULL){
+        int w = (cell < 0) ? surface->w : anim->pos.w;
+        int h = (cell < 0) ? surface->h : anim->pos.h;
+        t->texture = SDL_CreateTexture( anim->texture_format, SDL_TEXTUREACCESS_STATIC, w, h );
+        if (t->texture == NULL) return NULL;
+        SDL_SetTextureScaleMode( t->texture, SDL_TEXTURESCALEMODE_SLOW );
+    }
+    else if (t->cell == cell && t->serial == anim->image_serial){
+        t->used = true;
+        return t;
+    }
+
+    SDL_Rect rect = {0, 0, (Uint16)surface->w, (Uint16)surface->h};
+    int offset_x = 0;
+    if (cell >= 0){
+        rect.w = anim->pos.w;
+        rect.h = anim->pos.h;
+        offset_x = surface->w * cell / anim->num_of_cells;
+    }
+    SDL_mutexP( anim->mutex );
+    SDL_LockSurface( surface );
+    SDL_UpdateTexture( t->texture, &rect,
+                       (Uint8*)surface->pixels + offset_x * 4, surface->pitch );
+    SDL_UnlockSurface( surface );
+    SDL_mutexV( anim->mutex );
+
+    t->surface = surface;
+    t->serial = anim->image_serial;
+    t->cell = cell;
+    t->used = true;
+
+    return t;
+#else
+    return NULL;
+#endif
+}
+
+void GpuCompositor::deleteTextures( bool unused_only )
+{
+    Texture **p = &root;
+    while (*p){
+        Texture *t = *p;
+        if (unused_only && t->used){
+            p = &t->next;
+            continue;
+        }
+        *p = t->next;
+#if defined(GPU_COMPOSITOR_AVAILABLE)
+        if (t->texture) SDL_DestroyTexture( t->texture );
+#endif
+        delete t;
+    }
+}
@@ -0,0 +1,100 @@
+/* -*- C++ -*-
+ *
+ *  GpuCompositor.h - Draws the top layers of the screen as textures
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __GPU_COMPOSITOR_H__
+#define __GPU_COMPOSITOR_H__
+
+#include <SDL.h>
+#include "AnimationInfo.h"
+
+// Keeps one texture for each AnimationInfo drawn through it and draws them
+// over the screen texture with the renderer of the in-tree SDL, so a layer
+// that moves or fades costs no software blending. Only available with the
+// 32bpp Android build, init() fails elsewhere.
+class GpuCompositor
+{
+public:
+    GpuCompositor();
+    ~GpuCompositor();
+
+    bool init();
+    // forgets the textures after SDL_SetVideoMode() has destroyed them with
+    // the renderer, they are created again when they are drawn
+    void reset();
+    bool isEnabled(){ return white_texture != NULL; };
+
+    // true if draw() gives the same picture as blendOnSurface()/blendOnSurface2()
+    bool canDraw( AnimationInfo *anim, bool affine_flag );
+
+    // uploads the rects of screen and draws it, the layers are drawn over it
+    bool begin( SDL_Surface *screen, int num_rects, SDL_Rect *rects );
+    // uploads the image again when image_serial of anim has changed
+    void draw( AnimationInfo *anim, int x, int y, int alpha, bool affine_flag );
+    // dst = dst * color / 255, shadowTextDisplay()
+    void multiply( SDL_Rect &rect, uchar3 &color );
+    // presents the frame and destroys the textures that were not drawn
+    void end();
+
+    // uploads the images before and after an effect, false if they do not fit
+    bool loadEffect( SDL_Surface *src, SDL_Surface *dst, Uint32 texture_format );
+    // draws the image before the effect over the whole screen
+    void beginEffect();
+    // the same as blitting a part of either image to accumulation_surface
+    void drawEffect( bool dst_flag, SDL_Rect &src_rect, SDL_Rect &dst_rect, int alpha=255 );
+    void endEffect();
+
+    // uploads surface, the size of the effect images, with alpha[] as its
+    // alpha channel for the masked effects
+    bool loadEffectMask( SDL_Surface *surface, const Uint8 *alpha );
+    // draws the pixels of the mask texture whose alpha is greater than ref
+    void drawEffectMask( SDL_Rect &src_rect, SDL_Rect &dst_rect, int ref );
+    // blends the mask texture with offset (-255 to 255) added to its alpha
+    void blendEffectMask( SDL_Rect &rect, int offset );
+    // the same as generateMosaic(), each cell is one texel stretched over it
+    void drawMosaic( SDL_Surface *src, int width );
+
+private:
+    struct Texture{
+        AnimationInfo *anim;
+        SDL_Surface *surface;
+        unsigned int serial;
+        int cell; // -1 if the texture holds all the cells
+        SDL_Texture *texture;
+        bool used;
+        Texture *next;
+    };
+    Texture *root;
+    SDL_Texture *white_texture;
+    int max_texture_size;
+    SDL_Texture *effect_texture[2]; // before and after the effect
+    int effect_w, effect_h;
+    Uint32 effect_format;
+    SDL_Texture *mask_texture;
+    SDL_Texture *mosaic_texture;
+    int mosaic_w, mosaic_h;
+
+    Texture *getTexture( AnimationInfo *anim );
+    void deleteTextures( bool unused_only );
+};
+
+#endif // __GPU_COMPOSITOR_H__
@@ -64,6 +64,9 @@ int NsaReader::open( const char *nsa_path )
         }
         ret = internalOpen(path_tmp, num_of_ns2_archives, num_of_nsa_archives);
     }
+    saveHeaderCache();
+    buildIndex();
+
     return ret;
 }
 
@@ -72,8 +75,11 @@ int NsaReader::internalOpen( const char *nsa_path, int ns2_count_offset, int nsa
     int i, j;
     bool archive_found = false;
     char archive_name[256], archive_name2[256];
+    ArchiveInfo *read_list[MAX_NS2_ARCHIVE+MAX_EXTRA_ARCHIVE+1];
+    int read_type[MAX_NS2_ARCHIVE+MAX_EXTRA_ARCHIVE+1];
+    int num_of_reads = 0;
 
-    if ( SarReader::open( "arc.sar" ) == 0 ) {
+    if ( openArchive( "arc.sar" ) == 0 ) {
         archive_found = true;
     } else {
         sar_flag = false;
@@ -87,7 +93,9 @@ int NsaReader::internalOpen( const char *nsa_path, int ns2_count_offset, int nsa
             archive_found = true;
             archive_info_ns2[i].file_name = new char[strlen(archive_name)+1];
             memcpy(archive_info_ns2[i].file_name, archive_name, strlen(archive_name)+1);
-            readArchive( &archive_info_ns2[i], ARCHIVE_TYPE_NS2, nsa_offset );
+            mapArchive( &archive_info_ns2[i] );
+            read_list[num_of_reads] = &archive_info_ns2[i];
+            read_type[num_of_reads++] = ARCHIVE_TYPE_NS2;
             num_of_ns2_archives = i+1;
         }
     }
@@ -114,11 +122,15 @@ int NsaReader::internalOpen( const char *nsa_path, int ns2_count_offset, int nsa
             archive_found = true;
             ai->file_name = new char[strlen(archive_name)+1];
             memcpy(ai->file_name, archive_name, strlen(archive_name)+1);
-            readArchive( ai, ARCHIVE_TYPE_NSA, nsa_offset );
+            mapArchive( ai );
+            read_list[num_of_reads] = ai;
+            read_type[num_of_reads++] = ARCHIVE_TYPE_NSA;
             num_of_nsa_archives = i+1;
         }
     }
 
+    readArchives( read_list, read_type, num_of_reads, nsa_offset );
+
     if (!archive_found) return -1;
 
     return 0;
@@ -133,6 +145,7 @@ int NsaReader::openForConvert( char *nsa_name, int archive_type, unsigned int ns
     }
 
     readArchive( &archive_info, archive_type, nsa_offset );
+    buildIndex();
 
     return 0;
 }
@@ -163,78 +176,26 @@ int NsaReader::getNumFiles(){
     return total;
 }
 
-size_t NsaReader::getFileLengthSub( ArchiveInfo *ai, const char *file_name )
-{
-    unsigned int i = getIndexFromFile( ai, file_name );
-
-    if ( i == ai->num_of_files ) return 0;
-
-    if ( ai->fi_list[i].original_length != 0 )
-        return ai->fi_list[i].original_length;
-
-    int type = ai->fi_list[i].compression_type;
-    if ( type == NO_COMPRESSION )
-        type = getRegisteredCompressionType( file_name );
-    if ( type == NBZ_COMPRESSION || type == SPB_COMPRESSION ) {
-        ai->fi_list[i].original_length = getDecompressedFileLength( type, ai->file_handle, ai->fi_list[i].offset );
-    }
-    
-    return ai->fi_list[i].original_length;
-}
-
-size_t NsaReader::getFileLength( const char *file_name )
+void NsaReader::buildIndex()
 {
-    size_t ret;
     int i;
-    
-    if ( ( ret = DirectReader::getFileLength( file_name ) ) ) return ret;
-
-    for ( i=0 ; i<num_of_ns2_archives ; i++ ){
-        if ( (ret = getFileLengthSub( &archive_info_ns2[i], file_name )) ) return ret;
-    }
-
-    if ( ( ret = getFileLengthSub( &archive_info, file_name )) ) return ret;
-
-    for ( i=0 ; i<num_of_nsa_archives ; i++ ){
-        if ( (ret = getFileLengthSub( &archive_info2[i], file_name )) ) return ret;
-    }
-
-    if ( sar_flag && (ret = SarReader::getFileLength( file_name ))) {
-        return ret;
-    }
-
-    return 0;
-}
-
-size_t NsaReader::getFile( const char *file_name, unsigned char *buffer, int *location )
-{
-    size_t ret;
-
-    if ( ( ret = DirectReader::getFile( file_name, buffer, location ) ) ) return ret;
 
-    for ( int i=0 ; i<num_of_ns2_archives ; i++ ){
-        if ( (ret = getFileSub( &archive_info_ns2[i], file_name, buffer )) ){
-            if ( location ) *location = ARCHIVE_TYPE_NS2;
-            return ret;
-        }
-    }
+    createIndex( getNumFiles() + SarReader::getNumFiles() );
 
-    if ( (ret = getFileSub( &archive_info, file_name, buffer )) ){
-        if ( location ) *location = ARCHIVE_TYPE_NSA;
-        return ret;
-    }
+    // same precedence as the linear search used to have: ns2, arc.nsa, arc1-9.nsa and arc.sar
+    for ( i=0 ; i<num_of_ns2_archives ; i++ )
+        addToIndex( &archive_info_ns2[i], ARCHIVE_TYPE_NS2 );
+    addToIndex( &archive_info, ARCHIVE_TYPE_NSA );
+    for ( i=0 ; i<num_of_nsa_archives ; i++ )
+        addToIndex( &archive_info2[i], ARCHIVE_TYPE_NSA );
 
-    for ( int i=0 ; i<num_of_nsa_archives ; i++ ){
-        if ( (ret = getFileSub( &archive_info2[i], file_name, buffer )) ){
-            if ( location ) *location = ARCHIVE_TYPE_NSA;
-            return ret;
+    if ( sar_flag ){
+        ArchiveInfo *info = archive_info.next;
+        for ( i=0 ; i<num_of_sar_archives ; i++ ){
+            addToIndex( info, ARCHIVE_TYPE_SAR );
+            info = info->next;
         }
     }
-
-    if ( sar_flag && (ret = SarReader::getFile( file_name, buffer, location ))) {
-        return ret;
-    }
-    return 0;
 }
 
 NsaReader::FileInfo NsaReader::getFileByIndex( unsigned int index )
@@ -38,8 +38,6 @@ public:
     const char *getArchiveName() const;
     int getNumFiles();
     
-    size_t getFileLength( const char *file_name );
-    size_t getFile( const char *file_name, unsigned char *buf, int *location=NULL );
     FileInfo getFileByIndex( unsigned int index );
 
     int openForConvert( char *nsa_name, int archive_type=ARCHIVE_TYPE_NSA, unsigned int nsa_offset=0 );
@@ -58,7 +56,7 @@ private:
     ArchiveInfo archive_info_ns2[MAX_NS2_ARCHIVE];
     char path_tmp[MAX_FILE_NAME_LENGTH*2+1];
 
-    size_t getFileLengthSub( ArchiveInfo *ai, const char *file_name );
+    void buildIndex();
     int internalOpen( const char *nsa_path=NULL, int ns2_count_offset=0, int nsa_count_offset=-1  );
 };
 
@@ -23,6 +23,7 @@
 
 #include "ONScripter.h"
 #include "utf8_decode.h"
+#include "PixelBlend.h"
 #ifdef USE_FONTCONFIG
 #include <fontconfig/fontconfig.h>
 #endif
@@ -49,6 +50,7 @@ jobject     ONScripter::JavaONScripter = NULL;
 jmethodID   ONScripter::JavaPlayVideo = NULL;
 jmethodID   ONScripter::JavaSendException = NULL;
 jmethodID   ONScripter::JavaSendReady = NULL;
+jmethodID   ONScripter::JavaSendStartupTiming = NULL;
 jmethodID   ONScripter::JavaReceiveMessage = NULL;
 jmethodID   ONScripter::JavaOnLoadFile = NULL;
 jmethodID   ONScripter::JavaOnFinish = NULL;
@@ -71,6 +73,11 @@ void ONScripter::initSDL()
     /* ---------------------------------------- */
     /* Initialize SDL */
 
+#if defined(LINUX) && !defined(ANDROID)
+    // a host without a display can run the script
+    if ( headless_flag ) setenv( "SDL_VIDEODRIVER", "dummy", 0 );
+#endif
+
     if ( SDL_Init( SDL_INIT_VIDEO | SDL_INIT_TIMER | SDL_INIT_AUDIO ) < 0 ){
         errorAndExit("Couldn't initialize SDL: %s\n", SDL_GetError());
     }
@@ -202,6 +209,17 @@ void ONScripter::initSDL()
     }
 #endif
     logv("Display: %d x %d (%d bpp)\n", screen_width, screen_height, screen_bpp);
+    logv("Blending: %s\n", initPixelBlend());
+    if ( parallel_composite_flag ){
+        compositor.start();
+        logv("Compositing: %d thread(s)\n", compositor.getNumThreads());
+    }
+    if ( gpu_composite_flag ){
+        if ( gpu_compositor.init() )
+            logv("GPU compositing: enabled\n");
+        else
+            logv("GPU compositing: not available\n");
+    }
     dirty_rect.setDimension(screen_width, screen_height);
 
     screen_rect.x = screen_rect.y = 0;
@@ -224,6 +242,11 @@ void ONScripter::openAudio(int freq)
 {
     Mix_CloseAudio();
 
+    if ( headless_flag ){
+        audio_open_flag = false;
+        return;
+    }
+
     int audioFreq =
 #if defined(ANDROID)
     // Default is 22050 because 44100 may crash in some games
@@ -261,6 +284,10 @@ void ONScripter::openAudio(int freq)
 ONScripter::ONScripter()
 {
     is_script_read = false;
+#ifdef ANDROID
+    font_open_time = first_frame_start = 0;
+    startup_timing_pending = false;
+#endif
 
     cdrom_drive_number = 0;
     cdaudio_flag = false;
@@ -273,6 +300,14 @@ ONScripter::ONScripter()
     getret_str = NULL;
     enable_wheeldown_advance_flag = false;
     disable_rescale_flag = false;
+    stream_archive_flag = false;
+    parallel_composite_flag = false;
+    gpu_composite_flag = false;
+    prerender_text_flag = false;
+    headless_flag = false;
+    headless_command_limit = 0;
+    headless_start = 0;
+    headless_start_commands = headless_start_labels = 0;
     edit_flag = false;
     key_exe_file = NULL;
     fullscreen_mode = false;
@@ -282,6 +317,12 @@ ONScripter::ONScripter()
     texture_info = new AnimationInfo[MAX_TEXTURE_NUM];
     smpeg_info = NULL;
     current_button_state.down_flag = false;
+    layer = gpu_layer = NULL;
+    num_layers = max_layers = 0;
+    num_gpu_layers = max_gpu_layers = 0;
+    gpu_pending_flag = false;
+    gpu_refresh_mode = REFRESH_NORMAL_MODE;
+    gpu_effect_flag = false;
 
 #ifdef ANDROID
     audio_high_quality = false;
@@ -304,10 +345,15 @@ ONScripter::ONScripter()
 
 ONScripter::~ONScripter()
 {
+    text_prerenderer.stop();
+    prefetcher.stop();
+    compositor.stop();
     reset();
 
     delete[] sprite_info;
     delete[] sprite2_info;
+    delete[] layer;
+    delete[] gpu_layer;
 
 #if defined(USE_SDL_RENDERER)
     if (window) SDL_DestroyWindow(window);
@@ -335,6 +381,16 @@ void ONScripter::setScreenshotFolder(const char *folderPath)
     setStr(&screenshot_folder, folderPath);
 }
 
+void ONScripter::setImageCacheSize(size_t bytes)
+{
+    image_cache.setBudget(bytes);
+}
+
+void ONScripter::setPrefetchSize(size_t bytes)
+{
+    prefetcher.setBudget(bytes);
+}
+
 void ONScripter::setRegistryFile(const char *filename)
 {
     setStr(&registry_file, filename);
@@ -399,6 +455,108 @@ void ONScripter::useParentResources()
     use_parent_resources = true;
 }
 
+void ONScripter::useMemoryMappedArchives()
+{
+    use_mmap_archives = true;
+}
+
+void ONScripter::useHeaderCache()
+{
+    use_header_cache = true;
+}
+
+void ONScripter::useScriptCache()
+{
+    use_script_cache = true;
+}
+
+void ONScripter::useStreamingDecode()
+{
+    stream_archive_flag = true;
+}
+
+void ONScripter::useParallelCompositing()
+{
+    parallel_composite_flag = true;
+}
+
+void ONScripter::useGpuCompositing()
+{
+    gpu_composite_flag = true;
+}
+
+void ONScripter::useTextPrerendering()
+{
+    prerender_text_flag = true;
+}
+
+void ONScripter::useHeadless()
+{
+    headless_flag = true;
+}
+
+void ONScripter::setHeadlessCommandLimit(unsigned long limit)
+{
+    headless_flag = true;
+    headless_command_limit = limit;
+}
+
+void ONScripter::reportHeadless()
+{
+    Uint32 duration = SDL_GetTicks() - headless_start;
+    if ( duration == 0 ) duration = 1;
+    unsigned long commands = num_executed_commands - headless_start_commands;
+    unsigned long labels = num_entered_labels - headless_start_labels;
+
+    logi( "Headless: %lu commands, %lu labels in %u ms (%lu commands/s, %lu labels/s)\n",
+          commands, labels, duration,
+          (unsigned long)(commands * 1000.0 / duration),
+          (unsigned long)(labels * 1000.0 / duration) );
+}
+
+void ONScripter::enterHeadless()
+{
+    // the same as --headless from here on, leaveHeadless() shows the next choice
+    headless_flag = true;
+    headless_start = SDL_GetTicks();
+    headless_start_commands = num_executed_commands;
+    headless_start_labels = num_entered_labels;
+    setInternalSkipMode(true);
+
+    if ( audio_open_flag ){
+        Mix_CloseAudio();
+        audio_open_flag = false;
+    }
+}
+
+void ONScripter::leaveHeadless()
+{
+    // the choice is shown and played from here as if the script had been skipped to it
+    reportHeadless();
+    headless_flag = false;
+    setInternalSkipMode(false);
+
+    openAudio();
+    if ( music_file_name )
+        playSound(music_file_name, SOUND_MUSIC | SOUND_MIDI, music_play_loop_flag, MIX_BGM_CHANNEL);
+    repaintCommand();
+}
+
+void ONScripter::pickHeadlessButton()
+{
+    // the option listed first, as the lowest number is usually the one that moves on
+    int no = 0;
+    ButtonLink *bl = root_button_link.next;
+    while( bl ){
+        if ( bl->no > 0 && (no == 0 || bl->no < no) ) no = bl->no;
+        bl = bl->next;
+    }
+
+    current_button_state.button = no;
+    if ( no > 0 ) sprintf(current_button_state.str, "S%d", no);
+    else          sprintf(current_button_state.str, "RETURN");
+}
+
 void ONScripter::enableEdit()
 {
     edit_flag = true;
@@ -452,6 +610,13 @@ int ONScripter::openScript()
     return ScriptParser::openScript();
 }
 
+void ONScripter::setupReader()
+{
+    // surfaces decoded from the previous archives must not be shown again
+    image_cache.clear();
+    ScriptParser::setupReader();
+}
+
 int ONScripter::init()
 {
     initSDL();
@@ -551,6 +716,7 @@ int ONScripter::init()
     fadeout_music_file_name = NULL;
     music_buffer = NULL;
     music_info = NULL;
+    music_stream = NULL;
 
     layer_smpeg_buffer = NULL;
     layer_smpeg_loop_flag = false;
@@ -581,12 +747,21 @@ int ONScripter::init()
     loadEnvData();
     defineresetCommand();
 
+    prefetcher.start( &script_h.cBR );
+    if ( prerender_text_flag ) text_prerenderer.start( prerenderGlyph, this );
+
     readToken();
 
-    if ( !sentence_font.openFont( &font_cache, font_file, screen_ratio1, screen_ratio2) ){
+    Uint32 font_start = SDL_GetTicks();
+    bool font_opened = sentence_font.openFont( &font_cache, font_file, screen_ratio1, screen_ratio2) != NULL;
+#ifdef ANDROID
+    font_open_time = SDL_GetTicks() - font_start;
+#endif
+    if ( !font_opened ){
         loge( stderr, "can't open font file: %s\n", font_file );
         return -1;
     }
+    headless_start = SDL_GetTicks();
     
     return 0;
 }
@@ -611,6 +786,8 @@ void ONScripter::reset()
     event_mode = IDLE_EVENT_MODE;
     all_sprite_hide_flag = false;
     all_sprite2_hide_flag = false;
+    gpu_pending_flag = false;
+    image_cache.clear();
 
     if (breakup_cells) delete[] breakup_cells;
     if (breakup_mask) delete[] breakup_mask;
@@ -753,8 +930,8 @@ void ONScripter::flush( int refresh_mode, SDL_Rect *rect, bool clear_dirty_flag,
     else{
         if ( rect ) dirty_rect.add( *rect );
 
-        if (dirty_rect.bounding_box.w * dirty_rect.bounding_box.h > 0)
-            flushDirect( dirty_rect.bounding_box, refresh_mode );
+        if (dirty_rect.num_rects > 0)
+            flushDirect( dirty_rect, refresh_mode );
     }
     
     if ( clear_dirty_flag ) dirty_rect.clear();
@@ -763,7 +940,11 @@ void ONScripter::flush( int refresh_mode, SDL_Rect *rect, bool clear_dirty_flag,
 void ONScripter::flushDirect( SDL_Rect &rect, int refresh_mode )
 {
     //printf("flush %d: %d %d %d %d\n", refresh_mode, rect.x, rect.y, rect.w, rect.h );
-    
+    if (rect.w <= 0 || rect.h <= 0) return;
+    if (headless_flag) return;
+
+    if (gpu_compositor.isEnabled() && flushGpu( 1, &rect, refresh_mode )) return;
+
     refreshSurface( accumulation_surface, &rect, refresh_mode );
 #ifdef USE_SDL_RENDERER
     SDL_Rect src_rect = {0, 0, screen_width, screen_height};
@@ -783,6 +964,52 @@ void ONScripter::flushDirect( SDL_Rect &rect, int refresh_mode )
         SDL_UpdateRect( screen_surface, dst_rect.x, dst_rect.y, dst_rect.w, dst_rect.h );
     }
 #endif
+#ifdef ANDROID
+    if (startup_timing_pending) sendStartupTiming();
+#endif
+}
+
+void ONScripter::flushDirect( DirtyRect &region, int refresh_mode )
+{
+    if (headless_flag) return;
+
+    // each rect is uploaded on its own, so a glyph costs a small texture update
+    // instead of the bounding box of everything drawn since the last flush
+    if (gpu_compositor.isEnabled() && flushGpu( region.num_rects, region.rects, refresh_mode )) return;
+
+    int i;
+    for (i=0 ; i<region.num_rects ; i++)
+        refreshSurface( accumulation_surface, &region.rects[i], refresh_mode );
+#ifdef USE_SDL_RENDERER
+    SDL_Rect src_rect = {0, 0, screen_width, screen_height};
+    SDL_Rect dst_rect = {(device_width -screen_device_width )/2, 
+                         (device_height-screen_device_height)/2,
+                         screen_device_width, screen_device_height};
+    SDL_LockSurface(accumulation_surface);
+    for (i=0 ; i<region.num_rects ; i++){
+        SDL_Rect &rect = region.rects[i];
+        SDL_UpdateTexture(texture, &rect, (unsigned char*)accumulation_surface->pixels+accumulation_surface->pitch*rect.y+rect.x*sizeof(ONSBuf), accumulation_surface->pitch);
+    }
+    SDL_UnlockSurface(accumulation_surface);
+    SDL_RenderCopy(renderer, texture, &src_rect, &dst_rect);
+    SDL_RenderPresent(renderer);
+#else
+    SDL_Rect dst_rects[MAX_DIRTY_RECTS];
+    int num_dst_rects = 0;
+    for (i=0 ; i<region.num_rects ; i++){
+        SDL_Rect dst_rect = region.rects[i];
+        if (AnimationInfo::doClipping(&dst_rect, &screen_rect) || (dst_rect.w==0 && dst_rect.h==0)) continue;
+        SDL_BlitSurface( accumulation_surface, &dst_rect, screen_surface, &dst_rect );
+        if (dst_rect.w > 0 && dst_rect.h > 0)
+            dst_rects[num_dst_rects++] = dst_rect;
+    }
+    // SDL_UpdateRects sends every rect to glTexSubImage2D and presents once
+    if (num_dst_rects > 0)
+        SDL_UpdateRects( screen_surface, num_dst_rects, dst_rects );
+#endif
+#ifdef ANDROID
+    if (startup_timing_pending) sendStartupTiming();
+#endif
 }
 
 void ONScripter::flushDirectYUV(SDL_Overlay *overlay)
@@ -944,7 +1171,8 @@ void ONScripter::executeLabel()
             continue;
         }
 
-        if ( kidokuskip_flag && skip_mode & SKIP_NORMAL && kidokumode_flag && !script_h.isKidoku() ) setInternalSkipMode(false);
+        if ( headless_flag ) setInternalSkipMode(true);
+        else if ( kidokuskip_flag && skip_mode & SKIP_NORMAL && kidokumode_flag && !script_h.isKidoku() ) setInternalSkipMode(false);
 
         int ret = parseLine();
         if ( ret & (RET_SKIP_LINE | RET_EOL) ){
@@ -957,6 +1185,7 @@ void ONScripter::executeLabel()
 
     current_label_info = script_h.lookupLabelNext( current_label_info.name );
     current_line = 0;
+    num_entered_labels++;
 
     if ( current_label_info.start_address != NULL ){
         script_h.setCurrent( current_label_info.label_header );
@@ -983,14 +1212,21 @@ int ONScripter::parseLine( )
     else if (cmd[0] == '*') return RET_CONTINUE;
     else if (cmd[0] == ':') return RET_CONTINUE;
 
+    if ( headless_command_limit > 0 && num_executed_commands >= headless_command_limit ) endCommand();
+    num_executed_commands++;
+
     if (script_h.isText()){
         if ( current_mode == DEFINE_MODE ) errorAndExit( "text cannot be displayed in define section." );
         return textCommand();
     }
 
-    if (cmd[0] != '_'){
+    bool user_func_flag = (cmd[0] != '_');
+    if (!user_func_flag) cmd++;
+    unsigned int hash = hashCommand( cmd );
+
+    if (user_func_flag){
         if (cmd[0] >= 'a' && cmd[0] <= 'z'){
-            UserFuncHash &ufh = user_func_hash[cmd[0]-'a'];
+            UserFuncHash &ufh = user_func_hash[hash & (USER_FUNC_HASH_SIZE-1)];
             UserFuncLUT *uf = ufh.root.next;
             while(uf){
                 if (!strcmp( uf->command, cmd )){
@@ -1009,17 +1245,15 @@ int ONScripter::parseLine( )
             }
         }
     }
-    else{
-        cmd++;
-    }
 
     if (cmd[0] >= 'a' && cmd[0] <= 'z'){
-        FuncHash &fh = func_hash[cmd[0]-'a'];
-        for (int i=0 ; i<fh.num ; i++){
-            if ( !strcmp( fh.func[i].command, cmd ) ){
+        unsigned int i = hash & (FUNC_TABLE_SIZE-1);
+        while (func_table[i].func){
+            if ( func_table[i].hash == hash && !strcmp( func_table[i].func->command, cmd ) ){
                 //if (saveon_flag) saveSaveFile(false);
-                return (this->*fh.func[i].method)();
+                return (this->*func_table[i].func->method)();
             }
+            i = (i+1) & (FUNC_TABLE_SIZE-1);
         }
     }
 
@@ -1396,6 +1630,10 @@ void ONScripter::quit()
         Mix_FreeMusic( music_info );
         music_info = NULL;
     }
+    if ( music_stream ){
+        delete music_stream;
+        music_stream = NULL;
+    }
 }
 
 void ONScripter::disableGetButtonFlag()
@@ -1497,6 +1735,18 @@ void ONScripter::sendException(ScriptException& exception) {
 void ONScripter::sendReady() {
     JNIWrapper wrapper(JNI_VM);
     wrapper.env->CallVoidMethod( JavaONScripter, JavaSendReady);
+
+    first_frame_start = SDL_GetTicks();
+    startup_timing_pending = true;
+}
+
+void ONScripter::sendStartupTiming() {
+    startup_timing_pending = false;
+
+    JNIWrapper wrapper(JNI_VM);
+    wrapper.env->CallVoidMethod( JavaONScripter, JavaSendStartupTiming,
+                                 (jint)archive_open_time, (jint)script_open_time,
+                                 (jint)font_open_time, (jint)(SDL_GetTicks() - first_frame_start) );
 }
 
 void ONScripter::sendUserMessage(MessageType_t type) {
@@ -26,6 +26,13 @@
 
 #include "ScriptParser.h"
 #include "DirtyRect.h"
+#include "SurfaceCache.h"
+#include "ResourcePrefetcher.h"
+#include "ArchiveStream.h"
+#include "BandCompositor.h"
+#include "GpuCompositor.h"
+#include "GlyphCache.h"
+#include "TextPrerenderer.h"
 #include "ButtonLink.h"
 #include "FontInfo.h"
 #include <SDL_image.h>
@@ -49,6 +56,7 @@
 #define MAX_TEXTURE_NUM 16
 #define MAX_PARAM_NUM 100
 #define MAX_EFFECT_NUM 256
+#define FUNC_TABLE_SIZE 1024 // a power of 2, about 3 times the number of commands
 
 #define DEFAULT_VOLUME 100
 #define ONS_MIX_CHANNELS 50
@@ -107,6 +115,7 @@ public:
     static jmethodID JavaReceiveMessage;
     static jmethodID JavaSendException;
     static jmethodID JavaSendReady;
+    static jmethodID JavaSendStartupTiming;
     static jmethodID JavaOnLoadFile;
     static jmethodID JavaOnFinish;
 
@@ -130,6 +139,7 @@ public:
         JavaSendException = jniEnv->GetMethodID(JavaONScripterClass,"receiveException",
             "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
         JavaSendReady = jniEnv->GetMethodID(JavaONScripterClass, "receiveReady", "()V");
+        JavaSendStartupTiming = jniEnv->GetMethodID(JavaONScripterClass, "receiveStartupTiming", "(IIII)V");
     }
 
     static double Sentence_font_scale;
@@ -142,6 +152,8 @@ public:
     }
 
     static bool Use_java_io;
+
+    SurfaceCache &getImageCache(){ return image_cache; };
 #endif
 
     // ----------------------------------------
@@ -154,6 +166,8 @@ public:
     void setDLLFile(const char *filename);
     void setArchivePath(const char *path);
     void setSaveDir(const char *path);
+    void setImageCacheSize(size_t bytes);
+    void setPrefetchSize(size_t bytes);
 #ifdef ANDROID
     void enableHQAudio();
 #endif
@@ -163,6 +177,15 @@ public:
     void enableWheelDownAdvance();
     void disableRescale();
     void useParentResources();
+    void useMemoryMappedArchives();
+    void useHeaderCache();
+    void useScriptCache();
+    void useStreamingDecode();
+    void useParallelCompositing();
+    void useGpuCompositing();
+    void useTextPrerendering();
+    void useHeadless();
+    void setHeadlessCommandLimit(unsigned long limit);
     void renderFontOutline();
     void enableEdit();
     void setKeyEXE(const char *path);
@@ -185,12 +208,16 @@ public:
         char command[30];
         FuncList method;
     };
-    struct FuncHash{
+    struct FuncTable{
         FuncLUT *func;
-        int num;
-    } func_hash['z'-'a'+1];
+        unsigned int hash;
+    } func_table[FUNC_TABLE_SIZE];
 
     void makeFuncLUT();
+    void reportHeadless();
+    void enterHeadless();
+    void leaveHeadless();
+    void pickHeadlessButton();
 
     int yesnoboxCommand();
     int wavestopCommand();
@@ -377,6 +404,12 @@ public:
 #ifdef ANDROID
     void sendException(ScriptException& exception);
     void sendReady();
+    void sendStartupTiming();
+
+    // start-up phases in milliseconds, sent to Java once the first frame is on screen
+    Uint32 font_open_time;
+    Uint32 first_frame_start;
+    bool startup_timing_pending;
 #endif
 
     void NSDCallCommand(int texnum, const char *str1, int proc, const char *str2);
@@ -390,6 +423,7 @@ public:
     void stopSMPEG();
 
     void startAndloadSaveFile(int no);
+    void skipToNextChoice();
     
 private:
     // ----------------------------------------
@@ -421,6 +455,14 @@ private:
     int  getret_int;
     bool enable_wheeldown_advance_flag;
     bool disable_rescale_flag;
+    bool stream_archive_flag;
+    bool parallel_composite_flag;
+    bool gpu_composite_flag;
+    bool prerender_text_flag;
+    bool headless_flag; // nothing is shown or played, the script runs skipped until a choice
+    unsigned long headless_command_limit; // if not 0, the first option of each choice is taken until this many commands have run
+    Uint32 headless_start;
+    unsigned long headless_start_commands, headless_start_labels;
     bool edit_flag;
     char *key_exe_file;
 #ifdef ANDROID
@@ -484,11 +526,13 @@ private:
 
     void initSDL();
     void openAudio(int freq=-1);
+    void setupReader(); // called when the archive reader is replaced
     void reset(); // called on definereset
     void resetSub(); // called on reset
     void resetSentenceFont();
     void flush( int refresh_mode, SDL_Rect *rect=NULL, bool clear_dirty_flag=true, bool direct_flag=false );
     void flushDirect( SDL_Rect &rect, int refresh_mode );
+    void flushDirect( DirtyRect &region, int refresh_mode );
     void flushDirectYUV(SDL_Overlay *overlay);
     void mouseOverCheck( int x, int y );
 public:
@@ -573,6 +617,7 @@ private:
     int  calcDurationToNextAnimation();
     void proceedAnimation(int current_time);
     void setupAnimationInfo(AnimationInfo *anim, FontInfo *info=NULL, bool single_line=false, ScriptDecoder* decoder=NULL);
+    char *createImageCacheKey( AnimationInfo *anim );
     void parseTaggedString(AnimationInfo *anim );
     void drawTaggedSurface(SDL_Surface *dst_surface, AnimationInfo *anim, SDL_Rect &clip);
     void stopAnimation(int click);
@@ -585,11 +630,14 @@ private:
     int  effect_timer_resolution;
     int  effect_start_time;
     int  effect_start_time_old;
+    bool gpu_effect_flag; // the frames of the effect are drawn by gpu_compositor
     
     bool setEffect( EffectLink *effect, bool generate_effect_dst, bool update_backup_surface );
     bool doEffect( EffectLink *effect, bool clear_dirty_region=true );
     void drawEffect( SDL_Rect *dst_rect, SDL_Rect *src_rect, SDL_Surface *surface );
+    void clearEffect( SDL_Rect *rect );
     void generateMosaic( SDL_Surface *src_surface, int level );
+    bool loadEffectMaskTexture( SDL_Surface *mask_surface );
     
     struct BreakupCell {
         int cell_x, cell_y;
@@ -602,6 +650,7 @@ private:
     bool *breakup_cellforms, *breakup_mask;
     void buildBreakupCellforms();
     void buildBreakupMask();
+    bool loadBreakupTexture();
     void initBreakup( char *params );
     void effectBreakup( char *params, int duration );
 
@@ -643,6 +692,7 @@ private:
     bool keyPressEvent( SDL_KeyboardEvent *event );
     void timerEvent(bool init_flag);
     void runEventLoop();
+    int waitSDLEvent(SDL_Event *event);
 
     // ----------------------------------------
     // variables and methods relevant to file/file2
@@ -696,6 +746,33 @@ private:
     unsigned long tmp_image_buf_length;
     unsigned long mean_size_of_loaded_images;
     unsigned long num_loaded_images;
+    SurfaceCache image_cache; // decoded images keyed by file name and tag parameters
+    ResourcePrefetcher prefetcher; // reads files named ahead of the current command
+    BandCompositor compositor; // runs drawLayers() on horizontal bands
+    GpuCompositor gpu_compositor; // draws the top layers as textures
+
+    struct RefreshBandData{
+        ONScripter *ons;
+        SDL_Surface *surface;
+        int start, end;
+    };
+
+    enum { LAYER_ANIM       = 0,
+           LAYER_TEXT       = 1,
+           LAYER_SHADOW     = 2,
+           LAYER_NEGA       = 3,
+           LAYER_MONOCHROME = 4
+    };
+    struct Layer{
+        int type;
+        AnimationInfo *anim;
+    };
+    Layer *layer; // from the bottom to the top, made by buildLayerList()
+    int num_layers, max_layers;
+    Layer *gpu_layer; // the layers drawn by gpu_compositor at the last flush
+    int num_gpu_layers, max_gpu_layers;
+    bool gpu_pending_flag; // accumulation_surface lacks gpu_layer
+    int gpu_refresh_mode;
 
     unsigned char *resize_buffer;
     size_t resize_buffer_size;
@@ -712,6 +789,14 @@ private:
     void makeNegaSurface( SDL_Surface *surface, SDL_Rect &clip );
     void makeMonochromeSurface( SDL_Surface *surface, SDL_Rect &clip );
     void refreshSurface( SDL_Surface *surface, SDL_Rect *clip_src, int refresh_mode = REFRESH_NORMAL_MODE );
+    void compositeLayers( SDL_Surface *surface, SDL_Rect *clip_src, int start, int end );
+    static void refreshBand( void *data, SDL_Rect &band );
+    void addLayer( int type, AnimationInfo *anim=NULL );
+    void buildLayerList( int refresh_mode );
+    void drawLayers( SDL_Surface *surface, SDL_Rect &clip, int start, int end );
+    bool canDrawOnGpu( Layer &l );
+    bool flushGpu( int num_rects, SDL_Rect *rects, int refresh_mode );
+    void flattenGpuLayers();
     void refreshSprite( int sprite_no, bool active_flag, int cell_no, SDL_Rect *check_src_rect, SDL_Rect *check_dst_rect );
     void createBackground();
 
@@ -787,6 +872,7 @@ private:
     Uint32 mp3fadein_duration_internal;
     char *fadeout_music_file_name;
     Mix_Music *music_info;
+    ArchiveStream *music_stream; // read by SDL_mixer while music_info plays
     char *loop_bgm_name[2];
     
     Mix_Chunk *wave_sample[ONS_MIX_CHANNELS+ONS_MIX_EXTRA_CHANNELS];
@@ -801,6 +887,7 @@ private:
     SMPEG_Filter layer_smpeg_filter;
 #endif
     
+    SDL_RWops *openStreamRW(const char *filename, ArchiveStream **stream, int *location=NULL);
     int playSound(const char *filename, int format, bool loop_flag, int channel=0);
     void playCDAudio();
     int playWave(Mix_Chunk *chunk, int format, bool loop_flag, int channel);
@@ -859,11 +946,17 @@ private:
     bool draw_cursor_flag;
     int  indent_offset;
     FontInfo::FontContainer font_cache;
+    GlyphCache glyph_cache; // rendered glyphs of every font in font_cache
+    TextPrerenderer text_prerenderer; // fills glyph_cache with the coming text while the script waits
 
     void setwindowCore();
     
     void shiftHalfPixelX(SDL_Surface *surface);
     void shiftHalfPixelY(SDL_Surface *surface);
+    GlyphCache::Glyph *getGlyph( TTF_Font *font, int style, unsigned short unicode );
+    GlyphCache::Glyph *getOutlineGlyph( TTF_Font *font_s, int style, unsigned short unicode, GlyphCache::Glyph *glyph );
+    static void prerenderGlyph( void *data, void *font, void *font_s, int style, unsigned short unicode );
+    void prerenderText();
     void drawGlyph( SDL_Surface *dst_surface, FontInfo *info, SDL_Color &color, char *text, int xy[2], AnimationInfo *cache_info, SDL_Rect *clip, SDL_Rect &dst_rect, ScriptDecoder* decoder  );
     void drawChar( char* text, FontInfo *info, bool flush_flag, bool lookback_flag, SDL_Surface *surface, AnimationInfo *cache_info, SDL_Rect *clip=NULL, ScriptDecoder* decoder=NULL );
     void drawString( const char *str, uchar3 color, FontInfo *info, bool flush_flag, SDL_Surface *surface, SDL_Rect *rect = NULL, AnimationInfo *cache_info=NULL, bool pack_hankaku=true, bool single_line=false, ScriptDecoder* decoder=NULL );
@@ -126,6 +126,17 @@ void ONScripter::proceedAnimation(int current_time)
     }
 }
 
+char *ONScripter::createImageCacheKey( AnimationInfo *anim )
+{
+    const char *mask_file_name = anim->mask_file_name ? anim->mask_file_name : "";
+    char *key = new char[ strlen(anim->file_name) + strlen(mask_file_name) + 48 ];
+    sprintf( key, "%s|%s|%d|%d|%02x%02x%02x", anim->file_name, mask_file_name,
+             anim->trans_mode, anim->num_of_cells,
+             anim->direct_color[0], anim->direct_color[1], anim->direct_color[2] );
+
+    return key;
+}
+
 void ONScripter::setupAnimationInfo( AnimationInfo *anim, FontInfo *info, bool single_line, ScriptDecoder* decoder )
 {
     if (anim->trans_mode != AnimationInfo::TRANS_STRING &&
@@ -207,6 +218,26 @@ void ONScripter::setupAnimationInfo( AnimationInfo *anim, FontInfo *info, bool s
         }
     }
     else{
+        // the decoded, masked and rescaled image only depends on the file and these tag parameters
+        char *cache_key = NULL;
+        if (image_cache.isEnabled() && anim->file_name[0] != '>'){
+            cache_key = createImageCacheKey( anim );
+            int orig_w, orig_h;
+            SDL_Surface *surface = image_cache.get( cache_key, &orig_w, &orig_h );
+            if (surface){
+                if (filelog_flag){
+                    script_h.findAndAddLog( script_h.log_info[ScriptHandler::FILE_LOG], anim->file_name, true );
+                    if (anim->trans_mode == AnimationInfo::TRANS_MASK && anim->mask_file_name)
+                        script_h.findAndAddLog( script_h.log_info[ScriptHandler::FILE_LOG], anim->mask_file_name, true );
+                }
+                delete[] cache_key;
+                anim->orig_pos.w = orig_w;
+                anim->orig_pos.h = orig_h;
+                anim->setImage( surface, texture_format );
+                return;
+            }
+        }
+
         bool has_alpha;
         int location;
         SDL_Surface *surface = loadImage( anim->file_name, &has_alpha, &location, &anim->default_alpha );
@@ -234,6 +265,11 @@ void ONScripter::setupAnimationInfo( AnimationInfo *anim, FontInfo *info, bool s
             SDL_FreeSurface(src_s);
         }
 
+        if (cache_key){
+            image_cache.put( cache_key, surface, anim->orig_pos.w, anim->orig_pos.h );
+            delete[] cache_key;
+        }
+
         anim->setImage( surface, texture_format );
 
         if ( surface_m ) SDL_FreeSurface(surface_m);
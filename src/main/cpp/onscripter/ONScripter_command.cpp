@@ -516,6 +516,7 @@ int ONScripter::sp_rgb_gradationCommand()
     }
     
     SDL_UnlockSurface(surface);
+    ai->updateImageSerial();
     
     if ( ai->visible )
         dirty_rect.add( ai->pos );
@@ -998,6 +999,8 @@ int ONScripter::savescreenshotCommand()
         SDL_SaveBMP_RW(surface, rwops, 1);
     }
     SDL_FreeSurface(surface);
+    // a script may show the new file, e.g. as a save thumbnail
+    image_cache.remove(buf);
 
     return RET_CONTINUE;
 }
@@ -1148,6 +1151,7 @@ int ONScripter::quakeCommand()
     tmp_effect.effect   = MAX_EFFECT_NUM + quake_type;
 
     dirty_rect.fill( screen_width, screen_height );
+    flattenGpuLayers();
     SDL_BlitSurface( accumulation_surface, NULL, effect_dst_surface, NULL );
 
     if (setEffect(&tmp_effect, true, true)) return RET_CONTINUE;
@@ -1296,6 +1300,7 @@ int ONScripter::ofscopyCommand()
     resizeSurface( tmp_surface, accumulation_surface );
     SDL_FreeSurface(tmp_surface);
 #else
+    flattenGpuLayers();
     SDL_BlitSurface(screen_surface, NULL, accumulation_surface, NULL);
 #endif
 
@@ -2043,6 +2048,7 @@ int ONScripter::layermessageCommand()
             // workaround to set a non-NULL value in the second argument
             SMPEG_setdisplay( layer_smpeg_sample, accumulation_surface, NULL,  NULL);
 #else
+            flattenGpuLayers();
             SMPEG_setdisplay( layer_smpeg_sample, screen_surface, NULL,  NULL);
 #endif            
         }
@@ -2430,6 +2436,7 @@ int ONScripter::getscreenshotCommand()
     SDL_RenderReadPixels(renderer, &rect, screenshot_surface->format->format, screenshot_surface->pixels, screenshot_surface->pitch);
     SDL_UnlockSurface(screenshot_surface);
 #else
+    flattenGpuLayers();
     SDL_BlitSurface(screen_surface, NULL, screenshot_surface, NULL);
 #endif
 
@@ -2917,6 +2924,7 @@ int ONScripter::erasetextwindowCommand()
 
 int ONScripter::endCommand()
 {
+    if ( headless_flag ) reportHeadless();
     quit();
     stopSMPEG();
 #ifdef ANDROID
@@ -2997,6 +3005,7 @@ int ONScripter::drawtextCommand()
     clip.x = clip.y = 0;
     clip.w = accumulation_surface->w;
     clip.h = accumulation_surface->h;
+    flattenGpuLayers();
     text_info.blendOnSurface( accumulation_surface, 0, 0, clip );
     
     return RET_CONTINUE;
@@ -3027,6 +3036,7 @@ int ONScripter::drawsp3Command()
         ai->inv_mat[1][1] =  ai->mat[0][0] * 1000 / denom;
     }
 
+    flattenGpuLayers();
     ai->blendOnSurface2( accumulation_surface, x, y, screen_rect, alpha );
     ai->setCell(old_cell_no);
 
@@ -3049,6 +3059,7 @@ int ONScripter::drawsp2Command()
     ai->calcAffineMatrix();
     ai->setCell(cell_no);
 
+    flattenGpuLayers();
     ai->blendOnSurface2( accumulation_surface, ai->pos.x, ai->pos.y, screen_rect, alpha );
 
     return RET_CONTINUE;
@@ -3069,6 +3080,7 @@ int ONScripter::drawspCommand()
     clip.x = clip.y = 0;
     clip.w = accumulation_surface->w;
     clip.h = accumulation_surface->h;
+    flattenGpuLayers();
     ai->blendOnSurface( accumulation_surface, x, y, clip, alpha );
     ai->setCell(old_cell_no);
 
@@ -3081,6 +3093,7 @@ int ONScripter::drawfillCommand()
     int g = script_h.readInt();
     int b = script_h.readInt();
 
+    gpu_pending_flag = false; // the whole of accumulation_surface is drawn
     SDL_FillRect( accumulation_surface, NULL, SDL_MapRGBA( accumulation_surface->format, r, g, b, 0xff) );
     
     return RET_CONTINUE;
@@ -3088,6 +3101,7 @@ int ONScripter::drawfillCommand()
 
 int ONScripter::drawclearCommand()
 {
+    gpu_pending_flag = false; // the whole of accumulation_surface is drawn
     SDL_FillRect( accumulation_surface, NULL, SDL_MapRGBA( accumulation_surface->format, 0, 0, 0, 0xff) );
     
     return RET_CONTINUE;
@@ -3099,6 +3113,7 @@ int ONScripter::drawbgCommand()
     clip.x = clip.y = 0;
     clip.w = accumulation_surface->w;
     clip.h = accumulation_surface->h;
+    flattenGpuLayers();
     bg_info.blendOnSurface( accumulation_surface, bg_info.pos.x, bg_info.pos.y, clip );
     
     return RET_CONTINUE;
@@ -3115,6 +3130,7 @@ int ONScripter::drawbg2Command()
     bi.rot     = script_h.readInt();
     bi.calcAffineMatrix();
 
+    flattenGpuLayers();
     bi.blendOnSurface2( accumulation_surface, bi.pos.x, bi.pos.y, screen_rect, 255 );
 
     return RET_CONTINUE;
@@ -3706,6 +3722,8 @@ int ONScripter::bltCommand()
 
     if (btndef_info.image_surface == NULL) return RET_CONTINUE;
     if (dw == 0 || dh == 0 || sw == 0 || sh == 0) return RET_CONTINUE;
+
+    flattenGpuLayers();
     
     if ( sw == dw && sw > 0 && sh == dh && sh > 0 ){
 
@@ -4161,6 +4179,7 @@ void ONScripter::NSDPresentRectCommand(int x1, int y1, int x2, int y2)
     clip.h = accumulation_surface->h;
     if ( AnimationInfo::doClipping( &clip, &clip_src ) ) return;
 
+    flattenGpuLayers();
     for (int i=MAX_TEXTURE_NUM-1 ; i>0 ; i--)
         if (texture_info[i].image_surface && texture_info[i].visible)
             drawTaggedSurface( accumulation_surface, &texture_info[i], clip );
@@ -31,6 +31,8 @@ bool ONScripter::setEffect( EffectLink *effect, bool generate_effect_dst, bool u
 {
     if ( effect->effect == 0 ) return true;
 
+    flattenGpuLayers();
+
     if (update_backup_surface)
         refreshSurface(backup_surface, &dirty_rect.bounding_box, REFRESH_NORMAL_MODE);
     
@@ -64,6 +66,14 @@ bool ONScripter::setEffect( EffectLink *effect, bool generate_effect_dst, bool u
          effect_no == 16 || effect_no == 17 )
         dirty_rect.fill( screen_width, screen_height );
 
+    // every effect only moves, masks or blends the two images, the GPU draws
+    // their frames without touching accumulation_surface
+    gpu_effect_flag = false;
+    if ( gpu_compositor.isEnabled() && effect_no >= 2 )
+        gpu_effect_flag = gpu_compositor.loadEffect( effect_src_surface, effect_dst_surface, texture_format );
+    if ( gpu_effect_flag && (effect_no == 15 || effect_no == 18) )
+        gpu_effect_flag = loadEffectMaskTexture( effect->anim.image_surface );
+
     if (effect_no == 99){ // dll-based
         if (effect->anim.image_name != NULL){
             printf("dll effect: Got dll '%s'\n", effect->anim.image_name);
@@ -113,6 +123,8 @@ bool ONScripter::doEffect( EffectLink *effect, bool clear_dirty_region )
     /* Execute effect */
     //printf("Effect number %d %d\n", effect_no, effect_duration );
 
+    if ( gpu_effect_flag ) gpu_compositor.beginEffect();
+
     bool not_implemented = false;
     switch ( effect_no ){
       case 0: // Instant display
@@ -226,7 +238,10 @@ bool ONScripter::doEffect( EffectLink *effect, bool clear_dirty_region )
         
       case 10: // Cross fade
         height = 256 * effect_counter / effect_duration;
-        alphaBlend( NULL, ALPHA_BLEND_CONST, height, &dirty_rect.bounding_box );
+        if ( gpu_effect_flag )
+            gpu_compositor.drawEffect( true, dirty_rect.bounding_box, dirty_rect.bounding_box, height );
+        else
+            alphaBlend( NULL, ALPHA_BLEND_CONST, height, &dirty_rect.bounding_box );
         break;
         
       case 11: // Left scroll
@@ -298,7 +313,11 @@ bool ONScripter::doEffect( EffectLink *effect, bool clear_dirty_region )
         break;
 
       case 15: // Fade with mask
-        alphaBlend( effect->anim.image_surface, ALPHA_BLEND_FADE_MASK, 256 * effect_counter / effect_duration, &dirty_rect.bounding_box );
+        height = 256 * effect_counter / effect_duration;
+        if ( gpu_effect_flag ) // the pixels whose mask is below height are replaced
+            gpu_compositor.drawEffectMask( dirty_rect.bounding_box, dirty_rect.bounding_box, 255 - height );
+        else
+            alphaBlend( effect->anim.image_surface, ALPHA_BLEND_FADE_MASK, height, &dirty_rect.bounding_box );
         break;
 
       case 16: // Mosaic out
@@ -310,7 +329,11 @@ bool ONScripter::doEffect( EffectLink *effect, bool clear_dirty_region )
         break;
         
       case 18: // Cross fade with mask
-        alphaBlend( effect->anim.image_surface, ALPHA_BLEND_CROSSFADE_MASK, 256 * effect_counter * 2 / effect_duration, &dirty_rect.bounding_box );
+        height = 256 * effect_counter * 2 / effect_duration;
+        if ( gpu_effect_flag ) // the blend factor is height - mask
+            gpu_compositor.blendEffectMask( dirty_rect.bounding_box, height - 255 );
+        else
+            alphaBlend( effect->anim.image_surface, ALPHA_BLEND_CROSSFADE_MASK, height, &dirty_rect.bounding_box );
         break;
 
       case (MAX_EFFECT_NUM + 0): // quakey
@@ -330,7 +353,7 @@ bool ONScripter::doEffect( EffectLink *effect, bool clear_dirty_region )
             quake_rect.y = screen_height + amp;
             quake_rect.h = -amp;
         }
-        SDL_FillRect( accumulation_surface, &quake_rect, SDL_MapRGBA( accumulation_surface->format, 0, 0, 0, 0xff ) );
+        clearEffect( &quake_rect );
         break;
         
       case (MAX_EFFECT_NUM + 1): // quakex
@@ -350,13 +373,13 @@ bool ONScripter::doEffect( EffectLink *effect, bool clear_dirty_region )
             quake_rect.x = screen_width + amp;
             quake_rect.w = -amp;
         }
-        SDL_FillRect( accumulation_surface, &quake_rect, SDL_MapRGBA( accumulation_surface->format, 0, 0, 0, 0xff ) );
+        clearEffect( &quake_rect );
         break;
         
       case (MAX_EFFECT_NUM + 2): // quake
         dst_rect.x = effect->no*((int)(3.0*rand()/(RAND_MAX+1.0)) - 1) * 2;
         dst_rect.y = effect->no*((int)(3.0*rand()/(RAND_MAX+1.0)) - 1) * 2;
-        SDL_FillRect( accumulation_surface, NULL, SDL_MapRGBA( accumulation_surface->format, 0, 0, 0, 0xff ) );
+        clearEffect( NULL );
         drawEffect(&dst_rect, &src_rect, effect_dst_surface);
         break;
 
@@ -364,18 +387,16 @@ bool ONScripter::doEffect( EffectLink *effect, bool clear_dirty_region )
         if (effect->anim.image_name != NULL){
             if (!strncmp(effect->anim.image_name, "breakup.dll", 11)){
                 effectBreakup(effect->anim.image_name, effect_duration);
-            } else {
-                // do crossfade
-                height = 256 * effect_counter / effect_duration;
-                alphaBlend( NULL, ALPHA_BLEND_CONST, height, &dirty_rect.bounding_box );
-                not_implemented = true;
+                break;
             }
-        } else { //just in case no dll is given
-            // do crossfade
-            height = 256 * effect_counter / effect_duration;
-            alphaBlend( NULL, ALPHA_BLEND_CONST, height, &dirty_rect.bounding_box );
-            not_implemented = true;
         }
+        // do crossfade, also just in case no dll is given
+        height = 256 * effect_counter / effect_duration;
+        if ( gpu_effect_flag )
+            gpu_compositor.drawEffect( true, dirty_rect.bounding_box, dirty_rect.bounding_box, height );
+        else
+            alphaBlend( NULL, ALPHA_BLEND_CONST, height, &dirty_rect.bounding_box );
+        not_implemented = true;
         break;
     }
 
@@ -395,11 +416,15 @@ bool ONScripter::doEffect( EffectLink *effect, bool clear_dirty_region )
     }
 
     if ( effect_counter < effect_duration && effect_no != 1 ){
-        if ( effect_no != 0 ) flush( REFRESH_NONE_MODE, NULL, false );
+        if ( gpu_effect_flag )
+            gpu_compositor.endEffect();
+        else if ( effect_no != 0 )
+            flush( REFRESH_NONE_MODE, NULL, false );
     
         return true;
     }
     else{
+        gpu_effect_flag = false;
         SDL_BlitSurface( effect_dst_surface, &dirty_rect.bounding_box, accumulation_surface, &dirty_rect.bounding_box );
 
         if ( effect_no != 0 ) flush(REFRESH_NONE_MODE, NULL, clear_dirty_region);
@@ -424,16 +449,62 @@ void ONScripter::drawEffect(SDL_Rect *dst_rect, SDL_Rect *src_rect, SDL_Surface
         src_rect->w = clipped_rect.w;
         src_rect->h = clipped_rect.h;
     }
+
+    if (gpu_effect_flag){
+        gpu_compositor.drawEffect( surface == effect_dst_surface, *src_rect, *dst_rect );
+        return;
+    }
     
     SDL_BlitSurface(surface, src_rect, accumulation_surface, dst_rect);
 }
 
+void ONScripter::clearEffect( SDL_Rect *rect )
+{
+    if (gpu_effect_flag){
+        SDL_Rect clear_rect = rect ? *rect : screen_rect;
+        uchar3 black = {0, 0, 0};
+        gpu_compositor.multiply( clear_rect, black );
+        return;
+    }
+
+    SDL_FillRect( accumulation_surface, rect, SDL_MapRGBA( accumulation_surface->format, 0, 0, 0, 0xff ) );
+}
+
+// the texture of the mask image has the inverted mask as its alpha, tiled the same way as alphaBlend()
+bool ONScripter::loadEffectMaskTexture( SDL_Surface *mask_surface )
+{
+    if ( !mask_surface ) return false;
+
+    SDL_PixelFormat *fmt = mask_surface->format;
+    Uint32 lowest_mask = (fmt->Rmask < fmt->Bmask) ? fmt->Rmask : fmt->Bmask;
+    Uint8  lowest_shift = (fmt->Rmask < fmt->Bmask) ? fmt->Rshift : fmt->Bshift;
+
+    Uint8 *alpha = new Uint8[screen_width * screen_height];
+    SDL_LockSurface( mask_surface );
+    for ( int i=0 ; i<screen_height ; i++ ){
+        ONSBuf *mask_buffer = (ONSBuf *)mask_surface->pixels + mask_surface->w * (i%mask_surface->h);
+        for ( int j=0 ; j<screen_width ; j++ )
+            alpha[i*screen_width+j] = 255 - ((mask_buffer[j%mask_surface->w] & lowest_mask) >> lowest_shift);
+    }
+    SDL_UnlockSurface( mask_surface );
+
+    bool ret = gpu_compositor.loadEffectMask( effect_dst_surface, alpha );
+    delete[] alpha;
+
+    return ret;
+}
+
 void ONScripter::generateMosaic( SDL_Surface *src_surface, int level )
 {
     int i, j, ii, jj;
     int width = 160;
     for ( i=0 ; i<level ; i++ ) width >>= 1;
 
+    if (gpu_effect_flag){
+        gpu_compositor.drawMosaic( src_surface, width );
+        return;
+    }
+
 #if defined(BPP16)
     int total_width = accumulation_surface->pitch / 2;
 #else
@@ -48,6 +48,25 @@ int n_cells, tot_frames, last_frame;
 int breakup_mode;
 SDL_Rect breakup_window;  // window of _cells_, not pixels
 
+// on the GPU the alpha of a pixel is 255 - BREAKUP_ALPHA_STEP * (the smallest
+// cellform holding it), or 0 outside breakup_mask, so one alpha test per cell
+// draws the same pixels as the loops over breakup_cellforms
+#define BREAKUP_ALPHA_STEP 15
+
+static void drawBreakupCellGpu( GpuCompositor &gpu, SDL_Rect &rect, int x, int y, int radius, int w, int h )
+{
+    SDL_Rect src_rect = rect, dst_rect;
+    if (src_rect.x + src_rect.w > w) src_rect.w = w - src_rect.x;
+    if (src_rect.y + src_rect.h > h) src_rect.h = h - src_rect.y;
+    if (src_rect.w <= 0 || src_rect.h <= 0) return;
+
+    dst_rect.x = x;
+    dst_rect.y = y;
+    dst_rect.w = src_rect.w;
+    dst_rect.h = src_rect.h;
+    gpu.drawEffectMask( src_rect, dst_rect, (radius < 0) ? 0 : 254 - BREAKUP_ALPHA_STEP * radius );
+}
+
 void ONScripter::buildBreakupCellforms()
 {
 // build the 32x32 mask for each cellform
@@ -151,6 +170,29 @@ void ONScripter::buildBreakupMask()
     SDL_UnlockSurface( effect_src_surface );
 }
 
+bool ONScripter::loadBreakupTexture()
+{
+    SDL_Surface *chr = (breakup_mode & BREAKUP_MODE_PILEUP) ? effect_dst_surface : effect_src_surface;
+    int w = BREAKUP_CELLWIDTH * BREAKUP_CELLFORMS;
+    int mask_w = BREAKUP_CELLWIDTH * BREAKUP_MAX_CELL_X;
+
+    Uint8 *alpha = new Uint8[chr->w * chr->h];
+    for (int y=0; y<chr->h; y++) {
+        int i = y % BREAKUP_CELLWIDTH;
+        for (int x=0; x<chr->w; x++) {
+            int j = x % BREAKUP_CELLWIDTH;
+            int n = 0;
+            while (n < BREAKUP_CELLFORMS && !breakup_cellforms[i*w + n*BREAKUP_CELLWIDTH + j]) n++;
+            alpha[y*chr->w + x] = breakup_mask[y*mask_w + x] ? 255 - BREAKUP_ALPHA_STEP * n : 0;
+        }
+    }
+
+    bool ret = gpu_compositor.loadEffectMask( chr, alpha );
+    delete[] alpha;
+
+    return ret;
+}
+
 void ONScripter::initBreakup( char *params )
 {
     while (*params != 0 && *params != '/') params++;
@@ -171,6 +213,8 @@ void ONScripter::initBreakup( char *params )
     if (!breakup_cells)
         breakup_cells = new BreakupCell[BREAKUP_MAX_CELLS];
     buildBreakupMask();
+    if (gpu_effect_flag)
+        gpu_effect_flag = loadBreakupTexture();
     int n_cell_x = breakup_window.w;
     int n_cell_y = breakup_window.h;
     int n_cell_diags = n_cell_x + n_cell_y;
@@ -229,7 +273,8 @@ void ONScripter::effectBreakup( char *params, int duration )
 
     int frame = tot_frames * effect_counter / duration;
     int frame_diff = frame - last_frame;
-    if (frame_diff == 0) 
+    // the GPU draws every frame from scratch
+    if (frame_diff == 0 && !gpu_effect_flag) 
         return;
 
     SDL_Surface *bg = effect_dst_surface;
@@ -243,8 +288,13 @@ void ONScripter::effectBreakup( char *params, int duration )
         x_dir = -x_dir;
         y_dir = -y_dir;
     }
-    SDL_BlitSurface(bg, NULL, accumulation_surface, NULL);
     SDL_Surface *dst = accumulation_surface;
+    if (gpu_effect_flag) {
+        SDL_Rect rect = {0, 0, chr->w, chr->h};
+        gpu_compositor.drawEffect( bg == effect_dst_surface, rect, rect );
+    }
+    else
+        SDL_BlitSurface(bg, NULL, accumulation_surface, NULL);
 
     if (breakup_mode & BREAKUP_MODE_JUMBLE) {
         x_dir = -x_dir;
@@ -257,8 +307,10 @@ void ONScripter::effectBreakup( char *params, int duration )
         y_dir = -y_dir;
     }
 
-    SDL_LockSurface( chr );
-    SDL_LockSurface( dst );
+    if (!gpu_effect_flag) {
+        SDL_LockSurface( chr );
+        SDL_LockSurface( dst );
+    }
     ONSBuf *chr_buf = (ONSBuf *)chr->pixels;
     ONSBuf *buffer  = (ONSBuf *)dst->pixels;
     bool *msk_buf = breakup_cellforms;
@@ -271,6 +323,10 @@ void ONScripter::effectBreakup( char *params, int duration )
         rect.h = BREAKUP_CELLWIDTH;
         breakup_cells[n].state += frame_diff;
         if (breakup_cells[n].state >= (BREAKUP_MOVE_FRAMES + BREAKUP_STILL_STATE)) {
+            if (gpu_effect_flag) {
+                drawBreakupCellGpu( gpu_compositor, rect, rect.x, rect.y, -1, chr->w, chr->h );
+                continue;
+            }
             for (int i=0; i<BREAKUP_CELLWIDTH; ++i) {
                 for (int j=0; j<BREAKUP_CELLWIDTH; ++j) {
                     int x = rect.x + j;
@@ -285,6 +341,10 @@ void ONScripter::effectBreakup( char *params, int duration )
         }
         else if (breakup_cells[n].state >= BREAKUP_MOVE_FRAMES) {
             breakup_cells[n].radius = breakup_cells[n].state - (BREAKUP_MOVE_FRAMES*3/4) + 1;
+            if (gpu_effect_flag) {
+                drawBreakupCellGpu( gpu_compositor, rect, rect.x, rect.y, breakup_cells[n].radius, chr->w, chr->h );
+                continue;
+            }
             for (int i=0; i<BREAKUP_CELLWIDTH; i++) {
                 for (int j=0; j<BREAKUP_CELLWIDTH; j++) {
                     int x = rect.x + j;
@@ -307,6 +367,10 @@ void ONScripter::effectBreakup( char *params, int duration )
             breakup_cells[n].radius = 0;
             if (breakup_cells[n].state >= (BREAKUP_MOVE_FRAMES/2))
                 breakup_cells[n].radius = (breakup_cells[n].state/2) - (BREAKUP_MOVE_FRAMES/4) + 1;
+            if (gpu_effect_flag) {
+                drawBreakupCellGpu( gpu_compositor, rect, rect.x + disp_x, rect.y + disp_y, breakup_cells[n].radius, chr->w, chr->h );
+                continue;
+            }
             for (int i=0; i<BREAKUP_CELLWIDTH; i++) {
                 for (int j=0; j<BREAKUP_CELLWIDTH; j++) {
                     int x = disp_x + rect.x + j;
@@ -327,6 +391,8 @@ void ONScripter::effectBreakup( char *params, int duration )
         }
     }
 
-    SDL_UnlockSurface( accumulation_surface );
-    SDL_UnlockSurface( chr );
+    if (!gpu_effect_flag) {
+        SDL_UnlockSurface( accumulation_surface );
+        SDL_UnlockSurface( chr );
+    }
 }
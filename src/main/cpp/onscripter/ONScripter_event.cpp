@@ -35,6 +35,7 @@
 #define ONS_BREAK_EVENT   (SDL_USEREVENT+5)
 #define ONS_BGMFADE_EVENT (SDL_USEREVENT+6)
 #define ONS_LOAD_EVENT    (SDL_USEREVENT+7)
+#define ONS_SKIP_CHOICE_EVENT (SDL_USEREVENT+8)
 
 // This sets up the fade event flag for use in bgm fadeout and fadein.
 #define BGM_FADEOUT 0
@@ -369,6 +370,19 @@ void ONScripter::waitEventSub(int count)
 
 bool ONScripter::waitEvent( int count )
 {
+    if ( headless_flag ){
+        if ( !(event_mode & WAIT_BUTTON_MODE) ){
+            count = 0;
+        }
+        else if ( headless_command_limit > 0 ){
+            pickHeadlessButton();
+            return false;
+        }
+        else{
+            leaveHeadless();
+        }
+    }
+
     if (count > 0) count += SDL_GetTicks();
     
     while(1){
@@ -429,6 +443,13 @@ void ONScripter::startAndloadSaveFile(int no)
     SDL_PushEvent(&event);
 }
 
+void ONScripter::skipToNextChoice()
+{
+    SDL_Event event;
+    event.type = ONS_SKIP_CHOICE_EVENT;
+    SDL_PushEvent(&event);
+}
+
 /* **************************************** *
  * Event handlers
  * **************************************** */
@@ -492,6 +513,7 @@ bool ONScripter::mousePressEvent( SDL_MouseButtonEvent *event )
             SDL_RenderReadPixels(renderer, &rect, screenshot_surface->format->format, screenshot_surface->pixels, screenshot_surface->pitch);
             SDL_UnlockSurface(screenshot_surface);
 #else
+            flattenGpuLayers();
             SDL_BlitSurface(screen_surface, NULL, screenshot_surface, NULL);
 #endif
         }
@@ -932,6 +954,7 @@ bool ONScripter::keyPressEvent( SDL_KeyboardEvent *event )
                 SDL_RenderReadPixels(renderer, &rect, screenshot_surface->format->format, screenshot_surface->pixels, screenshot_surface->pitch);
                 SDL_UnlockSurface(screenshot_surface);
 #else
+                flattenGpuLayers();
                 SDL_BlitSurface(screen_surface, NULL, screenshot_surface, NULL);
 #endif
             }
@@ -1158,11 +1181,28 @@ void ONScripter::timerEvent(bool init_flag)
     }
 }
 
+int ONScripter::waitSDLEvent(SDL_Event *event)
+{
+    if ( !prefetcher.isEnabled() && !text_prerenderer.isEnabled() ) return SDL_WaitEvent(event);
+
+    // the archives and the fonts are free while the script waits, let the
+    // prefetcher read ahead and the prerenderer fill the glyph cache
+    if ( prefetcher.isEnabled() )
+        prefetcher.scan( script_h.getCurrent(true), script_h.getAddress(0), script_h.getScriptEnd() );
+    prefetcher.release();
+    text_prerenderer.release();
+    int ret = SDL_WaitEvent(event);
+    text_prerenderer.acquire();
+    prefetcher.acquire();
+
+    return ret;
+}
+
 void ONScripter::runEventLoop()
 {
     SDL_Event event, tmp_event;
 
-    while ( SDL_WaitEvent(&event) ) {
+    while ( waitSDLEvent(&event) ) {
 #if defined(USE_SMPEG)
         // required to repeat the movie
         if (layer_smpeg_sample)
@@ -1380,6 +1420,7 @@ void ONScripter::runEventLoop()
             if (event.active.state == SDL_APPACTIVE){
                 screen_surface = SDL_SetVideoMode( screen_width, screen_height, screen_bpp, DEFAULT_VIDEO_SURFACE_FLAG );
                 SDL_SetSurfaceBlendMode(screen_surface, SDL_BLENDMODE_NONE);
+                gpu_compositor.reset();
                 repaintCommand();
                 break;
             }
@@ -1388,6 +1429,7 @@ void ONScripter::runEventLoop()
 #ifdef USE_SDL_RENDERER
             SDL_RenderPresent(renderer);
 #else
+            flattenGpuLayers();
             SDL_UpdateRect( screen_surface, 0, 0, screen_width, screen_height );
 #endif
             break;
@@ -1411,6 +1453,15 @@ void ONScripter::runEventLoop()
                 break_flag = false;
             }
             break;
+          case ONS_SKIP_CHOICE_EVENT:
+            // a choice on screen is where the skip would end anyway
+            if ( headless_flag || event_mode & WAIT_BUTTON_MODE ) break;
+            enterHeadless();
+            if ( event_mode & WAIT_INPUT_MODE ){
+                stopAnimation( clickstr_state );
+                return;
+            }
+            break;
           case SDL_QUIT:
             endCommand();
             break;
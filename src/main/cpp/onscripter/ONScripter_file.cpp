@@ -331,6 +331,7 @@ int ONScripter::saveSaveScreenshot(int no) {
     if (fp){
         SDL_RWops *rwops = SDL_RWFromFP(fp, SDL_TRUE);
         int ret = IMG_SaveJPG_RW(surface, rwops, 1, SCREENSHOT_COMPRESSION_LEVEL);
+        image_cache.remove(filename);
         if (ret != 0) {
             return ret;
         }
@@ -24,6 +24,7 @@
 #include "ONScripter.h"
 #include <new>
 #include "resize_image.h"
+#include "PixelBlend.h"
 
 SDL_Surface *ONScripter::loadImage(char *filename, bool *has_alpha, int *location, unsigned char *alpha)
 {
@@ -144,6 +145,11 @@ SDL_Surface *ONScripter::createSurfaceFromFile(char *filename, bool *has_alpha,
         script_h.findAndAddLog(script_h.log_info[ScriptHandler::FILE_LOG], filename, true);
     //printf(" ... loading %s length %ld\n", filename, length );
 
+    // a stored entry of a mapped archive is decoded in place
+    size_t mapped_length = 0;
+    const unsigned char *mapped = script_h.cBR->getMappedFile(filename, &mapped_length, location);
+    if (mapped) length = mapped_length;
+
     mean_size_of_loaded_images += length*6/5; // reserve 20% larger size
     num_loaded_images++;
     if (tmp_image_buf_length < mean_size_of_loaded_images/num_loaded_images){
@@ -152,23 +158,33 @@ SDL_Surface *ONScripter::createSurfaceFromFile(char *filename, bool *has_alpha,
         tmp_image_buf = NULL;
     }
 
+    // a large entry is decoded while the image loader reads it
+    ArchiveStream *stream = NULL;
+    SDL_RWops *src = NULL;
+    if (mapped)
+        src = SDL_RWFromConstMem(mapped, length);
+    else if (length > tmp_image_buf_length)
+        src = openStreamRW(filename, &stream, location);
+
     unsigned char *buffer = NULL;
-    if (length > tmp_image_buf_length){
+    if (!src && length > tmp_image_buf_length){
         buffer = new(std::nothrow) unsigned char[length];
         if (buffer == NULL){
             loge( stderr, "failed to load [%s] because file size [%lu] is too large.\n", filename, length);
             return NULL;
         }
     }
-    else{
+    else if (!src){
         if (!tmp_image_buf) tmp_image_buf = new unsigned char[tmp_image_buf_length];
         buffer = tmp_image_buf;
     }
         
-    script_h.cBR->getFile(filename, buffer, location);
+    if (!src){
+        script_h.cBR->getFile(filename, buffer, location);
+        src = SDL_RWFromMem(buffer, length);
+    }
     char *ext = strrchr(filename, '.');
 
-    SDL_RWops *src = SDL_RWFromMem(buffer, length);
     int is_png = IMG_isPNG(src);
 
     SDL_Surface *tmp = IMG_Load_RW(src, 0);
@@ -186,7 +202,8 @@ SDL_Surface *ONScripter::createSurfaceFromFile(char *filename, bool *has_alpha,
 
     SDL_RWclose(src);
 
-    if (buffer != tmp_image_buf) delete[] buffer;
+    if (stream) delete stream;
+    if (buffer && buffer != tmp_image_buf) delete[] buffer;
 
     if (!tmp)
         logw( stderr, " *** can't load file [%s] ***\n", filename );
@@ -295,6 +312,7 @@ void ONScripter::alphaBlend( SDL_Surface *mask_surface,
             ONSBuf *mask_buffer = (ONSBuf *)mask_surface->pixels + mask_surface->w * ((rect.y+i)%mask_surface->h);
 
             int j2 = rect.x;
+#if defined(BPP16)
             for ( j=0 ; j<rect.w ; j++ ){
                 Uint32 mask2 = 0;
                 Uint32 mask = *(mask_buffer + j2) & lowest_mask;
@@ -308,6 +326,28 @@ void ONScripter::alphaBlend( SDL_Surface *mask_surface,
                 if (j2 >= mask_surface->w) j2 = 0;
                 else                       j2++;
             }
+#else
+            // the mask is wrapped around per pixel, the blending itself is done by the row kernel
+            Uint32 mask2[256];
+            for ( j=0 ; j<rect.w ; ){
+                int k, n = rect.w - j;
+                if (n > 256) n = 256;
+                for ( k=0 ; k<n ; k++ ){
+                    Uint32 mask = *(mask_buffer + j2) & lowest_mask;
+                    mask2[k] = 0;
+                    if ( mask_value > mask ){
+                        mask2[k] = mask_value - mask;
+                        if ( mask2[k] & overflow_mask ) mask2[k] = lowest_mask;
+                    }
+
+                    if (j2 >= mask_surface->w) j2 = 0;
+                    else                       j2++;
+                }
+                blendRowMasks( dst_buffer, src1_buffer, src2_buffer, mask2, n );
+                src1_buffer += n; src2_buffer += n; dst_buffer += n;
+                j += n;
+            }
+#endif
             src1_buffer += screen_width - rect.w;
             src2_buffer += screen_width - rect.w;
             dst_buffer  += screen_width - rect.w;
@@ -316,10 +356,15 @@ void ONScripter::alphaBlend( SDL_Surface *mask_surface,
         Uint32 mask2 = mask_value & lowest_mask;
 
         for ( i=0; i<rect.h ; i++ ) {
+#if defined(BPP16)
             for ( j=rect.w ; j!=0 ; j-- ){
                 BLEND_PIXEL_MASK();
                 src1_buffer++; src2_buffer++; dst_buffer++;
             }
+#else
+            blendRowMask( dst_buffer, src1_buffer, src2_buffer, mask2, rect.w );
+            src1_buffer += rect.w; src2_buffer += rect.w; dst_buffer += rect.w;
+#endif
             src1_buffer += screen_width - rect.w;
             src2_buffer += screen_width - rect.w;
             dst_buffer  += screen_width - rect.w;
@@ -436,13 +481,9 @@ void ONScripter::alphaBlendText( SDL_Surface *dst_surface, SDL_Rect dst_rect,
         if (!rotate_flag){
             unsigned char *src_buffer = (unsigned char*)src_surface->pixels + src_surface->pitch * y2 + x2;
             for ( int i=0 ; i<dst_rect.h ; i++ ){
-                for ( int j=dst_rect.w ; j!=0 ; j-- ){
-                    BLEND_PIXEL_TEXT();
-                    src_buffer++;
-                    dst_buffer++;
-                }
-                src_buffer += src_surface->pitch - dst_rect.w;
-                dst_buffer += dst_surface->w - dst_rect.w;
+                blendRowText( dst_buffer, src_buffer, src_color1, src_color2, src_color3, dst_rect.w );
+                src_buffer += src_surface->pitch;
+                dst_buffer += dst_surface->w;
             }
         }
         else{
@@ -502,15 +543,59 @@ void ONScripter::refreshSurface( SDL_Surface *surface, SDL_Rect *clip_src, int r
 {
     if (refresh_mode == REFRESH_NONE_MODE) return;
 
+    buildLayerList( refresh_mode );
+    compositeLayers( surface, clip_src, 0, num_layers );
+}
+
+void ONScripter::compositeLayers( SDL_Surface *surface, SDL_Rect *clip_src, int start, int end )
+{
     SDL_Rect clip;
     clip.x = clip.y = 0;
     clip.w = surface->w;
     clip.h = surface->h;
     if (clip_src) if ( AnimationInfo::doClipping( &clip, clip_src ) ) return;
 
+    if (start == 0)
+        SDL_BlitSurface( bg_info.image_surface, &clip, surface, &clip );
+
+    if ( compositor.isEnabled() ){
+        // every band runs all the layers below in the same order
+        RefreshBandData data = { this, surface, start, end };
+        compositor.run( refreshBand, &data, clip );
+    }
+    else{
+        drawLayers( surface, clip, start, end );
+    }
+}
+
+void ONScripter::refreshBand( void *data, SDL_Rect &band )
+{
+    RefreshBandData *rbd = (RefreshBandData*)data;
+    rbd->ons->drawLayers( rbd->surface, band, rbd->start, rbd->end );
+}
+
+void ONScripter::addLayer( int type, AnimationInfo *anim )
+{
+    if (num_layers == max_layers){
+        max_layers += 64;
+        Layer *tmp = new Layer[max_layers];
+        if (layer){
+            memcpy( tmp, layer, sizeof(Layer)*num_layers );
+            delete[] layer;
+        }
+        layer = tmp;
+    }
+    layer[num_layers].type = type;
+    layer[num_layers].anim = anim;
+    num_layers++;
+}
+
+void ONScripter::buildLayerList( int refresh_mode )
+{
     int i, top;
-    SDL_BlitSurface( bg_info.image_surface, &clip, surface, &clip );
-    
+
+    num_layers = 0;
+
     if ( !all_sprite_hide_flag ){
         if ( z_order < 10 && refresh_mode & REFRESH_SAYA_MODE )
             top = 9;
@@ -518,33 +603,33 @@ void ONScripter::refreshSurface( SDL_Surface *surface, SDL_Rect *clip_src, int r
             top = z_order;
         for ( i=MAX_SPRITE_NUM-1 ; i>top ; i-- ){
             if ( sprite_info[i].image_surface && sprite_info[i].visible )
-                drawTaggedSurface( surface, &sprite_info[i], clip );
+                addLayer( LAYER_ANIM, &sprite_info[i] );
         }
     }
 
     if ( !all_sprite_hide_flag ){
         for ( i=0 ; i<3 ; i++ ){
             if (human_order[2-i] >= 0 && tachi_info[human_order[2-i]].image_surface)
-                drawTaggedSurface( surface, &tachi_info[human_order[2-i]], clip );
+                addLayer( LAYER_ANIM, &tachi_info[human_order[2-i]] );
         }
     }
 
     if ( windowback_flag ){
-        if ( nega_mode == 1 ) makeNegaSurface( surface, clip );
-        if ( monocro_flag )   makeMonochromeSurface( surface, clip );
-        if ( nega_mode == 2 ) makeNegaSurface( surface, clip );
+        if ( nega_mode == 1 ) addLayer( LAYER_NEGA );
+        if ( monocro_flag )   addLayer( LAYER_MONOCHROME );
+        if ( nega_mode == 2 ) addLayer( LAYER_NEGA );
 
         if (!all_sprite2_hide_flag){
             for ( i=MAX_SPRITE2_NUM-1 ; i>=0 ; i-- ){
                 if ( sprite2_info[i].image_surface && sprite2_info[i].visible )
-                    drawTaggedSurface( surface, &sprite2_info[i], clip );
+                    addLayer( LAYER_ANIM, &sprite2_info[i] );
             }
         }
     
         if (refresh_mode & REFRESH_SHADOW_MODE)
-            shadowTextDisplay( surface, clip );
+            addLayer( LAYER_SHADOW );
         if (refresh_mode & REFRESH_TEXT_MODE)
-            text_info.blendOnSurface( surface, 0, 0, clip );
+            addLayer( LAYER_TEXT, &text_info );
     }
 
     if ( !all_sprite_hide_flag ){
@@ -554,7 +639,7 @@ void ONScripter::refreshSurface( SDL_Surface *surface, SDL_Rect *clip_src, int r
             top = 0;
         for ( i=z_order ; i>=top ; i-- ){
             if ( sprite_info[i].image_surface && sprite_info[i].visible )
-                drawTaggedSurface( surface, &sprite_info[i], clip );
+                addLayer( LAYER_ANIM, &sprite_info[i] );
         }
     }
 
@@ -562,51 +647,168 @@ void ONScripter::refreshSurface( SDL_Surface *surface, SDL_Rect *clip_src, int r
         if (!all_sprite2_hide_flag){
             for ( i=MAX_SPRITE2_NUM-1 ; i>=0 ; i-- ){
                 if ( sprite2_info[i].image_surface && sprite2_info[i].visible )
-                    drawTaggedSurface( surface, &sprite2_info[i], clip );
+                    addLayer( LAYER_ANIM, &sprite2_info[i] );
             }
         }
 
-        if ( nega_mode == 1 ) makeNegaSurface( surface, clip );
-        if ( monocro_flag )   makeMonochromeSurface( surface, clip );
-        if ( nega_mode == 2 ) makeNegaSurface( surface, clip );
+        if ( nega_mode == 1 ) addLayer( LAYER_NEGA );
+        if ( monocro_flag )   addLayer( LAYER_MONOCHROME );
+        if ( nega_mode == 2 ) addLayer( LAYER_NEGA );
     }
     
     if ( !( refresh_mode & REFRESH_SAYA_MODE ) ){
         for ( i=0 ; i<MAX_PARAM_NUM ; i++ ){
             if ( bar_info[i] )
-                drawTaggedSurface( surface, bar_info[i], clip );
+                addLayer( LAYER_ANIM, bar_info[i] );
         }
         for ( i=0 ; i<MAX_PARAM_NUM ; i++ ){
             if ( prnum_info[i] )
-                drawTaggedSurface( surface, prnum_info[i], clip );
+                addLayer( LAYER_ANIM, prnum_info[i] );
         }
     }
 
     if ( !windowback_flag ){
         if (refresh_mode & REFRESH_SHADOW_MODE)
-            shadowTextDisplay( surface, clip );
+            addLayer( LAYER_SHADOW );
         if (refresh_mode & REFRESH_TEXT_MODE)
-            text_info.blendOnSurface( surface, 0, 0, clip );
+            addLayer( LAYER_TEXT, &text_info );
     }
 
     if ( refresh_mode & REFRESH_CURSOR_MODE && !textgosub_label ){
         if ( clickstr_state == CLICK_WAIT )
-            drawTaggedSurface( surface, &cursor_info[0], clip );
+            addLayer( LAYER_ANIM, &cursor_info[0] );
         else if ( clickstr_state == CLICK_NEWPAGE )
-            drawTaggedSurface( surface, &cursor_info[1], clip );
+            addLayer( LAYER_ANIM, &cursor_info[1] );
     }
 
     if (show_dialog_flag)
-        drawTaggedSurface( surface, &dialog_info, clip );
+        addLayer( LAYER_ANIM, &dialog_info );
 
     ButtonLink *bl = root_button_link.next;
     while( bl ){
         if (bl->show_flag > 0)
-            drawTaggedSurface( surface, bl->anim[bl->show_flag-1], clip );
+            addLayer( LAYER_ANIM, bl->anim[bl->show_flag-1] );
         bl = bl->next;
     }
 }
 
+void ONScripter::drawLayers( SDL_Surface *surface, SDL_Rect &clip, int start, int end )
+{
+    for ( int i=start ; i<end ; i++ ){
+        switch( layer[i].type ){
+          case LAYER_ANIM:
+            drawTaggedSurface( surface, layer[i].anim, clip );
+            break;
+          case LAYER_TEXT:
+            text_info.blendOnSurface( surface, 0, 0, clip );
+            break;
+          case LAYER_SHADOW:
+            shadowTextDisplay( surface, clip );
+            break;
+          case LAYER_NEGA:
+            makeNegaSurface( surface, clip );
+            break;
+          case LAYER_MONOCHROME:
+            makeMonochromeSurface( surface, clip );
+            break;
+        }
+    }
+}
+
+bool ONScripter::canDrawOnGpu( Layer &l )
+{
+    return l.type == LAYER_ANIM && gpu_compositor.canDraw( l.anim, l.anim->affine_flag );
+}
+
+bool ONScripter::flushGpu( int num_rects, SDL_Rect *rects, int refresh_mode )
+{
+    bool refresh_flag = true;
+    if (refresh_mode == REFRESH_NONE_MODE){
+        // accumulation_surface was drawn directly, the layers over it are drawn again
+        if (!gpu_pending_flag) return false;
+        refresh_mode = gpu_refresh_mode;
+        refresh_flag = false;
+    }
+
+    // only the layers above the last one that the GPU cannot draw are left out
+    // of accumulation_surface, so the order of the layers is kept
+    buildLayerList( refresh_mode );
+    int split = num_layers;
+    while (split > 0 && canDrawOnGpu( layer[split-1] )) split--;
+    if (split == num_layers){
+        flattenGpuLayers();
+        return false;
+    }
+
+    int i, num_gpu = num_layers - split;
+    bool same_flag = gpu_pending_flag && num_gpu == num_gpu_layers;
+    for (i=0 ; i<num_gpu && same_flag ; i++)
+        if (gpu_layer[i].type != layer[split+i].type ||
+            gpu_layer[i].anim != layer[split+i].anim) same_flag = false;
+
+    if (!same_flag){
+        // accumulation_surface may hold some of these layers outside the rects
+        if (max_gpu_layers < num_gpu){
+            delete[] gpu_layer;
+            max_gpu_layers = max_layers;
+            gpu_layer = new Layer[max_gpu_layers];
+        }
+        memcpy( gpu_layer, layer + split, sizeof(Layer)*num_gpu );
+        num_gpu_layers = num_gpu;
+        num_rects = 1;
+        rects = &screen_rect;
+        refresh_flag = true;
+    }
+
+    SDL_Rect dst_rects[MAX_DIRTY_RECTS];
+    int num_dst_rects = 0;
+    for (i=0 ; i<num_rects && num_dst_rects<MAX_DIRTY_RECTS ; i++){
+        SDL_Rect dst_rect = rects[i];
+        if (AnimationInfo::doClipping(&dst_rect, &screen_rect) || (dst_rect.w==0 && dst_rect.h==0)) continue;
+        if (refresh_flag)
+            compositeLayers( accumulation_surface, &dst_rect, 0, split );
+        SDL_BlitSurface( accumulation_surface, &dst_rect, screen_surface, &dst_rect );
+        dst_rects[num_dst_rects++] = dst_rect;
+    }
+
+    gpu_pending_flag = true;
+    gpu_refresh_mode = refresh_mode;
+
+    if (!gpu_compositor.begin( screen_surface, num_dst_rects, dst_rects )){
+        flattenGpuLayers();
+        SDL_UpdateRect( screen_surface, 0, 0, 0, 0 );
+        return true;
+    }
+
+    for (i=split ; i<num_layers ; i++){
+        AnimationInfo *anim = layer[i].anim;
+        int x = anim->pos.x, y = anim->pos.y;
+        if ( !anim->abs_flag ){
+            x += sentence_font.x() * screen_ratio1 / screen_ratio2;
+            y += sentence_font.y() * screen_ratio1 / screen_ratio2;
+        }
+        gpu_compositor.draw( anim, x, y, anim->trans, anim->affine_flag );
+    }
+    gpu_compositor.end();
+
+#ifdef ANDROID
+    if (startup_timing_pending) sendStartupTiming();
+#endif
+
+    return true;
+}
+
+void ONScripter::flattenGpuLayers()
+{
+    if (!gpu_pending_flag) return;
+    gpu_pending_flag = false;
+
+    refreshSurface( accumulation_surface, NULL, gpu_refresh_mode );
+    SDL_BlitSurface( accumulation_surface, NULL, screen_surface, NULL );
+    // later updates of a part of the screen keep the rest of the screen texture
+    SDL_UpdateRect( screen_surface, 0, 0, screen_width, screen_height );
+}
+
 void ONScripter::refreshSprite( int sprite_no, bool active_flag, int cell_no,
                                 SDL_Rect *check_src_rect, SDL_Rect *check_dst_rect )
 {
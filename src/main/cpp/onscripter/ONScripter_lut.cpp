@@ -399,14 +399,21 @@ static ONScripter::FuncLUT func_lut[] = {
 
 void ONScripter::makeFuncLUT()
 {
-    for (int i='z'-'a' ; i>=0 ; i--)
-        func_hash[i].func = NULL;
+    for (int i=0 ; i<FUNC_TABLE_SIZE ; i++)
+        func_table[i].func = NULL;
 
+    // open addressing on the hash of the whole name, the first entry of a
+    // command in func_lut is the one that is kept
     int idx = 0;
     while (func_lut[idx].method){
-        int j = func_lut[idx].command[0]-'a';
-        if (func_hash[j].func == NULL) func_hash[j].func = func_lut+idx;
-        func_hash[j].num = func_lut+idx - func_hash[j].func + 1;
+        unsigned int hash = hashCommand( func_lut[idx].command );
+        unsigned int i = hash & (FUNC_TABLE_SIZE-1);
+        while (func_table[i].func && strcmp( func_table[i].func->command, func_lut[idx].command ))
+            i = (i+1) & (FUNC_TABLE_SIZE-1);
+        if (func_table[i].func == NULL){
+            func_table[i].func = func_lut+idx;
+            func_table[i].hash = hash;
+        }
         idx++;
     }
 }
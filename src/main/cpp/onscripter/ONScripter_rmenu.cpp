@@ -113,6 +113,7 @@ void ONScripter::leaveSystemCall( bool restore_flag )
         
         current_page = cached_page;
         SDL_BlitSurface( backup_surface, NULL, text_info.image_surface, NULL );
+        text_info.updateImageSerial();
         root_button_link.next = shelter_button_link;
         root_select_link.next = shelter_select_link;
 
@@ -192,6 +193,7 @@ void ONScripter::executeSystemMenu()
         SDL_RenderReadPixels(renderer, &rect, screenshot_surface->format->format, screenshot_surface->pixels, screenshot_surface->pitch);
         SDL_UnlockSurface(screenshot_surface);
 #else
+        flattenGpuLayers();
         SDL_BlitSurface(screen_surface, NULL, screenshot_surface, NULL);
 #endif
     }
@@ -709,6 +711,7 @@ void ONScripter::executeSystemLookback()
             color[i] = sentence_font.color[i];
             sentence_font.color[i] = lookback_color[i];
         }
+        flattenGpuLayers();
         restoreTextBuffer(accumulation_surface);
         for ( i=0 ; i<3 ; i++ ) sentence_font.color[i] = color[i];
         flush( REFRESH_NONE_MODE );
@@ -60,6 +60,55 @@ extern "C" Uint32 SDLCALL bgmfadeCallback( Uint32 interval, void *param );
 
 #define TMP_MUSIC_FILE "tmp.mus"
 
+static long SDLCALL seekStreamRW(SDL_RWops *context, long offset, int whence)
+{
+    return ((ArchiveStream*)context->hidden.unknown.data1)->seek(offset, whence);
+}
+
+static size_t SDLCALL readStreamRW(SDL_RWops *context, void *ptr, size_t size, size_t maxnum)
+{
+    if (size == 0) return 0;
+    ArchiveStream *stream = (ArchiveStream*)context->hidden.unknown.data1;
+    size_t len = stream->read((unsigned char*)ptr, size*maxnum);
+    if (len % size) stream->seek(-(long)(len % size), SEEK_CUR);
+    return len / size;
+}
+
+static size_t SDLCALL writeStreamRW(SDL_RWops *context, const void *ptr, size_t size, size_t num)
+{
+    return 0;
+}
+
+// the stream is not owned by the RWops, SDL_mixer frees RWops inconsistently
+static int SDLCALL closeStreamRW(SDL_RWops *context)
+{
+    SDL_FreeRW(context);
+    return 0;
+}
+
+SDL_RWops *ONScripter::openStreamRW(const char *filename, ArchiveStream **stream, int *location)
+{
+    *stream = NULL;
+    if (!stream_archive_flag) return NULL;
+
+    *stream = script_h.cBR->openStream(filename, location);
+    if (*stream == NULL) return NULL;
+
+    SDL_RWops *rw = SDL_AllocRW();
+    if (rw == NULL){
+        delete *stream;
+        *stream = NULL;
+        return NULL;
+    }
+    rw->seek  = seekStreamRW;
+    rw->read  = readStreamRW;
+    rw->write = writeStreamRW;
+    rw->close = closeStreamRW;
+    rw->hidden.unknown.data1 = *stream;
+
+    return rw;
+}
+
 int ONScripter::playSound(const char *filename, int format, bool loop_flag, int channel)
 {
     if ( !audio_open_flag ) return SOUND_NONE;
@@ -67,6 +116,34 @@ int ONScripter::playSound(const char *filename, int format, bool loop_flag, int
     long length = script_h.cBR->getFileLength( filename );
     if (length == 0) return SOUND_NONE;
 
+    ArchiveStream *stream;
+    SDL_RWops *rw;
+
+    // decoded while SDL_mixer reads it instead of being read into a buffer first
+    if (format & SOUND_MUSIC && (rw = openStreamRW( filename, &stream ))){
+        music_info = Mix_LoadMUS_RW( rw );
+        Mix_VolumeMusic( music_volume );
+        Mix_HookMusicFinished( musicFinishCallback );
+        if ( music_info &&
+             Mix_PlayMusic( music_info, (music_play_loop_flag&&music_loopback_offset==0.0)?-1:0 ) == 0 ){
+            music_stream = stream;
+            return SOUND_MUSIC;
+        }
+        if ( music_info ){
+            Mix_FreeMusic( music_info );
+            music_info = NULL;
+        }
+        delete stream;
+        format &= ~SOUND_MUSIC;
+    }
+
+    if (format & SOUND_CHUNK && (rw = openStreamRW( filename, &stream ))){
+        Mix_Chunk *chunk = Mix_LoadWAV_RW( rw, 1 );
+        delete stream;
+        if (playWave(chunk, format, loop_flag, channel) == 0) return SOUND_CHUNK;
+        format &= ~SOUND_CHUNK;
+    }
+
     unsigned char *buffer;
 
     if (format & SOUND_MUSIC && 
@@ -430,6 +507,10 @@ void ONScripter::stopBGM( bool continue_flag )
         Mix_FreeMusic( music_info );
         music_info = NULL;
     }
+    if ( music_stream ){
+        delete music_stream;
+        music_stream = NULL;
+    }
 
     if ( midi_info ){
         ext_music_play_once_flag = true;
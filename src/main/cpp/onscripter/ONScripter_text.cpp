@@ -68,19 +68,113 @@ void ONScripter::shiftHalfPixelY(SDL_Surface *surface)
     SDL_UnlockSurface( surface );
 }
 
+GlyphCache::Glyph *ONScripter::getGlyph( TTF_Font *font, int style, unsigned short unicode )
+{
+    static SDL_Color fcol={0xff, 0xff, 0xff}, bcol={0, 0, 0};
+
+    GlyphCache::Glyph *glyph = glyph_cache.get( font, style, unicode );
+    if (glyph == NULL){
+        GlyphCache::Glyph metrics;
+        TTF_GlyphMetrics( font, unicode,
+                          &metrics.minx, &metrics.maxx, &metrics.miny, &metrics.maxy, &metrics.advance );
+        glyph = glyph_cache.put( font, style, unicode, metrics,
+                                 TTF_RenderGlyph_Shaded( font, unicode, fcol, bcol ) );
+    }
+
+    return glyph;
+}
+
+GlyphCache::Glyph *ONScripter::getOutlineGlyph( TTF_Font *font_s, int style, unsigned short unicode, GlyphCache::Glyph *glyph )
+{
+    static SDL_Color fcol={0xff, 0xff, 0xff}, bcol={0, 0, 0};
+
+    // the outline is cached after it is centered on the glyph of ttf_font[0],
+    // put() empties the least recently used page, never the one of glyph
+    GlyphCache::Glyph *glyph_s = glyph_cache.get( font_s, style, unicode );
+    if (glyph_s == NULL){
+        SDL_Surface *tmp_surface = glyph->surface;
+        SDL_Surface *tmp_surface_s = TTF_RenderGlyph_Shaded(font_s, unicode, fcol, bcol);
+        if (tmp_surface && tmp_surface_s){
+            if ((tmp_surface_s->w-tmp_surface->w) & 1) shiftHalfPixelX(tmp_surface_s);
+            if ((tmp_surface_s->h-tmp_surface->h) & 1) shiftHalfPixelY(tmp_surface_s);
+        }
+        glyph_s = glyph_cache.put( font_s, style, unicode, *glyph, tmp_surface_s );
+    }
+
+    return glyph_s;
+}
+
+void ONScripter::prerenderGlyph( void *data, void *font, void *font_s, int style, unsigned short unicode )
+{
+    ONScripter *ons = (ONScripter*)data;
+
+    GlyphCache::Glyph *glyph = ons->getGlyph( (TTF_Font*)font, style, unicode );
+    if (font_s) ons->getOutlineGlyph( (TTF_Font*)font_s, style, unicode, glyph );
+}
+
+void ONScripter::prerenderText()
+{
+    TTF_Font *font = (TTF_Font*)sentence_font.ttf_font[0];
+    if (font == NULL) return;
+
+    TTF_Font *font_s = NULL;
+    if (sentence_font.is_shadow && render_font_outline)
+        font_s = (TTF_Font*)sentence_font.ttf_font[1];
+    int style = TTF_GetFontStyle( font );
+    ScriptDecoder *decoder = script_h.decoder;
+
+    text_prerenderer.clear();
+
+    // the rest of the current line
+    char *buf = script_h.getStringBuffer() + string_buffer_offset;
+    char text[3];
+    while (buf[0]){
+        int n = decoder->getNumBytes(buf[0]);
+        if ((n >= 2 && buf[1] == 0) || (n == 3 && buf[2] == 0)) break;
+        text[0] = buf[0];
+        text[1] = n >= 2 ? buf[1] : 0;
+        text[2] = n == 3 ? buf[2] : 0;
+        text_prerenderer.request( font, font_s, style, decoder->convertNextChar(text) );
+        buf += n;
+    }
+
+    // the lines that follow, where the multi-byte characters are most likely text
+    char *p = script_h.getCurrent(true);
+    char *end = script_h.getScriptEnd();
+    if (p < script_h.getAddress(0) || p >= end) return;
+    if (end - p > PRERENDER_LOOKAHEAD) end = p + PRERENDER_LOOKAHEAD;
+    int n;
+    while (p < end){
+        if (ScriptDecoder::isOneByte(p[0])){
+            p++;
+            continue;
+        }
+        n = decoder->getNumBytes(p[0]);
+        if (p + n > end) break;
+        if (decoder->canConvertNextChar(p, &n) && n > 1){
+            text[0] = p[0];
+            text[1] = p[1];
+            text[2] = n == 3 ? p[2] : 0;
+            text_prerenderer.request( font, font_s, style, decoder->convertNextChar(text) );
+        }
+        p += n;
+    }
+}
+
 void ONScripter::drawGlyph( SDL_Surface *dst_surface, FontInfo *info, SDL_Color &color, char* text, int xy[2], AnimationInfo *cache_info, SDL_Rect *clip, SDL_Rect &dst_rect, ScriptDecoder* decoder )
 {
     unsigned short unicode = decoder->convertNextChar(text);
 
-    int minx, maxx, miny, maxy, advanced;
 #if 0
     if (TTF_GetFontStyle( (TTF_Font*)info->ttf_font[0] ) !=
         (info->is_bold?TTF_STYLE_BOLD:TTF_STYLE_NORMAL) )
         TTF_SetFontStyle( (TTF_Font*)info->ttf_font[0], (info->is_bold?TTF_STYLE_BOLD:TTF_STYLE_NORMAL));
 #endif    
-    TTF_GlyphMetrics( (TTF_Font*)info->ttf_font[0], unicode,
-                      &minx, &maxx, &miny, &maxy, &advanced );
-    //printf("min %d %d %d %d %d %d\n", minx, maxx, miny, maxy, advanced,TTF_FontAscent((TTF_Font*)info->ttf_font[0])  );
+    TTF_Font *font = (TTF_Font*)info->ttf_font[0];
+    int style = TTF_GetFontStyle( font );
+    GlyphCache::Glyph *glyph = getGlyph( font, style, unicode );
+    int minx = glyph->minx, maxy = glyph->maxy, miny = glyph->miny, advanced = glyph->advance;
+    //printf("min %d %d %d %d %d\n", minx, miny, maxy, advanced,TTF_FontAscent((TTF_Font*)info->ttf_font[0])  );
 
     // Use the glyth's advance for non-Japanese characters
     if (decoder->getNumBytes(text[0]) > 1 && decoder->isMonospaced()) {
@@ -89,8 +183,7 @@ void ONScripter::drawGlyph( SDL_Surface *dst_surface, FontInfo *info, SDL_Color
         info->addProportionalCharacterAdvance(advanced);
     }
 
-    static SDL_Color fcol={0xff, 0xff, 0xff}, bcol={0, 0, 0};
-    SDL_Surface *tmp_surface = TTF_RenderGlyph_Shaded((TTF_Font*)info->ttf_font[0], unicode, fcol, bcol);
+    SDL_Surface *tmp_surface = glyph->surface;
     
     SDL_Color scolor = {0, 0, 0};
     SDL_Surface *tmp_surface_s = tmp_surface;
@@ -102,11 +195,7 @@ void ONScripter::drawGlyph( SDL_Surface *dst_surface, FontInfo *info, SDL_Color
         else                  scolor.r = 0;
         scolor.g = scolor.b = scolor.r;
 
-        tmp_surface_s = TTF_RenderGlyph_Shaded((TTF_Font*)info->ttf_font[1], unicode, fcol, bcol);
-        if (tmp_surface && tmp_surface_s){
-            if ((tmp_surface_s->w-tmp_surface->w) & 1) shiftHalfPixelX(tmp_surface_s);
-            if ((tmp_surface_s->h-tmp_surface->h) & 1) shiftHalfPixelY(tmp_surface_s);
-        }
+        tmp_surface_s = getOutlineGlyph( (TTF_Font*)info->ttf_font[1], style, unicode, glyph )->surface;
     }
 
     bool rotate_flag = false;
@@ -166,11 +255,6 @@ void ONScripter::drawGlyph( SDL_Surface *dst_surface, FontInfo *info, SDL_Color
         if (dst_surface)
             alphaBlendText( dst_surface, dst_rect, tmp_surface, color, clip, rotate_flag );
     }
-
-    if (tmp_surface_s && tmp_surface_s != tmp_surface)
-        SDL_FreeSurface(tmp_surface_s);
-    if (tmp_surface)
-        SDL_FreeSurface(tmp_surface);
 }
 
 void ONScripter::drawChar( char* text, FontInfo *info, bool flush_flag, bool lookback_flag, SDL_Surface *surface, AnimationInfo *cache_info, SDL_Rect *clip, ScriptDecoder* decoder )
@@ -807,6 +891,8 @@ int ONScripter::textCommand()
         return RET_CONTINUE;
     }
 
+    if (text_prerenderer.isEnabled()) prerenderText();
+
     enterTextDisplayMode();
 
 #ifdef USE_LUA
@@ -0,0 +1,350 @@
+/* -*- C++ -*-
+ *
+ *  PixelBlend.cpp - Row kernels of the 32bpp blending loops
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "PixelBlend.h"
+#include <stdio.h>
+#include <string.h>
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#define PIXEL_BLEND_NEON
+#include <arm_neon.h>
+#elif defined(__SSE2__)
+#define PIXEL_BLEND_SSE2
+#include <emmintrin.h>
+#include <cpuid.h>
+#endif
+
+// The vector versions repeat the 32bit arithmetic of the scalar ones lane by
+// lane, including the wrap around of the differences, so that the results
+// stay identical.
+
+static void blendRowMaskC( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, Uint32 mask2, int n )
+{
+    for ( ; n>0 ; n--, src1++, src2++, dst++ ){
+        Uint32 temp = *src1 & 0xff00ff;
+        Uint32 mask_rb = (((((*src2 & 0xff00ff) - temp ) * mask2 ) >> 8 ) + temp ) & 0xff00ff;
+        temp = *src1 & 0x00ff00;
+        Uint32 mask_g  = (((((*src2 & 0x00ff00) - temp ) * mask2 ) >> 8 ) + temp ) & 0x00ff00;
+        *dst = mask_rb | mask_g;
+    }
+}
+
+static void blendRowMasksC( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, const Uint32 *mask2, int n )
+{
+    for ( ; n>0 ; n--, src1++, src2++, dst++, mask2++ ){
+        Uint32 temp = *src1 & 0xff00ff;
+        Uint32 mask_rb = (((((*src2 & 0xff00ff) - temp ) * *mask2 ) >> 8 ) + temp ) & 0xff00ff;
+        temp = *src1 & 0x00ff00;
+        Uint32 mask_g  = (((((*src2 & 0x00ff00) - temp ) * *mask2 ) >> 8 ) + temp ) & 0x00ff00;
+        *dst = mask_rb | mask_g;
+    }
+}
+
+static void blendRowAlphaC( Uint32 *dst, const Uint32 *src, Uint32 alpha, int n )
+{
+    for ( ; n>0 ; n--, src++, dst++ ){
+        Uint32 a = *src >> 24;
+        if (a == 255 && alpha == 255){
+            *dst = *src;
+        }
+        else if (a != 0){
+            Uint32 mask2 = (a * alpha) >> 8;
+            Uint32 temp = *dst & 0xff00ff;
+            Uint32 mask_rb = (((((*src & 0xff00ff) - temp ) * mask2 ) >> 8 ) + temp ) & 0xff00ff;
+            temp = *dst & 0x00ff00;
+            Uint32 mask_g  = (((((*src & 0x00ff00) - temp ) * mask2 ) >> 8 ) + temp ) & 0x00ff00;
+            *dst = mask_rb | mask_g | 0xff000000;
+        }
+    }
+}
+
+static void blendRowTextC( Uint32 *dst, const unsigned char *src, Uint32 color1, Uint32 color2, Uint32 color3, int n )
+{
+    for ( ; n>0 ; n--, src++, dst++ ){
+        Uint32 mask2 = *src;
+        if (mask2 == 255){
+            *dst = color3;
+        }
+        else if (mask2 != 0){
+            Uint32 mask1   = mask2 ^ 0xff;
+            Uint32 mask_rb = (((*dst & 0xff00ff) * mask1 +
+                               color1 * mask2) >> 8) & 0xff00ff;
+            Uint32 mask_g  = (((*dst & 0x00ff00) * mask1 +
+                               color2 * mask2) >> 8) & 0x00ff00;
+            *dst = 0xff000000 | mask_rb | mask_g;
+        }
+    }
+}
+
+#if defined(PIXEL_BLEND_NEON)
+
+static inline uint32x4_t blendNEON( uint32x4_t s1, uint32x4_t s2, uint32x4_t m )
+{
+    const uint32x4_t rb_mask = vdupq_n_u32( 0xff00ff );
+    const uint32x4_t g_mask  = vdupq_n_u32( 0x00ff00 );
+
+    uint32x4_t temp = vandq_u32( s1, rb_mask );
+    uint32x4_t rb = vmulq_u32( vsubq_u32( vandq_u32( s2, rb_mask ), temp ), m );
+    rb = vandq_u32( vaddq_u32( vshrq_n_u32( rb, 8 ), temp ), rb_mask );
+    temp = vandq_u32( s1, g_mask );
+    uint32x4_t g = vmulq_u32( vsubq_u32( vandq_u32( s2, g_mask ), temp ), m );
+    g = vandq_u32( vaddq_u32( vshrq_n_u32( g, 8 ), temp ), g_mask );
+
+    return vorrq_u32( rb, g );
+}
+
+static void blendRowMaskNEON( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, Uint32 mask2, int n )
+{
+    uint32x4_t m = vdupq_n_u32( mask2 );
+    for ( ; n>=4 ; n-=4, src1+=4, src2+=4, dst+=4 )
+        vst1q_u32( dst, blendNEON( vld1q_u32( src1 ), vld1q_u32( src2 ), m ) );
+    blendRowMaskC( dst, src1, src2, mask2, n );
+}
+
+static void blendRowMasksNEON( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, const Uint32 *mask2, int n )
+{
+    for ( ; n>=4 ; n-=4, src1+=4, src2+=4, dst+=4, mask2+=4 )
+        vst1q_u32( dst, blendNEON( vld1q_u32( src1 ), vld1q_u32( src2 ), vld1q_u32( mask2 ) ) );
+    blendRowMasksC( dst, src1, src2, mask2, n );
+}
+
+static void blendRowAlphaNEON( Uint32 *dst, const Uint32 *src, Uint32 alpha, int n )
+{
+    const uint32x4_t alpha_v = vdupq_n_u32( alpha );
+    const uint32x4_t opaque  = vdupq_n_u32( 0xff000000 );
+    const uint32x4_t zero    = vdupq_n_u32( 0 );
+    const uint32x4_t full    = vdupq_n_u32( alpha == 255 ? 255 : 256 ); // 256 never matches
+
+    for ( ; n>=4 ; n-=4, src+=4, dst+=4 ){
+        uint32x4_t s = vld1q_u32( src );
+        uint32x4_t d = vld1q_u32( dst );
+        uint32x4_t a = vshrq_n_u32( s, 24 );
+        uint32x4_t m = vshrq_n_u32( vmulq_u32( a, alpha_v ), 8 );
+
+        uint32x4_t ret = vorrq_u32( blendNEON( d, s, m ), opaque );
+        ret = vbslq_u32( vceqq_u32( a, zero ), d, ret );
+        ret = vbslq_u32( vceqq_u32( a, full ), s, ret );
+        vst1q_u32( dst, ret );
+    }
+    blendRowAlphaC( dst, src, alpha, n );
+}
+
+static void blendRowTextNEON( Uint32 *dst, const unsigned char *src, Uint32 color1, Uint32 color2, Uint32 color3, int n )
+{
+    const uint32x4_t rb_mask = vdupq_n_u32( 0xff00ff );
+    const uint32x4_t g_mask  = vdupq_n_u32( 0x00ff00 );
+    const uint32x4_t opaque  = vdupq_n_u32( 0xff000000 );
+    const uint32x4_t zero    = vdupq_n_u32( 0 );
+    const uint32x4_t full    = vdupq_n_u32( 255 );
+    const uint32x4_t c1 = vdupq_n_u32( color1 );
+    const uint32x4_t c2 = vdupq_n_u32( color2 );
+    const uint32x4_t c3 = vdupq_n_u32( color3 );
+
+    for ( ; n>=8 ; n-=8, src+=8 ){
+        uint16x8_t m16 = vmovl_u8( vld1_u8( src ) );
+        for ( int k=0 ; k<2 ; k++, dst+=4 ){
+            uint32x4_t m2 = vmovl_u16( k == 0 ? vget_low_u16( m16 ) : vget_high_u16( m16 ) );
+            uint32x4_t m1 = veorq_u32( m2, full );
+            uint32x4_t d  = vld1q_u32( dst );
+
+            uint32x4_t rb = vaddq_u32( vmulq_u32( vandq_u32( d, rb_mask ), m1 ), vmulq_u32( c1, m2 ) );
+            rb = vandq_u32( vshrq_n_u32( rb, 8 ), rb_mask );
+            uint32x4_t g  = vaddq_u32( vmulq_u32( vandq_u32( d, g_mask ), m1 ), vmulq_u32( c2, m2 ) );
+            g  = vandq_u32( vshrq_n_u32( g, 8 ), g_mask );
+
+            uint32x4_t ret = vorrq_u32( vorrq_u32( rb, g ), opaque );
+            ret = vbslq_u32( vceqq_u32( m2, zero ), d, ret );
+            ret = vbslq_u32( vceqq_u32( m2, full ), c3, ret );
+            vst1q_u32( dst, ret );
+        }
+    }
+    blendRowTextC( dst, src, color1, color2, color3, n );
+}
+
+static bool hasNEON()
+{
+#if defined(__aarch64__)
+    return true;
+#else
+    // getauxval() needs API level 18, read the auxiliary vector instead
+    bool ret = false;
+    FILE *fp = fopen( "/proc/self/auxv", "rb" );
+    if (fp){
+        unsigned long entry[2];
+        while (fread( entry, sizeof(entry), 1, fp ) == 1 && entry[0] != 0){
+            if (entry[0] == 16){ // AT_HWCAP
+                ret = (entry[1] & (1 << 12)) != 0; // HWCAP_NEON
+                break;
+            }
+        }
+        fclose( fp );
+    }
+    return ret;
+#endif
+}
+
+#elif defined(PIXEL_BLEND_SSE2)
+
+// low 32 bits of x * m for every lane, m has to be below 65536 and be set in
+// both halves of the lane
+static inline __m128i mul32SSE2( __m128i x, __m128i m )
+{
+    __m128i lo = _mm_mullo_epi16( x, m );
+    __m128i hi = _mm_mulhi_epu16( x, m );
+    return _mm_add_epi32( lo, _mm_slli_epi32( hi, 16 ) );
+}
+
+static inline __m128i splitSSE2( __m128i m )
+{
+    return _mm_or_si128( m, _mm_slli_epi32( m, 16 ) );
+}
+
+static inline __m128i selectSSE2( __m128i mask, __m128i a, __m128i b )
+{
+    return _mm_or_si128( _mm_and_si128( mask, a ), _mm_andnot_si128( mask, b ) );
+}
+
+static inline __m128i blendSSE2( __m128i s1, __m128i s2, __m128i m )
+{
+    const __m128i rb_mask = _mm_set1_epi32( 0xff00ff );
+    const __m128i g_mask  = _mm_set1_epi32( 0x00ff00 );
+
+    __m128i temp = _mm_and_si128( s1, rb_mask );
+    __m128i rb = mul32SSE2( _mm_sub_epi32( _mm_and_si128( s2, rb_mask ), temp ), m );
+    rb = _mm_and_si128( _mm_add_epi32( _mm_srli_epi32( rb, 8 ), temp ), rb_mask );
+    temp = _mm_and_si128( s1, g_mask );
+    __m128i g = mul32SSE2( _mm_sub_epi32( _mm_and_si128( s2, g_mask ), temp ), m );
+    g = _mm_and_si128( _mm_add_epi32( _mm_srli_epi32( g, 8 ), temp ), g_mask );
+
+    return _mm_or_si128( rb, g );
+}
+
+static void blendRowMaskSSE2( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, Uint32 mask2, int n )
+{
+    __m128i m = splitSSE2( _mm_set1_epi32( mask2 ) );
+    for ( ; n>=4 ; n-=4, src1+=4, src2+=4, dst+=4 )
+        _mm_storeu_si128( (__m128i*)dst, blendSSE2( _mm_loadu_si128( (const __m128i*)src1 ),
+                                                    _mm_loadu_si128( (const __m128i*)src2 ), m ) );
+    blendRowMaskC( dst, src1, src2, mask2, n );
+}
+
+static void blendRowMasksSSE2( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, const Uint32 *mask2, int n )
+{
+    for ( ; n>=4 ; n-=4, src1+=4, src2+=4, dst+=4, mask2+=4 )
+        _mm_storeu_si128( (__m128i*)dst, blendSSE2( _mm_loadu_si128( (const __m128i*)src1 ),
+                                                    _mm_loadu_si128( (const __m128i*)src2 ),
+                                                    splitSSE2( _mm_loadu_si128( (const __m128i*)mask2 ) ) ) );
+    blendRowMasksC( dst, src1, src2, mask2, n );
+}
+
+static void blendRowAlphaSSE2( Uint32 *dst, const Uint32 *src, Uint32 alpha, int n )
+{
+    const __m128i alpha_v = _mm_set1_epi32( alpha );
+    const __m128i opaque  = _mm_set1_epi32( 0xff000000 );
+    const __m128i zero    = _mm_setzero_si128();
+    const __m128i full    = _mm_set1_epi32( alpha == 255 ? 255 : 256 ); // 256 never matches
+
+    for ( ; n>=4 ; n-=4, src+=4, dst+=4 ){
+        __m128i s = _mm_loadu_si128( (const __m128i*)src );
+        __m128i d = _mm_loadu_si128( (const __m128i*)dst );
+        __m128i a = _mm_srli_epi32( s, 24 );
+        // both factors are 8bit, the product fits in the low half
+        __m128i m = _mm_srli_epi32( _mm_mullo_epi16( a, alpha_v ), 8 );
+
+        __m128i ret = _mm_or_si128( blendSSE2( d, s, splitSSE2( m ) ), opaque );
+        ret = selectSSE2( _mm_cmpeq_epi32( a, zero ), d, ret );
+        ret = selectSSE2( _mm_cmpeq_epi32( a, full ), s, ret );
+        _mm_storeu_si128( (__m128i*)dst, ret );
+    }
+    blendRowAlphaC( dst, src, alpha, n );
+}
+
+static void blendRowTextSSE2( Uint32 *dst, const unsigned char *src, Uint32 color1, Uint32 color2, Uint32 color3, int n )
+{
+    const __m128i rb_mask = _mm_set1_epi32( 0xff00ff );
+    const __m128i g_mask  = _mm_set1_epi32( 0x00ff00 );
+    const __m128i opaque  = _mm_set1_epi32( 0xff000000 );
+    const __m128i zero    = _mm_setzero_si128();
+    const __m128i full    = _mm_set1_epi32( 255 );
+    const __m128i c1 = _mm_set1_epi32( color1 );
+    const __m128i c2 = _mm_set1_epi32( color2 );
+    const __m128i c3 = _mm_set1_epi32( color3 );
+
+    for ( ; n>=4 ; n-=4, src+=4, dst+=4 ){
+        int src4;
+        memcpy( &src4, src, 4 );
+        __m128i m2 = _mm_cvtsi32_si128( src4 );
+        m2 = _mm_unpacklo_epi16( _mm_unpacklo_epi8( m2, zero ), zero );
+        __m128i m1 = _mm_xor_si128( m2, full );
+        __m128i d  = _mm_loadu_si128( (const __m128i*)dst );
+
+        __m128i rb = _mm_add_epi32( mul32SSE2( _mm_and_si128( d, rb_mask ), splitSSE2( m1 ) ),
+                                    mul32SSE2( c1, splitSSE2( m2 ) ) );
+        rb = _mm_and_si128( _mm_srli_epi32( rb, 8 ), rb_mask );
+        __m128i g  = _mm_add_epi32( mul32SSE2( _mm_and_si128( d, g_mask ), splitSSE2( m1 ) ),
+                                    mul32SSE2( c2, splitSSE2( m2 ) ) );
+        g  = _mm_and_si128( _mm_srli_epi32( g, 8 ), g_mask );
+
+        __m128i ret = _mm_or_si128( _mm_or_si128( rb, g ), opaque );
+        ret = selectSSE2( _mm_cmpeq_epi32( m2, zero ), d, ret );
+        ret = selectSSE2( _mm_cmpeq_epi32( m2, full ), c3, ret );
+        _mm_storeu_si128( (__m128i*)dst, ret );
+    }
+    blendRowTextC( dst, src, color1, color2, color3, n );
+}
+
+static bool hasSSE2()
+{
+    unsigned int eax, ebx, ecx, edx;
+    if (!__get_cpuid( 1, &eax, &ebx, &ecx, &edx )) return false;
+    return (edx & bit_SSE2) != 0;
+}
+
+#endif
+
+void (*blendRowMask)( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, Uint32 mask2, int n ) = blendRowMaskC;
+void (*blendRowMasks)( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, const Uint32 *mask2, int n ) = blendRowMasksC;
+void (*blendRowAlpha)( Uint32 *dst, const Uint32 *src, Uint32 alpha, int n ) = blendRowAlphaC;
+void (*blendRowText)( Uint32 *dst, const unsigned char *src, Uint32 color1, Uint32 color2, Uint32 color3, int n ) = blendRowTextC;
+
+const char *initPixelBlend()
+{
+#if defined(PIXEL_BLEND_NEON)
+    if (hasNEON()){
+        blendRowMask  = blendRowMaskNEON;
+        blendRowMasks = blendRowMasksNEON;
+        blendRowAlpha = blendRowAlphaNEON;
+        blendRowText  = blendRowTextNEON;
+        return "NEON";
+    }
+#elif defined(PIXEL_BLEND_SSE2)
+    if (hasSSE2()){
+        blendRowMask  = blendRowMaskSSE2;
+        blendRowMasks = blendRowMasksSSE2;
+        blendRowAlpha = blendRowAlphaSSE2;
+        blendRowText  = blendRowTextSSE2;
+        return "SSE2";
+    }
+#endif
+    return "C";
+}
@@ -0,0 +1,44 @@
+/* -*- C++ -*-
+ *
+ *  PixelBlend.h - Row kernels of the 32bpp blending loops
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __PIXEL_BLEND_H__
+#define __PIXEL_BLEND_H__
+
+#include <SDL.h>
+
+// initPixelBlend() points these at the NEON or SSE2 versions when the CPU has
+// them, they give the same pixels bit for bit as the scalar loops.
+
+// dst = src1 + (src2 - src1) * mask2 / 256, alphaBlend()
+extern void (*blendRowMask)( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, Uint32 mask2, int n );
+// same with a mask2 for each pixel
+extern void (*blendRowMasks)( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, const Uint32 *mask2, int n );
+// src over dst with the alpha of src scaled by alpha, AnimationInfo::blendOnSurface()
+extern void (*blendRowAlpha)( Uint32 *dst, const Uint32 *src, Uint32 alpha, int n );
+// color over dst with an 8bit coverage, alphaBlendText()
+extern void (*blendRowText)( Uint32 *dst, const unsigned char *src, Uint32 color1, Uint32 color2, Uint32 color3, int n );
+
+// returns the name of the selected kernels
+const char *initPixelBlend();
+
+#endif // __PIXEL_BLEND_H__
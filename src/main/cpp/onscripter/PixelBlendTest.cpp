@@ -0,0 +1,159 @@
+/* -*- C++ -*-
+ *
+ *  PixelBlendTest.cpp - Checks the vector row kernels against the scalar ones
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "PixelBlend.h"
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+// a console program, SDLmain is not linked
+#undef main
+
+#define TEST_ROUNDS 2000
+#define TEST_MAX_LENGTH 300 // covers the 256 pixel rows of alphaBlend() with a mask
+#define TEST_GUARD 8        // pixels around the row that must not be written
+
+static Uint32 random_state = 2463534242u;
+
+static Uint32 getRandom()
+{
+    // xorshift32, the same sequence on every host
+    random_state ^= random_state << 13;
+    random_state ^= random_state >> 17;
+    random_state ^= random_state << 5;
+    return random_state;
+}
+
+// the values the kernels branch on turn up much more often than at random
+static Uint32 getLevel( Uint32 max )
+{
+    switch ( getRandom() % 4 ){
+      case 0:  return 0;
+      case 1:  return max;
+      default: return getRandom() % (max + 1);
+    }
+}
+
+static int getLength( int round )
+{
+    // every tail of the vector loops first, then longer rows
+    if ( round < 16 ) return round;
+    return getRandom() % (TEST_MAX_LENGTH + 1);
+}
+
+static void fillPixels( Uint32 *buf, int n )
+{
+    for ( int i=0 ; i<n ; i++ ) buf[i] = getRandom();
+}
+
+static void fillAlphaPixels( Uint32 *buf, int n )
+{
+    for ( int i=0 ; i<n ; i++ ) buf[i] = (getRandom() & 0xffffff) | (getLevel( 255 ) << 24);
+}
+
+static int failures = 0;
+
+static void check( const char *kernel, const Uint32 *expected, const Uint32 *result, int n, int offset )
+{
+    int size = n + offset + TEST_GUARD * 2;
+    if ( memcmp( expected, result, size * sizeof(Uint32) ) == 0 ) return;
+
+    for ( int i=0 ; i<size ; i++ ){
+        if ( expected[i] == result[i] ) continue;
+        printf( "%s: length %d offset %d, pixel %d is %08x instead of %08x\n",
+                kernel, n, offset, i - TEST_GUARD - offset, result[i], expected[i] );
+        break;
+    }
+    failures++;
+}
+
+int main( int argc, char **argv )
+{
+    if ( argc > 1 ) random_state = strtoul( argv[1], NULL, 0 ) | 1;
+
+    void (*blendRowMaskC)( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, Uint32 mask2, int n ) = blendRowMask;
+    void (*blendRowMasksC)( Uint32 *dst, const Uint32 *src1, const Uint32 *src2, const Uint32 *mask2, int n ) = blendRowMasks;
+    void (*blendRowAlphaC)( Uint32 *dst, const Uint32 *src, Uint32 alpha, int n ) = blendRowAlpha;
+    void (*blendRowTextC)( Uint32 *dst, const unsigned char *src, Uint32 color1, Uint32 color2, Uint32 color3, int n ) = blendRowText;
+
+    const char *name = initPixelBlend();
+    if ( !strcmp( name, "C" ) ){
+        printf( "PixelBlend: no vector kernels on this host, nothing to compare\n" );
+        return 0;
+    }
+
+    const int size = TEST_MAX_LENGTH + 4 + TEST_GUARD * 2;
+    Uint32 src1[size], src2[size], masks[size], expected[size], result[size];
+    unsigned char coverage[size];
+
+    for ( int round=0 ; round<TEST_ROUNDS ; round++ ){
+        int n = getLength( round % 100 );
+        // the vector loads do not need aligned rows
+        int offset = getRandom() % 4;
+        int start = TEST_GUARD + offset;
+
+        fillPixels( src1, size );
+        fillPixels( src2, size );
+        fillPixels( expected, size );
+        for ( int i=0 ; i<size ; i++ ) masks[i] = getLevel( 256 );
+
+        Uint32 mask2 = getLevel( 256 );
+        memcpy( result, expected, sizeof(result) );
+        blendRowMaskC( expected + start, src1 + start, src2 + start, mask2, n );
+        blendRowMask( result + start, src1 + start, src2 + start, mask2, n );
+        check( "blendRowMask", expected, result, n, offset );
+
+        fillPixels( expected, size );
+        memcpy( result, expected, sizeof(result) );
+        blendRowMasksC( expected + start, src1 + start, src2 + start, masks + start, n );
+        blendRowMasks( result + start, src1 + start, src2 + start, masks + start, n );
+        check( "blendRowMasks", expected, result, n, offset );
+
+        fillAlphaPixels( src1, size );
+        fillPixels( expected, size );
+        memcpy( result, expected, sizeof(result) );
+        Uint32 alpha = getLevel( 255 );
+        blendRowAlphaC( expected + start, src1 + start, alpha, n );
+        blendRowAlpha( result + start, src1 + start, alpha, n );
+        check( "blendRowAlpha", expected, result, n, offset );
+
+        for ( int i=0 ; i<size ; i++ ) coverage[i] = getLevel( 255 );
+        Uint32 color = getRandom();
+        Uint32 color1 = color & 0xff00ff;
+        Uint32 color2 = color & 0x00ff00;
+        Uint32 color3 = 0xff000000 | color1 | color2;
+        fillPixels( expected, size );
+        memcpy( result, expected, sizeof(result) );
+        blendRowTextC( expected + start, coverage + start, color1, color2, color3, n );
+        blendRowText( result + start, coverage + start, color1, color2, color3, n );
+        check( "blendRowText", expected, result, n, offset );
+    }
+
+    if ( failures ){
+        printf( "PixelBlend: %s differs from C in %d of %d rows\n", name, failures, TEST_ROUNDS * 4 );
+        return 1;
+    }
+    printf( "PixelBlend: %s matches C in %d rows\n", name, TEST_ROUNDS * 4 );
+
+    return 0;
+}
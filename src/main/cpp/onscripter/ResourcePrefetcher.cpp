@@ -0,0 +1,266 @@
+/* -*- C++ -*-
+ * 
+ *  ResourcePrefetcher.cpp - Loads upcoming script resources on a worker thread
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "ResourcePrefetcher.h"
+#include "ArchiveStream.h"
+#include <string.h>
+
+ResourcePrefetcher::ResourcePrefetcher()
+{
+    reader = NULL;
+    budget = 0;
+    thread = NULL;
+    reader_mutex = queue_mutex = NULL;
+    queue_cond = NULL;
+    quit_flag = false;
+    queue_head = queue_num = 0;
+    missing_next = 0;
+    last_scan = NULL;
+    for ( int i=0 ; i<PREFETCH_MISSING_SIZE ; i++ ) missing[i][0] = '\0';
+}
+
+ResourcePrefetcher::~ResourcePrefetcher()
+{
+    stop();
+}
+
+void ResourcePrefetcher::start( BaseReader **reader )
+{
+    if ( thread || budget == 0 ) return;
+
+    this->reader = reader;
+    reader_mutex = SDL_CreateMutex();
+    queue_mutex = SDL_CreateMutex();
+    queue_cond = SDL_CreateCond();
+    quit_flag = false;
+
+    SDL_mutexP( reader_mutex );
+    thread = SDL_CreateThread( threadMain, this );
+    if ( thread == NULL ){
+        SDL_mutexV( reader_mutex );
+        SDL_DestroyCond( queue_cond );
+        SDL_DestroyMutex( queue_mutex );
+        SDL_DestroyMutex( reader_mutex );
+        reader_mutex = queue_mutex = NULL;
+        queue_cond = NULL;
+    }
+}
+
+void ResourcePrefetcher::stop()
+{
+    if ( thread == NULL ) return;
+
+    SDL_mutexP( queue_mutex );
+    quit_flag = true;
+    SDL_CondSignal( queue_cond );
+    SDL_mutexV( queue_mutex );
+
+    // the worker may be waiting for the reader
+    SDL_mutexV( reader_mutex );
+    SDL_WaitThread( thread, NULL );
+    thread = NULL;
+
+    SDL_DestroyCond( queue_cond );
+    SDL_DestroyMutex( queue_mutex );
+    SDL_DestroyMutex( reader_mutex );
+    reader_mutex = queue_mutex = NULL;
+    queue_cond = NULL;
+    queue_num = 0;
+}
+
+void ResourcePrefetcher::scan( const char *script, const char *script_start, const char *script_end )
+{
+    // the script may be running an internal or a lua buffer
+    if ( thread == NULL || script < script_start || script >= script_end ) return;
+    if ( script == last_scan ) return;
+    last_scan = script;
+
+    if ( script_end > script + PREFETCH_LOOKAHEAD )
+        script_end = script + PREFETCH_LOOKAHEAD;
+
+    char name[PREFETCH_NAME_LENGTH];
+    const char *p = script;
+    while ( p < script_end && *p ){
+        if ( *p++ != '"' ) continue;
+
+        const char *start = p;
+        while ( p < script_end && *p && *p != '"' && *p != '\n' ) p++;
+        if ( p >= script_end || *p != '"' ) continue;
+        const char *end = p++;
+
+        // skip the tag of sprite images, e.g. ":a/2,0,3;image.png"
+        if ( *start == ':' ){
+            while ( start < end && *start != ';' ) start++;
+            if ( start < end ) start++;
+        }
+        if ( end - start <= 0 || end - start >= PREFETCH_NAME_LENGTH ) continue;
+
+        memcpy( name, start, end - start );
+        name[ end - start ] = '\0';
+        if ( isResourceName( name ) ) request( name );
+    }
+}
+
+bool ResourcePrefetcher::isResourceName( const char *name )
+{
+    static const char *ext_list[] = { "BMP", "JPG", "JPEG", "PNG", "GIF", "NBZ", "SPB", "WAV", "OGG", "MP3", NULL };
+
+    const char *ext = strrchr( name, '.' );
+    if ( ext == NULL || name[0] == '>' || name[0] == '*' ) return false;
+    ext++;
+
+    for ( int i=0 ; ext_list[i] ; i++ ){
+        int j;
+        for ( j=0 ; ext[j] && ext_list[i][j] ; j++ ){
+            char c = ext[j];
+            if ( 'a' <= c && c <= 'z' ) c += 'A' - 'a';
+            if ( c != ext_list[i][j] ) break;
+        }
+        if ( ext[j] == '\0' && ext_list[i][j] == '\0' ) return true;
+    }
+
+    return false;
+}
+
+void ResourcePrefetcher::request( const char *name )
+{
+    int i;
+    for ( i=0 ; i<PREFETCH_MISSING_SIZE ; i++ )
+        if ( !strcmp( missing[i], name ) ) return;
+    if ( (*reader)->isResidentFile( name ) ) return;
+
+    SDL_mutexP( queue_mutex );
+    for ( i=0 ; i<queue_num ; i++ )
+        if ( !strcmp( queue[ (queue_head + i) % PREFETCH_QUEUE_SIZE ], name ) ) break;
+    if ( i == queue_num && queue_num < PREFETCH_QUEUE_SIZE ){
+        strcpy( queue[ (queue_head + queue_num) % PREFETCH_QUEUE_SIZE ], name );
+        queue_num++;
+        SDL_CondSignal( queue_cond );
+    }
+    SDL_mutexV( queue_mutex );
+}
+
+void ResourcePrefetcher::release()
+{
+    if ( thread ) SDL_mutexV( reader_mutex );
+}
+
+void ResourcePrefetcher::acquire()
+{
+    if ( thread ) SDL_mutexP( reader_mutex );
+}
+
+int ResourcePrefetcher::threadMain( void *data )
+{
+    ((ResourcePrefetcher*)data)->run();
+    return 0;
+}
+
+void ResourcePrefetcher::run()
+{
+    char name[PREFETCH_NAME_LENGTH];
+
+    while (1){
+        SDL_mutexP( queue_mutex );
+        while ( queue_num == 0 && !quit_flag )
+            SDL_CondWait( queue_cond, queue_mutex );
+        if ( quit_flag ){
+            SDL_mutexV( queue_mutex );
+            break;
+        }
+        strcpy( name, queue[ queue_head ] );
+        queue_head = (queue_head + 1) % PREFETCH_QUEUE_SIZE;
+        queue_num--;
+        SDL_mutexV( queue_mutex );
+
+        load( name );
+    }
+}
+
+void ResourcePrefetcher::load( const char *name )
+{
+    SDL_mutexP( reader_mutex );
+    if ( quit_flag ){
+        SDL_mutexV( reader_mutex );
+        return;
+    }
+
+    BaseReader *br = *reader;
+    if ( br->isResidentFile( name ) ){
+        SDL_mutexV( reader_mutex );
+        return;
+    }
+
+    size_t length = br->getFileLength( name );
+    if ( length == 0 ){
+        strcpy( missing[ missing_next ], name );
+        missing_next = (missing_next + 1) % PREFETCH_MISSING_SIZE;
+        SDL_mutexV( reader_mutex );
+        return;
+    }
+
+    // stored entries of a mapped archive are already zero-copy
+    size_t mapped_length;
+    if ( br->getMappedFile( name, &mapped_length ) || length > budget ){
+        SDL_mutexV( reader_mutex );
+        return;
+    }
+
+    unsigned char *buffer = new unsigned char[ length ];
+    int location = BaseReader::ARCHIVE_TYPE_NONE;
+    ArchiveStream *stream = br->openStream( name, &location );
+    if ( stream == NULL ){
+        // SPB images are decoded whole by the reader, one screen at most
+        if ( br->getFile( name, buffer, &location ) == length )
+            br->addResidentFile( name, buffer, length, location, budget );
+        else
+            delete[] buffer;
+        SDL_mutexV( reader_mutex );
+        return;
+    }
+    br->setPendingFile( name );
+    SDL_mutexV( reader_mutex );
+
+    // the script thread gets the reader back at once while this is read and decoded
+    size_t count = 0;
+    while ( count < length && !quit_flag ){
+        size_t len = length - count;
+        if ( len > PREFETCH_CHUNK_SIZE ) len = PREFETCH_CHUNK_SIZE;
+        size_t ret = stream->read( buffer + count, len );
+        if ( ret == 0 ) break;
+        count += ret;
+    }
+    delete stream;
+
+    SDL_mutexP( reader_mutex );
+    // the reader drops the copy if the script has read the entry meanwhile
+    if ( quit_flag )
+        delete[] buffer;
+    else if ( count != length ){
+        (*reader)->setPendingFile( NULL );
+        delete[] buffer;
+    }
+    else
+        (*reader)->addResidentFile( name, buffer, length, location, budget );
+    SDL_mutexV( reader_mutex );
+}
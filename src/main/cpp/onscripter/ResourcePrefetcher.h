@@ -0,0 +1,80 @@
+/* -*- C++ -*-
+ * 
+ *  ResourcePrefetcher.h - Loads upcoming script resources on a worker thread
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __RESOURCE_PREFETCHER_H__
+#define __RESOURCE_PREFETCHER_H__
+
+#include <SDL.h>
+#include "BaseReader.h"
+
+#define PREFETCH_QUEUE_SIZE 32
+#define PREFETCH_MISSING_SIZE 32
+#define PREFETCH_LOOKAHEAD 8192
+#define PREFETCH_NAME_LENGTH 256
+#define PREFETCH_CHUNK_SIZE 65536
+
+// The script thread owns the reader and hands it to the worker only while it
+// is blocked waiting for events, so the readers need no locking of their own.
+// The worker holds it just to look an entry up and to keep the loaded copy,
+// the entry itself is read through an ArchiveStream with a handle of its own.
+class ResourcePrefetcher
+{
+public:
+    ResourcePrefetcher();
+    ~ResourcePrefetcher();
+
+    void setBudget( size_t bytes ){ budget = bytes; };
+    bool isEnabled(){ return thread != NULL; };
+
+    // both called on the script thread, which keeps the reader until release()
+    void start( BaseReader **reader );
+    void stop();
+
+    void scan( const char *script, const char *script_start, const char *script_end );
+    void release();
+    void acquire();
+
+private:
+    BaseReader **reader;
+    size_t budget;
+
+    SDL_Thread *thread;
+    SDL_mutex *reader_mutex;
+    SDL_mutex *queue_mutex;
+    SDL_cond *queue_cond;
+    bool quit_flag;
+
+    char queue[PREFETCH_QUEUE_SIZE][PREFETCH_NAME_LENGTH];
+    int queue_head, queue_num;
+    char missing[PREFETCH_MISSING_SIZE][PREFETCH_NAME_LENGTH];
+    int missing_next;
+    const char *last_scan;
+
+    static int threadMain( void *data );
+    void run();
+    void load( const char *name );
+    void request( const char *name );
+    bool isResourceName( const char *name );
+};
+
+#endif // __RESOURCE_PREFETCHER_H__
@@ -22,7 +22,18 @@
  */
 
 #include "SarReader.h"
+#include "ArchiveStream.h"
 #define WRITE_LENGTH 4096
+#define MAX_READ_ARCHIVE_THREADS 4
+
+#if defined(LINUX) || defined(MACOSX)
+#define ARCHIVE_THREADS
+#include <pthread.h>
+#include <unistd.h>
+#endif
+#if defined(ARCHIVE_MMAP)
+#include <sys/stat.h>
+#endif
 
 #if defined(PSP)
 extern int psp_power_resume_number;
@@ -33,6 +44,14 @@ SarReader::SarReader( const char *path, const unsigned char *key_table, bool try
 {
     root_archive_info = last_archive_info = &archive_info;
     num_of_sar_archives = 0;
+    index_table = NULL;
+    index_size = 0;
+    cached_archive = NULL;
+    num_of_cached_archives = max_cached_archives = 0;
+    header_cache_data = NULL;
+    header_cache_length = 0;
+    header_cache_loaded = false;
+    header_cache_dirty = false;
 }
 
 SarReader::~SarReader()
@@ -41,6 +60,15 @@ SarReader::~SarReader()
 }
 
 int SarReader::open( const char *name )
+{
+    if ( openArchive( name ) ) return -1;
+    saveHeaderCache();
+    buildIndex();
+
+    return 0;
+}
+
+int SarReader::openArchive( const char *name )
 {
     ArchiveInfo* info = new ArchiveInfo();
 
@@ -52,7 +80,9 @@ int SarReader::open( const char *name )
     info->file_name = new char[strlen(name)+1];
     memcpy(info->file_name, name, strlen(name)+1);
     
-    readArchive( info );
+    mapArchive( info );
+    int archive_type = ARCHIVE_TYPE_SAR;
+    readArchives( &info, &archive_type, 1 );
 
     last_archive_info->next = info;
     last_archive_info = last_archive_info->next;
@@ -161,6 +191,340 @@ void SarReader::readArchive( ArchiveInfo *ai, int archive_type, unsigned int off
     }
 }
 
+void *SarReader::readArchiveThread( void *data )
+{
+    ReadArchiveJob *job = (ReadArchiveJob*)data;
+    int i;
+    
+#if defined(ARCHIVE_THREADS)
+    while( (i = __sync_fetch_and_add( &job->next, 1 )) < job->num )
+#else
+    while( (i = job->next++) < job->num )
+#endif
+        job->reader->readArchive( job->ai[i], job->archive_type[i], job->offset );
+
+    return NULL;
+}
+
+void SarReader::readArchives( ArchiveInfo **ai, int *archive_type, int num, unsigned int offset )
+{
+    ArchiveInfo **read_ai = new ArchiveInfo*[ num ];
+    int *read_type = new int[ num ];
+    int num_of_reads = 0;
+    for ( int i=0 ; i<num ; i++ ){
+        if ( header_cache_path ) addCachedArchive( ai[i], archive_type[i], offset );
+        if ( readCachedArchive( ai[i], archive_type[i], offset ) ) continue;
+
+        read_ai[ num_of_reads ] = ai[i];
+        read_type[ num_of_reads++ ] = archive_type[i];
+        if ( header_cache_path ) header_cache_dirty = true;
+    }
+
+    ReadArchiveJob job;
+    job.reader = this;
+    job.ai = read_ai;
+    job.archive_type = read_type;
+    job.num = num_of_reads;
+    job.offset = offset;
+    job.next = 0;
+
+#if defined(ARCHIVE_THREADS)
+    // each archive has its own file handle, only the headers are parsed here
+    pthread_t threads[MAX_READ_ARCHIVE_THREADS];
+    long num_of_threads = sysconf( _SC_NPROCESSORS_ONLN );
+    if ( num_of_threads > num ) num_of_threads = num;
+    if ( num_of_threads > MAX_READ_ARCHIVE_THREADS ) num_of_threads = MAX_READ_ARCHIVE_THREADS;
+
+    int started = 0;
+    for ( long i=1 ; i<num_of_threads ; i++ )
+        if ( pthread_create( &threads[started], NULL, readArchiveThread, &job ) == 0 ) started++;
+    readArchiveThread( &job );
+    for ( int i=0 ; i<started ; i++ )
+        pthread_join( threads[i], NULL );
+#else
+    readArchiveThread( &job );
+#endif
+
+    delete[] read_ai;
+    delete[] read_type;
+}
+
+/* ------------------------------------------------------------ */
+/* Header cache
+ *
+ *  "ONSHDR01", number of archives, then for each archive:
+ *    key length, key, size, mtime, base_offset, number of files, length of the file records
+ *    file records: name length, name, compression type, offset, length, original_length
+ *  in the byte order of the device, it is never shared between machines.
+ */
+#define HEADER_CACHE_MAGIC "ONSHDR01"
+#define HEADER_CACHE_MAGIC_LENGTH 8
+#define HEADER_CACHE_KEY_LENGTH (MAX_FILE_NAME_LENGTH*2+64)
+
+#if defined(ARCHIVE_MMAP)
+static bool readCacheBytes( const unsigned char **p, const unsigned char *end, void *dst, size_t length )
+{
+    if ( (size_t)(end - *p) < length ) return false;
+    memcpy( dst, *p, length );
+    *p += length;
+    return true;
+}
+
+static void writeCacheBytes( FILE *fp, const void *src, size_t length, bool *ok )
+{
+    if ( fwrite( src, 1, length, fp ) != length ) *ok = false;
+}
+#endif
+
+bool SarReader::getHeaderCacheKey( ArchiveInfo *ai, int archive_type, unsigned int offset, char *key, size_t key_length, unsigned long long *size, long long *mtime )
+{
+#if defined(ARCHIVE_MMAP)
+    struct stat st;
+    if ( ai->file_name == NULL || fstat( fileno( ai->file_handle ), &st ) != 0 ) return false;
+
+    // names are decoded with the key table, a different one gives a different header
+    unsigned int hash = 2166136261u;
+    for ( int i=0 ; i<256 ; i++ ){
+        hash ^= key_table[i];
+        hash *= 16777619u;
+    }
+
+    int len = snprintf( key, key_length, "%s%s|%d|%u|%08x", archive_path, ai->file_name, archive_type, offset, hash );
+    if ( len < 0 || (size_t)len >= key_length ) return false;
+
+    *size = (unsigned long long)st.st_size;
+    *mtime = (long long)st.st_mtime;
+    return true;
+#else
+    return false;
+#endif
+}
+
+void SarReader::loadHeaderCache()
+{
+    header_cache_loaded = true;
+#if defined(ARCHIVE_MMAP)
+    FILE *fp = ::fopen( header_cache_path, "rb" );
+    if ( fp == NULL ) return;
+
+    struct stat st;
+    if ( fstat( fileno( fp ), &st ) == 0 && st.st_size > HEADER_CACHE_MAGIC_LENGTH ){
+        void *data = mmap( NULL, (size_t)st.st_size, PROT_READ, MAP_PRIVATE, fileno( fp ), 0 );
+        if ( data != MAP_FAILED ){
+            if ( memcmp( data, HEADER_CACHE_MAGIC, HEADER_CACHE_MAGIC_LENGTH ) == 0 ){
+                header_cache_data = (unsigned char*)data;
+                header_cache_length = (size_t)st.st_size;
+            }
+            else{
+                munmap( data, (size_t)st.st_size );
+            }
+        }
+    }
+    fclose( fp );
+#endif
+}
+
+bool SarReader::readCachedArchive( ArchiveInfo *ai, int archive_type, unsigned int offset )
+{
+#if defined(ARCHIVE_MMAP)
+    if ( header_cache_path == NULL ) return false;
+    if ( !header_cache_loaded ) loadHeaderCache();
+    if ( header_cache_data == NULL ) return false;
+
+    char key[HEADER_CACHE_KEY_LENGTH];
+    unsigned long long size;
+    long long mtime;
+    if ( !getHeaderCacheKey( ai, archive_type, offset, key, sizeof(key), &size, &mtime ) ) return false;
+    unsigned int key_length = strlen( key );
+
+    const unsigned char *p = header_cache_data + HEADER_CACHE_MAGIC_LENGTH;
+    const unsigned char *end = header_cache_data + header_cache_length;
+    unsigned int num_of_archives;
+    if ( !readCacheBytes( &p, end, &num_of_archives, 4 ) ) return false;
+
+    for ( unsigned int i=0 ; i<num_of_archives ; i++ ){
+        unsigned int len, num_of_files, records_length;
+        unsigned long long cached_size, base_offset;
+        long long cached_mtime;
+        const unsigned char *cached_key = p + 4;
+
+        if ( !readCacheBytes( &p, end, &len, 4 ) || (size_t)(end - p) < len ) return false;
+        p += len;
+        if ( !readCacheBytes( &p, end, &cached_size, 8 ) ||
+             !readCacheBytes( &p, end, &cached_mtime, 8 ) ||
+             !readCacheBytes( &p, end, &base_offset, 8 ) ||
+             !readCacheBytes( &p, end, &num_of_files, 4 ) ||
+             !readCacheBytes( &p, end, &records_length, 4 ) ||
+             (size_t)(end - p) < records_length ) return false;
+
+        if ( len != key_length || memcmp( cached_key, key, len ) ||
+             cached_size != size || cached_mtime != mtime ){
+            p += records_length;
+            continue;
+        }
+
+        // the cache is only trusted as a whole, a broken record falls back to the archive
+        const unsigned char *q = p, *q_end = p + records_length;
+        FileInfo *fi_list = new FileInfo[ num_of_files ];
+        unsigned int j;
+        for ( j=0 ; j<num_of_files ; j++ ){
+            unsigned char name_length, compression_type;
+            unsigned int file_offset, length, original_length;
+            if ( !readCacheBytes( &q, q_end, &name_length, 1 ) ||
+                 !readCacheBytes( &q, q_end, fi_list[j].name, name_length ) ||
+                 !readCacheBytes( &q, q_end, &compression_type, 1 ) ||
+                 !readCacheBytes( &q, q_end, &file_offset, 4 ) ||
+                 !readCacheBytes( &q, q_end, &length, 4 ) ||
+                 !readCacheBytes( &q, q_end, &original_length, 4 ) ) break;
+            fi_list[j].name[name_length] = '\0';
+            fi_list[j].compression_type = compression_type;
+            fi_list[j].offset = file_offset;
+            fi_list[j].length = length;
+            fi_list[j].original_length = original_length;
+        }
+        if ( j < num_of_files ){
+            delete[] fi_list;
+            return false;
+        }
+
+        ai->base_offset = base_offset;
+        ai->num_of_files = num_of_files;
+        ai->fi_list = fi_list;
+        return true;
+    }
+#endif
+    return false;
+}
+
+void SarReader::addCachedArchive( ArchiveInfo *ai, int archive_type, unsigned int offset )
+{
+    if ( num_of_cached_archives == max_cached_archives ){
+        max_cached_archives = max_cached_archives ? max_cached_archives * 2 : 16;
+        CachedArchive *list = new CachedArchive[ max_cached_archives ];
+        for ( int i=0 ; i<num_of_cached_archives ; i++ ) list[i] = cached_archive[i];
+        if ( cached_archive ) delete[] cached_archive;
+        cached_archive = list;
+    }
+
+    cached_archive[ num_of_cached_archives ].ai = ai;
+    cached_archive[ num_of_cached_archives ].archive_type = archive_type;
+    cached_archive[ num_of_cached_archives ].offset = offset;
+    num_of_cached_archives++;
+}
+
+void SarReader::saveHeaderCache()
+{
+#if defined(ARCHIVE_MMAP)
+    if ( header_cache_path && header_cache_dirty ) writeHeaderCache();
+    header_cache_dirty = false;
+
+    if ( header_cache_data ){
+        munmap( header_cache_data, header_cache_length );
+        header_cache_data = NULL;
+        header_cache_length = 0;
+    }
+    header_cache_loaded = false;
+#endif
+}
+
+void SarReader::writeHeaderCache()
+{
+#if defined(ARCHIVE_MMAP)
+    // written next to the cache and renamed, a half written file is never mapped
+    char *tmp_path = new char[ strlen(header_cache_path) + 5 ];
+    sprintf( tmp_path, "%s.tmp", header_cache_path );
+    FILE *fp = ::fopen( tmp_path, "wb" );
+    if ( fp == NULL ){
+        delete[] tmp_path;
+        return;
+    }
+
+    bool ok = true;
+    unsigned int num_of_archives = 0;
+    writeCacheBytes( fp, HEADER_CACHE_MAGIC, HEADER_CACHE_MAGIC_LENGTH, &ok );
+    writeCacheBytes( fp, &num_of_archives, 4, &ok );
+
+    char (*keys)[HEADER_CACHE_KEY_LENGTH] = new char[ num_of_cached_archives ][HEADER_CACHE_KEY_LENGTH];
+    int i;
+    for ( i=0 ; i<num_of_cached_archives ; i++ ){
+        CachedArchive &ca = cached_archive[i];
+        ArchiveInfo *ai = ca.ai;
+        unsigned long long size, base_offset = ai->base_offset;
+        long long mtime;
+        if ( !getHeaderCacheKey( ai, ca.archive_type, ca.offset, keys[i], HEADER_CACHE_KEY_LENGTH, &size, &mtime ) ){
+            keys[i][0] = '\0';
+            continue;
+        }
+
+        unsigned int j, records_length = 0;
+        for ( j=0 ; j<ai->num_of_files ; j++ ){
+            FileInfo &fi = ai->fi_list[j];
+            if ( strlen( fi.name ) > 255 || fi.offset > 0xffffffff ||
+                 fi.length > 0xffffffff || fi.original_length > 0xffffffff ) break;
+            records_length += 1 + strlen( fi.name ) + 1 + 4 * 3;
+        }
+        if ( j < ai->num_of_files ) continue;
+
+        unsigned int len = strlen( keys[i] );
+        writeCacheBytes( fp, &len, 4, &ok );
+        writeCacheBytes( fp, keys[i], len, &ok );
+        writeCacheBytes( fp, &size, 8, &ok );
+        writeCacheBytes( fp, &mtime, 8, &ok );
+        writeCacheBytes( fp, &base_offset, 8, &ok );
+        writeCacheBytes( fp, &ai->num_of_files, 4, &ok );
+        writeCacheBytes( fp, &records_length, 4, &ok );
+        for ( j=0 ; j<ai->num_of_files ; j++ ){
+            FileInfo &fi = ai->fi_list[j];
+            unsigned char name_length = strlen( fi.name );
+            unsigned char compression_type = fi.compression_type;
+            unsigned int file_offset = fi.offset, length = fi.length, original_length = fi.original_length;
+            writeCacheBytes( fp, &name_length, 1, &ok );
+            writeCacheBytes( fp, fi.name, name_length, &ok );
+            writeCacheBytes( fp, &compression_type, 1, &ok );
+            writeCacheBytes( fp, &file_offset, 4, &ok );
+            writeCacheBytes( fp, &length, 4, &ok );
+            writeCacheBytes( fp, &original_length, 4, &ok );
+        }
+        num_of_archives++;
+    }
+
+    // keep the records of archives another reader opened, e.g. before an "nsa" command
+    if ( header_cache_data ){
+        const unsigned char *p = header_cache_data + HEADER_CACHE_MAGIC_LENGTH;
+        const unsigned char *end = header_cache_data + header_cache_length;
+        unsigned int num_of_old_archives = 0;
+        readCacheBytes( &p, end, &num_of_old_archives, 4 );
+        for ( unsigned int k=0 ; k<num_of_old_archives ; k++ ){
+            const unsigned char *record = p;
+            unsigned int len, records_length;
+            if ( !readCacheBytes( &p, end, &len, 4 ) || (size_t)(end - p) < len + 8*3 + 4 ) break;
+            const unsigned char *key = p;
+            p += len + 8*3 + 4;
+            if ( !readCacheBytes( &p, end, &records_length, 4 ) || (size_t)(end - p) < records_length ) break;
+            p += records_length;
+
+            for ( i=0 ; i<num_of_cached_archives ; i++ )
+                if ( strlen( keys[i] ) == len && !memcmp( keys[i], key, len ) ) break;
+            if ( i < num_of_cached_archives ) continue;
+
+            writeCacheBytes( fp, record, p - record, &ok );
+            num_of_archives++;
+        }
+    }
+    delete[] keys;
+
+    fseek( fp, HEADER_CACHE_MAGIC_LENGTH, SEEK_SET );
+    writeCacheBytes( fp, &num_of_archives, 4, &ok );
+    if ( fclose( fp ) != 0 ) ok = false;
+
+    if ( !ok || rename( tmp_path, header_cache_path ) != 0 ){
+        logw( stderr, " *** can't write the header cache [%s] ***\n", header_cache_path );
+        remove( tmp_path );
+    }
+    delete[] tmp_path;
+#endif
+}
+
 int SarReader::writeHeaderSub( ArchiveInfo *ai, FILE *fp, int archive_type, int nsa_offset )
 {
     unsigned int i, j;
@@ -252,6 +616,19 @@ int SarReader::close()
         info = info->next;
         delete last_archive_info;
     }
+    if ( index_table ) delete[] index_table;
+    index_table = NULL;
+    index_size = 0;
+
+    if ( cached_archive ) delete[] cached_archive;
+    cached_archive = NULL;
+    num_of_cached_archives = max_cached_archives = 0;
+#if defined(ARCHIVE_MMAP)
+    if ( header_cache_data ) munmap( header_cache_data, header_cache_length );
+#endif
+    header_cache_data = NULL;
+    header_cache_length = 0;
+
     return 0;
 }
 
@@ -273,6 +650,18 @@ int SarReader::getNumFiles(){
 }
 
 int SarReader::getIndexFromFile( ArchiveInfo *ai, const char *file_name )
+{
+    unsigned int i;
+
+    capitalizeName( file_name );
+    for ( i=0 ; i<ai->num_of_files ; i++ ){
+        if ( !strcmp( capital_name, ai->fi_list[i].name ) ) break;
+    }
+
+    return i;
+}
+
+void SarReader::capitalizeName( const char *file_name )
 {
     unsigned int i, len;
 
@@ -285,11 +674,80 @@ int SarReader::getIndexFromFile( ArchiveInfo *ai, const char *file_name )
         if ( 'a' <= capital_name[i] && capital_name[i] <= 'z' ) capital_name[i] += 'A' - 'a';
         else if ( capital_name[i] == '/' ) capital_name[i] = '\\';
     }
-    for ( i=0 ; i<ai->num_of_files ; i++ ){
-        if ( !strcmp( capital_name, ai->fi_list[i].name ) ) break;
+}
+
+static unsigned int calcNameHash( const char *name )
+{
+    // FNV-1a, the names are already normalized
+    unsigned int hash = 2166136261u;
+    while ( *name ){
+        hash ^= (unsigned char)*name++;
+        hash *= 16777619u;
     }
+    return hash;
+}
 
-    return i;
+void SarReader::buildIndex()
+{
+    ArchiveInfo *info = archive_info.next;
+    createIndex( SarReader::getNumFiles() );
+    for ( int i=0 ; i<num_of_sar_archives ; i++ ){
+        addToIndex( info, ARCHIVE_TYPE_SAR );
+        info = info->next;
+    }
+}
+
+void SarReader::createIndex( unsigned int num_of_files )
+{
+    if ( index_table ) delete[] index_table;
+
+    // keep the load factor at or below 1/2 so that probe chains stay short
+    index_size = 16;
+    while ( index_size < num_of_files * 2 ) index_size <<= 1;
+    index_table = new IndexEntry[ index_size ];
+    memset( index_table, 0, sizeof(IndexEntry) * index_size );
+}
+
+void SarReader::addToIndex( ArchiveInfo *ai, int archive_type )
+{
+    unsigned int mask = index_size - 1;
+
+    for ( unsigned int i=0 ; i<ai->num_of_files ; i++ ){
+        unsigned int hash = calcNameHash( ai->fi_list[i].name );
+        unsigned int j = hash & mask;
+        for ( ; index_table[j].ai ; j = (j+1) & mask ){
+            // an archive added earlier takes precedence over the later ones
+            if ( index_table[j].hash == hash &&
+                 !strcmp( index_table[j].ai->fi_list[ index_table[j].no ].name, ai->fi_list[i].name ) )
+                break;
+        }
+        if ( index_table[j].ai ) continue;
+
+        index_table[j].ai = ai;
+        index_table[j].no = i;
+        index_table[j].hash = hash;
+        index_table[j].archive_type = archive_type;
+    }
+}
+
+bool SarReader::findFile( const char *file_name, ArchiveInfo **ai, unsigned int *no, int *archive_type )
+{
+    if ( index_table == NULL ) return false;
+
+    capitalizeName( file_name );
+    unsigned int hash = calcNameHash( capital_name );
+    unsigned int mask = index_size - 1;
+    for ( unsigned int j = hash & mask ; index_table[j].ai ; j = (j+1) & mask ){
+        IndexEntry &e = index_table[j];
+        if ( e.hash == hash && !strcmp( e.ai->fi_list[e.no].name, capital_name ) ){
+            *ai = e.ai;
+            *no = e.no;
+            if ( archive_type ) *archive_type = e.archive_type;
+            return true;
+        }
+    }
+
+    return false;
 }
 
 size_t SarReader::getFileLength( const char *file_name )
@@ -297,33 +755,39 @@ size_t SarReader::getFileLength( const char *file_name )
     size_t ret;
     if ( ( ret = DirectReader::getFileLength( file_name ) ) ) return ret;
 
-    ArchiveInfo *info = archive_info.next;
-    unsigned int j = 0;
-    for ( int i=0 ; i<num_of_sar_archives ; i++ ){
-        j = getIndexFromFile( info, file_name );
-        if ( j != info->num_of_files ) break;
-        info = info->next;
-    }
-    if ( !info ) return 0;
-    
-    if ( info->fi_list[j].original_length != 0 )
-        return info->fi_list[j].original_length;
+    ArchiveInfo *ai;
+    unsigned int no;
+    if ( !findFile( file_name, &ai, &no ) ) return 0;
 
-    int type = info->fi_list[j].compression_type;
+    return getFileLengthSub( ai, no, file_name );
+}
+
+size_t SarReader::getFileLengthSub( ArchiveInfo *ai, unsigned int no, const char *file_name )
+{
+    if ( ai->fi_list[no].original_length != 0 )
+        return ai->fi_list[no].original_length;
+
+    int type = ai->fi_list[no].compression_type;
     if ( type == NO_COMPRESSION )
         type = getRegisteredCompressionType( file_name );
     if ( type == NBZ_COMPRESSION || type == SPB_COMPRESSION ) {
-        info->fi_list[j].original_length = getDecompressedFileLength( type, info->file_handle, info->fi_list[j].offset );
+        ai->fi_list[no].original_length = getDecompressedFileLength( ai, no, type );
     }
     
-    return info->fi_list[j].original_length;
+    return ai->fi_list[no].original_length;
 }
 
-size_t SarReader::getFileSub( ArchiveInfo *ai, const char *file_name, unsigned char *buf )
+size_t SarReader::getDecompressedFileLength( ArchiveInfo *ai, int no, int type )
 {
-    unsigned int i = getIndexFromFile( ai, file_name );
-    if ( i == ai->num_of_files ) return 0;
+    FileInfo &fi = ai->fi_list[no];
+    if ( isMapped( ai, fi.offset, fi.length ) )
+        return DirectReader::getDecompressedFileLength( type, ai->map_data + fi.offset, fi.length );
+
+    return DirectReader::getDecompressedFileLength( type, ai->file_handle, fi.offset );
+}
 
+size_t SarReader::getFileSub( ArchiveInfo *ai, unsigned int i, const char *file_name, unsigned char *buf )
+{
 #if defined(PSP)
     if (ai->power_resume_number != psp_power_resume_number){
         FILE *fp = fopen(ai->file_name, "rb");
@@ -335,18 +799,31 @@ size_t SarReader::getFileSub( ArchiveInfo *ai, const char *file_name, unsigned c
     int type = ai->fi_list[i].compression_type;
     if ( type == NO_COMPRESSION ) type = getRegisteredCompressionType( file_name );
 
+    const unsigned char *data = NULL;
+    if ( isMapped( ai, ai->fi_list[i].offset, ai->fi_list[i].length ) )
+        data = ai->map_data + ai->fi_list[i].offset;
+
     if      ( type == NBZ_COMPRESSION ){
+        if ( data ) return decodeNBZ( data, ai->fi_list[i].length, buf );
         return decodeNBZ( ai->file_handle, ai->fi_list[i].offset, buf );
     }
     else if ( type == LZSS_COMPRESSION ){
         return decodeLZSS( ai, i, buf );
     }
     else if ( type == SPB_COMPRESSION ){
+        if ( data ) return decodeSPB( data, ai->fi_list[i].length, buf );
         return decodeSPB( ai->file_handle, ai->fi_list[i].offset, buf );
     }
 
-    fseek( ai->file_handle, ai->fi_list[i].offset, SEEK_SET );
-    size_t ret = fread( buf, 1, ai->fi_list[i].length, ai->file_handle );
+    size_t ret;
+    if ( data ){
+        ret = ai->fi_list[i].length;
+        memcpy( buf, data, ret );
+    }
+    else{
+        fseek( ai->file_handle, ai->fi_list[i].offset, SEEK_SET );
+        ret = fread( buf, 1, ai->fi_list[i].length, ai->file_handle );
+    }
     if (key_table_flag)
         for (size_t j=0 ; j<ret ; j++) buf[j] = key_table[buf[j]];
     return ret;
@@ -357,15 +834,68 @@ size_t SarReader::getFile( const char *file_name, unsigned char *buf, int *locat
     size_t ret;
     if ( ( ret = DirectReader::getFile( file_name, buf, location ) ) ) return ret;
 
-    ArchiveInfo *info = archive_info.next;
-    size_t j = 0;
-    for ( int i=0 ; i<num_of_sar_archives ; i++ ){
-        if ( (j = getFileSub( info, file_name, buf )) > 0 ) break;
-        info = info->next;
+    ArchiveInfo *ai;
+    unsigned int no;
+    int archive_type;
+    if ( !findFile( file_name, &ai, &no, &archive_type ) ) return 0;
+
+    if ( location ) *location = archive_type;
+    return getFileSub( ai, no, file_name, buf );
+}
+
+const unsigned char *SarReader::getMappedFileSub( ArchiveInfo *ai, unsigned int i, const char *file_name, size_t *length )
+{
+    // only stored entries can be used in place, the rest has to be decoded by getFile()
+    int type = ai->fi_list[i].compression_type;
+    if ( type == NO_COMPRESSION ) type = getRegisteredCompressionType( file_name );
+    if ( type == NO_COMPRESSION && !key_table_flag &&
+         isMapped( ai, ai->fi_list[i].offset, ai->fi_list[i].length ) ){
+        *length = ai->fi_list[i].length;
+        return ai->map_data + ai->fi_list[i].offset;
     }
-    if ( location ) *location = ARCHIVE_TYPE_SAR;
-    
-    return j;
+
+    return NULL;
+}
+
+const unsigned char *SarReader::getMappedFile( const char *file_name, size_t *length, int *location )
+{
+    if ( DirectReader::getFileLength( file_name ) ) return NULL;
+
+    ArchiveInfo *ai;
+    unsigned int no;
+    int archive_type;
+    if ( !findFile( file_name, &ai, &no, &archive_type ) ) return NULL;
+
+    const unsigned char *data = getMappedFileSub( ai, no, file_name, length );
+    if ( data && location ) *location = archive_type;
+
+    return data;
+}
+
+ArchiveStream *SarReader::openStream( const char *file_name, int *location )
+{
+    if ( DirectReader::getFileLength( file_name ) )
+        return DirectReader::openStream( file_name, location );
+
+    ArchiveInfo *ai;
+    unsigned int no;
+    int archive_type;
+    if ( !findFile( file_name, &ai, &no, &archive_type ) ) return NULL;
+
+    int type = ai->fi_list[no].compression_type;
+    if ( type == NO_COMPRESSION ) type = getRegisteredCompressionType( file_name );
+    if ( type == SPB_COMPRESSION ) return NULL;
+    takePendingFile( file_name );
+
+    size_t original_length = getFileLengthSub( ai, no, file_name );
+
+    // a handle of its own, the stream may outlive this reader
+    FILE *fp = fopen( ai->file_name, "rb" );
+    if ( fp == NULL ) return NULL;
+    if ( location ) *location = archive_type;
+
+    return new ArchiveStream( fp, ai->fi_list[no].offset, ai->fi_list[no].length, original_length, type,
+                              key_table_flag ? key_table : NULL );
 }
 
 SarReader::FileInfo SarReader::getFileByIndex( unsigned int index )
@@ -39,20 +39,74 @@ public:
     
     size_t getFileLength( const char *file_name );
     size_t getFile( const char *file_name, unsigned char *buf, int *location=NULL );
+    const unsigned char *getMappedFile( const char *file_name, size_t *length, int *location=NULL );
+    ArchiveStream *openStream( const char *file_name, int *location=NULL );
     FileInfo getFileByIndex( unsigned int index );
 
     int writeHeader( FILE *fp );
     size_t putFile( FILE *fp, int no, size_t offset, size_t length, size_t original_length, bool modified_flag, unsigned char *buffer );
     
 protected:
+    struct IndexEntry{
+        ArchiveInfo *ai;
+        unsigned int no;
+        unsigned int hash;
+        int archive_type;
+    };
+
     ArchiveInfo archive_info;
     ArchiveInfo *root_archive_info, *last_archive_info;
     int num_of_sar_archives;
 
+    // open-addressing table over the entries of all the mounted archives
+    IndexEntry *index_table;
+    unsigned int index_size;
+
+    int openArchive( const char *name );
+    virtual void buildIndex();
+    void createIndex( unsigned int num_of_files );
+    void addToIndex( ArchiveInfo *ai, int archive_type );
+    bool findFile( const char *file_name, ArchiveInfo **ai, unsigned int *no, int *archive_type=NULL );
+    void capitalizeName( const char *file_name );
+
+    struct ReadArchiveJob{
+        SarReader *reader;
+        ArchiveInfo **ai;
+        int *archive_type;
+        int num;
+        unsigned int offset;
+        int next;
+    };
+
     void readArchive( ArchiveInfo *ai, int archive_type = ARCHIVE_TYPE_SAR, unsigned int offset=0 );
+    void readArchives( ArchiveInfo **ai, int *archive_type, int num, unsigned int offset=0 );
+    static void *readArchiveThread( void *data );
+
+    // headers parsed in an earlier launch, see enableHeaderCache()
+    struct CachedArchive{
+        ArchiveInfo *ai;
+        int archive_type;
+        unsigned int offset;
+    };
+    CachedArchive *cached_archive;
+    int num_of_cached_archives, max_cached_archives;
+    unsigned char *header_cache_data;
+    size_t header_cache_length;
+    bool header_cache_loaded;
+    bool header_cache_dirty;
+
+    void loadHeaderCache();
+    void saveHeaderCache();
+    void writeHeaderCache();
+    bool readCachedArchive( ArchiveInfo *ai, int archive_type, unsigned int offset );
+    void addCachedArchive( ArchiveInfo *ai, int archive_type, unsigned int offset );
+    bool getHeaderCacheKey( ArchiveInfo *ai, int archive_type, unsigned int offset, char *key, size_t key_length, unsigned long long *size, long long *mtime );
     int readArchiveSub( ArchiveInfo *ai, int archive_type = ARCHIVE_TYPE_SAR, bool check_size = true );
     int getIndexFromFile( ArchiveInfo *ai, const char *file_name );
-    size_t getFileSub( ArchiveInfo *ai, const char *file_name, unsigned char *buf );
+    size_t getFileLengthSub( ArchiveInfo *ai, unsigned int no, const char *file_name );
+    size_t getFileSub( ArchiveInfo *ai, unsigned int no, const char *file_name, unsigned char *buf );
+    const unsigned char *getMappedFileSub( ArchiveInfo *ai, unsigned int no, const char *file_name, size_t *length );
+    size_t getDecompressedFileLength( ArchiveInfo *ai, int no, int type );
 
     int writeHeaderSub( ArchiveInfo *ai, FILE *fp, int archive_type = ARCHIVE_TYPE_SAR, int nsa_offset=0 );
     size_t putFileSub( ArchiveInfo *ai, FILE *fp, int no, size_t offset, size_t length, size_t original_length, int compression_type, bool modified_flag, unsigned char *buffer );
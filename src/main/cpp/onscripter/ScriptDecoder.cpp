@@ -205,6 +205,34 @@ ScriptDecoder* ScriptDecoder::detectAndAllocateScriptDecoder(char* buffer, size_
     return foundDecoder;
 }
 
+ScriptDecoder* ScriptDecoder::allocateScriptDecoder(const char* name)
+{
+    ScriptDecoder* decoders[] = { new JapaneseDecoder()
+#ifdef ENABLE_KOREAN
+                                , new KoreanDecoder()
+#endif
+#ifdef ENABLE_CHINESE
+                                , new ChineseDecoder()
+#endif
+                                , new UTF8Decoder()
+                                , new UTF7Decoder()
+                                };
+    size_t numDecoders = sizeof(decoders) / sizeof(decoders[0]);
+    ScriptDecoder* foundDecoder = 0;
+
+    for (size_t i = 0; i < numDecoders; i++) {
+        const char* a = decoders[i]->getName();
+        const char* b = name;
+        while (*a && *a == *b) a++, b++;
+        if (!foundDecoder && *a == *b) {
+            foundDecoder = decoders[i];
+        } else {
+            delete decoders[i];
+        }
+    }
+    return foundDecoder;
+}
+
 ScriptDecoder* ScriptDecoder::chooseDecoderForTextFromList(const char* buffer, ScriptDecoder** decoders, size_t n)
 {
     int size = 0;
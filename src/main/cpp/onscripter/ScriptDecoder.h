@@ -11,6 +11,7 @@ public:
     }
 
     static ScriptDecoder* detectAndAllocateScriptDecoder(char* buffer, size_t size);
+    static ScriptDecoder* allocateScriptDecoder(const char* name);
     static ScriptDecoder* chooseDecoderForTextFromList(const char* buffer, ScriptDecoder** decoders, size_t n);
 
     virtual unsigned short convertNextChar(char* buffer);
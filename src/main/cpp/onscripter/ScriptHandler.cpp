@@ -28,10 +28,20 @@
 
 #define SKIP_SPACE(p) while ( *(p) == ' ' || *(p) == '\t' ) (p)++
 
+#if defined(LINUX) || defined(MACOSX)
+#define SCRIPT_CACHE
+#include <sys/stat.h>
+#endif
+#define SCRIPT_CACHE_MAGIC "ONSSCR01"
+#define SCRIPT_CACHE_MAGIC_LENGTH 8
+
 ScriptHandler::ScriptHandler()
 {
     save_dir = NULL;
+    script_cache_path = NULL;
     num_of_labels = 0;
+    label_hash = NULL;
+    label_hash_size = 0;
     script_buffer = NULL;
     kidoku_buffer = NULL;
     log_info[LABEL_LOG].filename = "NScrllog.dat";
@@ -52,6 +62,8 @@ ScriptHandler::ScriptHandler()
     num_extended_variable_data = 0;
     max_extended_variable_data = 1;
     root_array_variable = NULL;
+    for ( int i=0 ; i<ALIAS_HASH_SIZE ; i++ )
+        num_alias_hash[i] = str_alias_hash[i] = NULL;
     
     screen_width  = 640;
     screen_height = 480;
@@ -65,6 +77,8 @@ ScriptHandler::~ScriptHandler()
     
     if ( script_buffer ) delete[] script_buffer;
     if ( kidoku_buffer ) delete[] kidoku_buffer;
+    if ( script_cache_path ) delete[] script_cache_path;
+    if ( label_hash ) delete[] label_hash;
 
     delete[] string_buffer;
     delete[] str_string_buffer;
@@ -106,26 +120,9 @@ void ScriptHandler::reset()
     resetLog( log_info[LABEL_LOG] );
     resetLog( log_info[FILE_LOG] );
     
-    // reset number alias
-    Alias *alias;
-    alias = root_num_alias.next;
-    while (alias){
-        Alias *tmp = alias;
-        alias = alias->next;
-        delete tmp;
-    };
-    last_num_alias = &root_num_alias;
-    last_num_alias->next = NULL;
-
-    // reset string alias
-    alias = root_str_alias.next;
-    while (alias){
-        Alias *tmp = alias;
-        alias = alias->next;
-        delete tmp;
-    };
-    last_str_alias = &root_str_alias;
-    last_str_alias->next = NULL;
+    // reset number and string alias
+    deleteAliases( num_alias_hash );
+    deleteAliases( str_alias_hash );
 
     // reset misc. variables
     end_status = END_NONE;
@@ -158,6 +155,13 @@ void ScriptHandler::setSaveDir(const char *path)
     strcpy(save_dir, path);
 }
 
+void ScriptHandler::enableScriptCache(const char *path)
+{
+    if (script_cache_path) delete[] script_cache_path;
+    script_cache_path = new char[ strlen(path)+1 ];
+    strcpy(script_cache_path, path);
+}
+
 FILE *ScriptHandler::fopen( const char *path, const char *mode, bool use_save_dir )
 {
     char filename[256];
@@ -554,22 +558,25 @@ char *ScriptHandler::getAddressByLine( int line )
 
 ScriptHandler::LabelInfo ScriptHandler::getLabelByAddress( char *address )
 {
-    int i;
-    for ( i=0 ; i<num_of_labels-1 ; i++ ){
-        if ( label_info[i+1].start_address > address )
-            return label_info[i];
+    // label_info is in the order of the script, the last label starting at or before address
+    int low = 1, high = num_of_labels;
+    while ( low < high ){
+        int mid = (low + high) / 2;
+        if ( label_info[mid].start_address > address ) high = mid;
+        else                                          low = mid + 1;
     }
-    return label_info[i];
+    return label_info[ low>1 ? low-1 : 0 ];
 }
 
 ScriptHandler::LabelInfo ScriptHandler::getLabelByLine( int line )
 {
-    int i;
-    for ( i=0 ; i<num_of_labels-1 ; i++ ){
-        if ( label_info[i+1].start_line > line )
-            return label_info[i];
+    int low = 1, high = num_of_labels;
+    while ( low < high ){
+        int mid = (low + high) / 2;
+        if ( label_info[mid].start_line > line ) high = mid;
+        else                                    low = mid + 1;
     }
-    return label_info[i];
+    return label_info[ low>1 ? low-1 : 0 ];
 }
 
 bool ScriptHandler::isName( const char *name )
@@ -922,10 +929,28 @@ int ScriptHandler::getStringFromInteger( char *buffer, int no, int num_column, b
 
 int ScriptHandler::openScript(char *path)
 {
+    archive_path = new char[strlen(path) + 1];
+    strcpy( archive_path, path );
+
+    // the cache holds the decoded script and its labels, both are only
+    // rebuilt when one of the script files has changed
+    unsigned long long key;
+    bool cache_flag = script_cache_path && getScriptCacheKey( &key );
+    if (cache_flag && readScriptCache( key )){
+        readConfiguration();
+        variable_data = new VariableData[variable_range];
+        hashLabels();
+        return 0;
+    }
+
     if (readScript(path) < 0) return -1;
     readConfiguration();
     variable_data = new VariableData[variable_range];
-    return labelScript();
+    int ret = labelScript();
+    if (cache_flag) writeScriptCache( key );
+    hashLabels();
+
+    return ret;
 }
 
 struct ScriptHandler::LabelInfo ScriptHandler::lookupLabel( const char *label )
@@ -993,16 +1018,46 @@ ScriptHandler::ArrayVariable *ScriptHandler::getRootArrayVariable(){
 
 void ScriptHandler::addNumAlias( const char *str, int no )
 {
-    Alias *p_num_alias = new Alias( str, no );
-    last_num_alias->next = p_num_alias;
-    last_num_alias = last_num_alias->next;
+    addAlias( num_alias_hash, new Alias( str, no ) );
 }
 
 void ScriptHandler::addStrAlias( const char *str1, const char *str2 )
 {
-    Alias *p_str_alias = new Alias( str1, str2 );
-    last_str_alias->next = p_str_alias;
-    last_str_alias = last_str_alias->next;
+    addAlias( str_alias_hash, new Alias( str1, str2 ) );
+}
+
+void ScriptHandler::addAlias( Alias **table, Alias *alias )
+{
+    // appended, so that an alias defined again does not hide the first one
+    Alias **p = &table[ alias->hash & (ALIAS_HASH_SIZE-1) ];
+    while ( *p ) p = &(*p)->next;
+    *p = alias;
+}
+
+ScriptHandler::Alias *ScriptHandler::findAlias( Alias **table, const char *name )
+{
+    unsigned int hash = hashName( name );
+
+    Alias *alias = table[ hash & (ALIAS_HASH_SIZE-1) ];
+    while ( alias ){
+        if ( alias->hash == hash && !strcmp( alias->alias, name ) ) break;
+        alias = alias->next;
+    }
+
+    return alias;
+}
+
+void ScriptHandler::deleteAliases( Alias **table )
+{
+    for ( int i=0 ; i<ALIAS_HASH_SIZE ; i++ ){
+        Alias *alias = table[i];
+        while (alias){
+            Alias *tmp = alias;
+            alias = alias->next;
+            delete tmp;
+        }
+        table[i] = NULL;
+    }
 }
 
 void ScriptHandler::errorAndExit()
@@ -1066,9 +1121,6 @@ ScriptHandler::VariableData &ScriptHandler::getVariableData(int no)
 // Private methods
 int ScriptHandler::readScript( char *path )
 {
-    archive_path = new char[strlen(path) + 1];
-    strcpy( archive_path, path );
-
     FILE *fp = NULL;
     char filename[10];
     int i, encrypt_mode = 0;
@@ -1218,6 +1270,194 @@ int ScriptHandler::readScriptSub( FILE *fp, char **buf, int encrypt_mode )
     return 0;
 }
 
+#if defined(SCRIPT_CACHE)
+static void addCacheKey( unsigned long long *hash, const void *data, size_t length )
+{
+    const unsigned char *p = (const unsigned char*)data;
+    for ( size_t i=0 ; i<length ; i++ ){
+        *hash ^= p[i];
+        *hash *= 1099511628211ULL;
+    }
+}
+
+static bool addCacheKeyFile( unsigned long long *hash, FILE *fp, const char *filename )
+{
+    struct stat st;
+    bool ret = fstat( fileno( fp ), &st ) == 0;
+    fclose( fp );
+    if ( !ret ) return false;
+
+    long long size = st.st_size, mtime = st.st_mtime;
+    addCacheKey( hash, filename, strlen( filename ) + 1 );
+    addCacheKey( hash, &size, 8 );
+    addCacheKey( hash, &mtime, 8 );
+    return true;
+}
+#endif
+
+bool ScriptHandler::getScriptCacheKey( unsigned long long *key )
+{
+#if defined(SCRIPT_CACHE)
+    // the files are looked up in the same order as readScript() does
+    unsigned long long hash = 14695981039346656037ULL;
+    addCacheKey( &hash, archive_path, strlen( archive_path ) + 1 );
+
+    FILE *fp;
+    char filename[16];
+    int i, num_of_files = 0;
+    if ((fp = fopen("0.txt", "rb")) != NULL || (fp = fopen("00.txt", "rb")) != NULL){
+        fclose( fp );
+        for (i=0 ; i<100 ; i++){
+            sprintf(filename, "%d.txt", i);
+            if ((fp = fopen(filename, "rb")) == NULL){
+                sprintf(filename, "%02d.txt", i);
+                fp = fopen(filename, "rb");
+            }
+            if (fp){
+                if (!addCacheKeyFile( &hash, fp, filename )) return false;
+                num_of_files++;
+            }
+        }
+    }
+    else{
+        const char *names[] = { "nscr_sec.dat", "nscript.___", "nscript.dat" };
+        for (i=0 ; i<3 ; i++){
+            if ((fp = fopen(names[i], "rb")) == NULL) continue;
+            if (!addCacheKeyFile( &hash, fp, names[i] )) return false;
+            // decoded with the key table of the EXE file
+            if (i == 1){
+                if (!key_table_flag) return false;
+                addCacheKey( &hash, key_table, 256 );
+            }
+            num_of_files++;
+            break;
+        }
+    }
+    if (num_of_files == 0) return false;
+
+    *key = hash;
+    return true;
+#else
+    return false;
+#endif
+}
+
+bool ScriptHandler::readScriptCache( unsigned long long key )
+{
+    FILE *fp = ::fopen( script_cache_path, "rb" );
+    if ( fp == NULL ) return false;
+
+    char magic[SCRIPT_CACHE_MAGIC_LENGTH];
+    unsigned long long cached_key;
+    unsigned int length, labels;
+    unsigned char name_length;
+    char name[256];
+    if ( fread( magic, 1, SCRIPT_CACHE_MAGIC_LENGTH, fp ) != SCRIPT_CACHE_MAGIC_LENGTH ||
+         memcmp( magic, SCRIPT_CACHE_MAGIC, SCRIPT_CACHE_MAGIC_LENGTH ) ||
+         fread( &cached_key, 8, 1, fp ) != 1 || cached_key != key ||
+         fread( &length, 4, 1, fp ) != 1 ||
+         fread( &labels, 4, 1, fp ) != 1 ||
+         fread( &name_length, 1, 1, fp ) != 1 ||
+         fread( name, 1, name_length, fp ) != name_length ){
+        fclose( fp );
+        return false;
+    }
+    name[name_length] = '\0';
+
+    ScriptDecoder *cached_decoder = NULL;
+    if ( !decoder && (cached_decoder = ScriptDecoder::allocateScriptDecoder( name )) == NULL ){
+        fclose( fp );
+        return false;
+    }
+
+    // the cache is only trusted as a whole, a broken record falls back to the script
+    char *buf = new char[ length+1 ];
+    LabelInfo *info = new LabelInfo[ labels+1 ];
+    unsigned int i = 0;
+    bool ok = fread( buf, 1, length, fp ) == length;
+    while ( ok && i<labels ){
+        unsigned int len, offset[2];
+        if ( fread( &len, 4, 1, fp ) != 1 || len >= STRING_BUFFER_LENGTH ){
+            ok = false;
+            break;
+        }
+        info[i].name = new char[ len+1 ];
+        info[i].name[len] = '\0';
+        ok = fread( info[i].name, 1, len, fp ) == len &&
+             fread( offset, 4, 2, fp ) == 2 && offset[0] < length && offset[1] <= length &&
+             fread( &info[i].start_line, 4, 1, fp ) == 1 &&
+             fread( &info[i].num_of_lines, 4, 1, fp ) == 1;
+        info[i].label_header  = buf + offset[0];
+        info[i].start_address = buf + offset[1];
+        i++;
+    }
+    fclose( fp );
+
+    if ( !ok ){
+        while ( i>0 ) delete[] info[--i].name;
+        delete[] info;
+        delete[] buf;
+        if ( cached_decoder ) delete cached_decoder;
+        return false;
+    }
+
+    if ( script_buffer ) delete[] script_buffer;
+    script_buffer = buf;
+    script_buffer[length] = '\0';
+    script_buffer_length = length;
+    current_script = script_buffer;
+
+    label_info = info;
+    num_of_labels = labels;
+    label_info[num_of_labels].start_address = NULL;
+
+    if ( cached_decoder ){
+        decoder = cached_decoder;
+        logv("Decoder: %s", decoder->getName());
+    }
+    return true;
+}
+
+void ScriptHandler::writeScriptCache( unsigned long long key )
+{
+    // written next to the cache and renamed, a half written file is never read
+    char *tmp_path = new char[ strlen(script_cache_path) + 5 ];
+    sprintf( tmp_path, "%s.tmp", script_cache_path );
+    FILE *fp = ::fopen( tmp_path, "wb" );
+    if ( fp == NULL ){
+        delete[] tmp_path;
+        return;
+    }
+
+    const char *name = decoder->getName();
+    unsigned char name_length = strlen( name );
+    unsigned int length = script_buffer_length, labels = num_of_labels;
+    bool ok = fwrite( SCRIPT_CACHE_MAGIC, 1, SCRIPT_CACHE_MAGIC_LENGTH, fp ) == SCRIPT_CACHE_MAGIC_LENGTH &&
+              fwrite( &key, 8, 1, fp ) == 1 &&
+              fwrite( &length, 4, 1, fp ) == 1 &&
+              fwrite( &labels, 4, 1, fp ) == 1 &&
+              fwrite( &name_length, 1, 1, fp ) == 1 &&
+              fwrite( name, 1, name_length, fp ) == name_length &&
+              fwrite( script_buffer, 1, length, fp ) == length;
+    for ( int i=0 ; ok && i<num_of_labels ; i++ ){
+        unsigned int len = strlen( label_info[i].name );
+        unsigned int offset[2] = { (unsigned int)(label_info[i].label_header - script_buffer),
+                                   (unsigned int)(label_info[i].start_address - script_buffer) };
+        ok = fwrite( &len, 4, 1, fp ) == 1 &&
+             fwrite( label_info[i].name, 1, len, fp ) == len &&
+             fwrite( offset, 4, 2, fp ) == 2 &&
+             fwrite( &label_info[i].start_line, 4, 1, fp ) == 1 &&
+             fwrite( &label_info[i].num_of_lines, 4, 1, fp ) == 1;
+    }
+    if ( fclose( fp ) != 0 ) ok = false;
+
+    if ( !ok || rename( tmp_path, script_cache_path ) != 0 ){
+        logw( stderr, " *** can't write the script cache [%s] ***\n", script_cache_path );
+        remove( tmp_path );
+    }
+    delete[] tmp_path;
+}
+
 void ScriptHandler::readConfiguration()
 {
     variable_range = 4096;
@@ -1342,11 +1582,41 @@ int ScriptHandler::labelScript()
         }
     }
 
+    // "**" counts more than one label in readScriptSub()
+    num_of_labels = label_counter + 1;
     label_info[num_of_labels].start_address = NULL;
     
     return 0;
 }
 
+unsigned int ScriptHandler::hashName( const char *name )
+{
+    unsigned int hash = 2166136261u;
+    while (*name){
+        hash ^= (unsigned char)*name++;
+        hash *= 16777619u;
+    }
+
+    return hash;
+}
+
+void ScriptHandler::hashLabels()
+{
+    // open addressing, at most half full, the first label of a name is kept
+    label_hash_size = 16;
+    while ( label_hash_size < num_of_labels * 2 ) label_hash_size *= 2;
+    if ( label_hash ) delete[] label_hash;
+    label_hash = new int[ label_hash_size ];
+    for ( int i=0 ; i<label_hash_size ; i++ ) label_hash[i] = -1;
+
+    for ( int i=0 ; i<num_of_labels ; i++ ){
+        int j = hashName( label_info[i].name ) & (label_hash_size-1);
+        while ( label_hash[j] >= 0 && strcmp( label_info[ label_hash[j] ].name, label_info[i].name ) )
+            j = (j+1) & (label_hash_size-1);
+        if ( label_hash[j] < 0 ) label_hash[j] = i;
+    }
+}
+
 int ScriptHandler::findLabel( const char *label )
 {
     int i;
@@ -1356,9 +1626,9 @@ int ScriptHandler::findLabel( const char *label )
         capital_label[i] = label[i];
         if ( 'A' <= capital_label[i] && capital_label[i] <= 'Z' ) capital_label[i] += 'a' - 'A';
     }
-    for ( i=0 ; i<num_of_labels ; i++ ){
-        if ( !strcmp( label_info[i].name, capital_label ) )
-            return i;
+    for ( i=hashName( capital_label ) & (label_hash_size-1) ; label_hash[i] >= 0 ; i=(i+1) & (label_hash_size-1) ){
+        if ( !strcmp( label_info[ label_hash[i] ].name, capital_label ) )
+            return label_hash[i];
     }
 
 #ifdef ENABLE_KOREAN
@@ -1505,16 +1775,11 @@ void ScriptHandler::parseStr( char **buf )
             return;
         }
         
-        Alias *p_str_alias = root_str_alias.next;
-
-        while( p_str_alias ){
-            if ( !strcmp( p_str_alias->alias, (const char*)alias_buf ) ){
-                strcpy( str_string_buffer, p_str_alias->str );
-                break;
-            }
-            p_str_alias = p_str_alias->next;
+        Alias *p_str_alias = findAlias( str_alias_hash, alias_buf );
+        if ( p_str_alias ){
+            strcpy( str_string_buffer, p_str_alias->str );
         }
-        if ( !p_str_alias ){
+        else{
 #ifdef ANDROID
             /*
              * We will be forgiving if the author tried to do "goto *label" but forgot the asterisk
@@ -1613,17 +1878,11 @@ int ScriptHandler::parseInt( char **buf )
         /* Solve num aliases */
         if ( num_alias_flag ){
             alias_buf[ alias_buf_len ] = '\0';
-            Alias *p_num_alias = root_num_alias.next;
-
-            while( p_num_alias ){
-                if ( !strcmp( p_num_alias->alias,
-                              (const char*)alias_buf ) ){
-                    alias_no = p_num_alias->num;
-                    break;
-                }
-                p_num_alias = p_num_alias->next;
+            Alias *p_num_alias = findAlias( num_alias_hash, alias_buf );
+            if ( p_num_alias ){
+                alias_no = p_num_alias->num;
             }
-            if ( !p_num_alias ){
+            else{
                 //printf("can't find num alias for %s... assume 0.\n", alias_buf );
                 current_variable.type = VAR_NONE;
                 *buf = buf_start;
@@ -46,6 +46,8 @@
 #define KOREAN_LABEL_END2 "l_testnano"
 #endif
 
+#define ALIAS_HASH_SIZE 1024 // a power of two
+
 typedef unsigned char uchar3[3];
 
 class ScriptHandler
@@ -116,6 +118,7 @@ public:
 
     void reset();
     void setSaveDir(const char *path);
+    void enableScriptCache(const char *path);
     FILE *fopen( const char *path, const char *mode, bool use_save_dir=false );
     void setKeyTable( const unsigned char *key_table );
 
@@ -138,6 +141,7 @@ public:
     inline char *getCurrent(bool use_script=false){ return (use_script && is_internal_script)?last_script_context->current_script:current_script; };
     inline char *getNext(){ return next_script; };
     inline char *getWait(){ return wait_script?wait_script:next_script; };
+    inline char *getScriptEnd(){ return script_buffer + script_buffer_length; };
     void setCurrent(char *pos);
     void pushCurrent( char *pos );
     void popCurrent();
@@ -271,8 +275,9 @@ private:
     };
     
     struct Alias{
-        struct Alias *next;
+        struct Alias *next; // in the same bucket
         char *alias;
+        unsigned int hash;
         int  num;
         char *str;
 
@@ -285,6 +290,7 @@ private:
             next = NULL;
             alias = new char[ strlen(name) + 1];
             strcpy( alias, name );
+            hash = hashName( name );
             str = NULL;
             this->num = num;
         };
@@ -292,6 +298,7 @@ private:
             next = NULL;
             alias = new char[ strlen(name) + 1];
             strcpy( alias, name );
+            hash = hashName( name );
             this->str = new char[ strlen(str) + 1];
             strcpy( this->str, str );
         };
@@ -315,11 +322,20 @@ private:
 
     int  readScript(char *path);
     int  readScriptSub(FILE *fp, char **buf, int encrypt_mode);
+    bool getScriptCacheKey(unsigned long long *key);
+    bool readScriptCache(unsigned long long key);
+    void writeScriptCache(unsigned long long key);
     void readConfiguration();
     int  labelScript();
+    void hashLabels();
 
     int findLabel( const char* label );
 
+    static unsigned int hashName( const char *name );
+    void addAlias( Alias **table, Alias *alias );
+    Alias *findAlias( Alias **table, const char *name );
+    void deleteAliases( Alias **table );
+
     char *checkComma( char *buf );
     void parseStr( char **buf );
     void readNextOp( char **buf, int *op, int *num );
@@ -337,13 +353,15 @@ private:
     int num_extended_variable_data;
     int max_extended_variable_data;
 
-    Alias root_num_alias, *last_num_alias;
-    Alias root_str_alias, *last_str_alias;
+    // chained by the hash of the name, the first alias of a name is found
+    Alias *num_alias_hash[ALIAS_HASH_SIZE];
+    Alias *str_alias_hash[ALIAS_HASH_SIZE];
     
     ArrayVariable *root_array_variable, *current_array_variable;
 
     char *archive_path;
     char *save_dir;
+    char *script_cache_path;
     int  script_buffer_length;
     char *script_buffer;
     unsigned char *tmp_script_buf;
@@ -355,6 +373,8 @@ private:
 
     LabelInfo *label_info;
     int num_of_labels;
+    int *label_hash; // indices of label_info by name, -1 for an empty slot
+    int label_hash_size;
 
     bool skip_enabled;
     bool kidokuskip_flag;
@@ -80,6 +80,11 @@ ScriptParser::ScriptParser()
 
     render_font_outline = false;
     use_parent_resources = false;
+    use_mmap_archives = false;
+    use_header_cache = false;
+    use_script_cache = false;
+    archive_open_time = script_open_time = 0;
+    num_executed_commands = num_entered_labels = 0;
     page_list = NULL;
 
 #ifdef ANDROID
@@ -119,7 +124,7 @@ ScriptParser::~ScriptParser()
 void ScriptParser::reset()
 {
     int i;
-    for (i='z'-'a' ; i>=0 ; i--){
+    for (i=USER_FUNC_HASH_SIZE-1 ; i>=0 ; i--){
         UserFuncHash &ufh = user_func_hash[i];
         UserFuncLUT *func = ufh.root.next;
         while(func){
@@ -281,14 +286,27 @@ void ScriptParser::reset()
 
 int ScriptParser::openScript()
 {
+    // SDL is not initialized yet, the ticks are only valid as differences
+    Uint32 start = SDL_GetTicks();
     script_h.cBR = new NsaReader( 0, archive_path, BaseReader::ARCHIVE_TYPE_NS2, key_table, use_parent_resources );
+    setupReader();
     if (script_h.cBR->open( nsa_path )){
         delete script_h.cBR;
         script_h.cBR = new DirectReader( archive_path, key_table, use_parent_resources );
         script_h.cBR->open();
     }
+    archive_open_time = SDL_GetTicks() - start;
     
+    start = SDL_GetTicks();
+    if (use_script_cache){
+        const char *dir = save_dir ? save_dir : archive_path;
+        char *path = new char[ strlen(dir) + strlen(SCRIPT_CACHE_FILE) + 1 ];
+        sprintf( path, "%s%s", dir, SCRIPT_CACHE_FILE );
+        script_h.enableScriptCache( path );
+        delete[] path;
+    }
     if ( script_h.openScript( archive_path ) ) return -1;
+    script_open_time = SDL_GetTicks() - start;
 
     screen_width  = script_h.screen_width;
     screen_height = script_h.screen_height;
@@ -296,6 +314,30 @@ int ScriptParser::openScript()
     return 0;
 }
 
+unsigned int ScriptParser::hashCommand( const char *cmd )
+{
+    // FNV-1a over the whole name
+    unsigned int hash = 2166136261u;
+    while (*cmd){
+        hash ^= (unsigned char)*cmd++;
+        hash *= 16777619u;
+    }
+
+    return hash;
+}
+
+void ScriptParser::setupReader()
+{
+    if (use_mmap_archives) script_h.cBR->enableMemoryMap();
+    if (use_header_cache){
+        const char *dir = save_dir ? save_dir : archive_path;
+        char *path = new char[ strlen(dir) + strlen(HEADER_CACHE_FILE) + 1 ];
+        sprintf( path, "%s%s", dir, HEADER_CACHE_FILE );
+        script_h.cBR->enableHeaderCache( path );
+        delete[] path;
+    }
+}
+
 unsigned char ScriptParser::convHexToDec( char ch )
 {
     if      ( '0' <= ch && ch <= '9' ) return ch - '0';
@@ -679,6 +721,7 @@ void ScriptParser::setCurrentLabel( const char *label )
 {
     current_label_info = script_h.lookupLabel( label );
     current_line = script_h.getLineByAddress( current_label_info.start_address );
+    num_entered_labels++;
     script_h.setCurrent( current_label_info.start_address );
 }
 
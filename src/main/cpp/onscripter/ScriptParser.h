@@ -53,10 +53,14 @@
 #define DEFAULT_LOOKBACK_NAME2 "doncur.bmp"
 #define DEFAULT_LOOKBACK_NAME3 "doffcur.bmp"
 
+#define HEADER_CACHE_FILE "archive_headers.dat"
+#define SCRIPT_CACHE_FILE "script_cache.dat"
+
 #define DEFAULT_START_KINSOKU "vxjnpABCDEHIRSTUX["
 #define DEFAULT_END_KINSOKU   "uwimo"
 
 #define MAX_LAYER_NUM 32
+#define USER_FUNC_HASH_SIZE 256 // a power of 2
 
 typedef unsigned char uchar3[3];
 
@@ -187,7 +191,9 @@ protected:
     struct UserFuncHash{
         UserFuncLUT root;
         UserFuncLUT *last;
-    } user_func_hash['z'-'a'+1];
+    } user_func_hash[USER_FUNC_HASH_SIZE];
+
+    static unsigned int hashCommand( const char *cmd );
 
     struct NestInfo{
         enum { LABEL = 0,
@@ -256,6 +262,14 @@ protected:
     int  windowchip_sprite_no;
 
     bool use_parent_resources;
+    bool use_mmap_archives;
+    bool use_header_cache;
+    bool use_script_cache;
+    virtual void setupReader();
+    Uint32 archive_open_time; // milliseconds
+    Uint32 script_open_time;
+    unsigned long num_executed_commands;
+    unsigned long num_entered_labels; // by goto, gosub and so on or by reaching the next label
     
     int string_buffer_offset;
 
@@ -496,6 +496,7 @@ int ScriptParser::nsaCommand()
     
     delete script_h.cBR;
     script_h.cBR = new NsaReader( nsa_offset, archive_path, BaseReader::ARCHIVE_TYPE_NSA|BaseReader::ARCHIVE_TYPE_NS2, key_table, use_parent_resources );
+    setupReader();
     if ( script_h.cBR->open( nsa_path ) ){
         logw( stderr, " *** failed to open nsa or ns2 archive, ignored.  ***\n");
     }
@@ -709,7 +710,7 @@ int ScriptParser::luasubCommand()
     const char *cmd = script_h.readLabel();
 
     if (cmd[0] >= 'a' && cmd[0] <= 'z'){
-        UserFuncHash &ufh = user_func_hash[cmd[0]-'a'];
+        UserFuncHash &ufh = user_func_hash[hashCommand( cmd ) & (USER_FUNC_HASH_SIZE-1)];
         ufh.last->next = new UserFuncLUT();
         ufh.last = ufh.last->next;
         ufh.last->lua_flag = true;
@@ -1241,7 +1242,7 @@ int ScriptParser::defsubCommand()
     const char *cmd = script_h.readLabel();
 
     if (cmd[0] >= 'a' && cmd[0] <= 'z'){
-        UserFuncHash &ufh = user_func_hash[cmd[0]-'a'];
+        UserFuncHash &ufh = user_func_hash[hashCommand( cmd ) & (USER_FUNC_HASH_SIZE-1)];
         ufh.last->next = new UserFuncLUT();
         ufh.last = ufh.last->next;
         setStr( &ufh.last->command, cmd );
@@ -1416,6 +1417,7 @@ int ScriptParser::arcCommand()
     if ( strcmp( script_h.cBR->getArchiveName(), "direct" ) == 0 ){
         delete script_h.cBR;
         script_h.cBR = new SarReader( archive_path, key_table, use_parent_resources );
+        setupReader();
         if ( script_h.cBR->open( buf2 ) ){
             logw( stderr, " *** failed to open archive %s, ignored.  ***\n", buf2 );
         }
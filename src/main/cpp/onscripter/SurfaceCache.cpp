@@ -0,0 +1,193 @@
+/* -*- C++ -*-
+ * 
+ *  SurfaceCache.cpp - LRU cache of decoded images
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "SurfaceCache.h"
+#include <string.h>
+
+SurfaceCache::SurfaceCache()
+{
+    root.prev = root.next = &root;
+    for ( int i=0 ; i<SURFACE_CACHE_HASH_SIZE ; i++ ) table[i] = NULL;
+    budget = 0;
+    size = 0;
+    hit_count = miss_count = eviction_count = 0;
+}
+
+SurfaceCache::~SurfaceCache()
+{
+    clear();
+}
+
+void SurfaceCache::setBudget( size_t bytes )
+{
+    budget = bytes;
+    while ( size > budget ) evictLast();
+}
+
+void SurfaceCache::clear()
+{
+    while ( root.next != &root ) deleteEntry( root.next );
+}
+
+void SurfaceCache::remove( const char *file_name )
+{
+    Entry *e = root.next;
+    while ( e != &root ){
+        Entry *next = e->next;
+        if ( matchFileName( e->key, file_name ) ) deleteEntry( e );
+        e = next;
+    }
+}
+
+SDL_Surface *SurfaceCache::get( const char *key, int *orig_w, int *orig_h )
+{
+    if ( budget == 0 ) return NULL;
+
+    unsigned int hash = calcHash( key );
+    for ( Entry *e = table[hash & (SURFACE_CACHE_HASH_SIZE-1)] ; e ; e = e->hash_next ){
+        if ( e->hash != hash || strcmp( e->key, key ) ) continue;
+
+        SDL_Surface *surface = duplicateSurface( e->surface );
+        if ( surface == NULL ) break;
+
+        unlink( e );
+        linkFront( e );
+        *orig_w = e->orig_w;
+        *orig_h = e->orig_h;
+        hit_count++;
+        return surface;
+    }
+
+    miss_count++;
+    return NULL;
+}
+
+void SurfaceCache::put( const char *key, SDL_Surface *surface, int orig_w, int orig_h )
+{
+    if ( surface == NULL ) return;
+
+    size_t len = surface->pitch * surface->h;
+    if ( len > budget ) return;
+
+    SDL_Surface *copy = duplicateSurface( surface );
+    if ( copy == NULL ) return;
+
+    while ( size + len > budget ) evictLast();
+
+    Entry *e = new Entry();
+    e->key = new char[ strlen(key) + 1 ];
+    strcpy( e->key, key );
+    e->hash = calcHash( key );
+    e->surface = copy;
+    e->orig_w = orig_w;
+    e->orig_h = orig_h;
+    e->size = len;
+    linkFront( e );
+    Entry **bucket = &table[e->hash & (SURFACE_CACHE_HASH_SIZE-1)];
+    e->hash_next = *bucket;
+    *bucket = e;
+    size += len;
+}
+
+unsigned int SurfaceCache::calcHash( const char *key )
+{
+    // FNV-1a
+    unsigned int hash = 2166136261u;
+    while ( *key ){
+        hash ^= (unsigned char)*key++;
+        hash *= 16777619u;
+    }
+    return hash;
+}
+
+// the key starts with "file|mask|", either of them may name the file
+bool SurfaceCache::matchFileName( const char *key, const char *file_name )
+{
+    for ( int i=0 ; i<2 ; i++ ){
+        const char *p = file_name;
+        while ( *key != '|' && *p ){
+            char c1 = *key++, c2 = *p++;
+            if ( c1 == '\\' ) c1 = '/';
+            if ( c2 == '\\' ) c2 = '/';
+            if ( c1 >= 'A' && c1 <= 'Z' ) c1 += 'a' - 'A';
+            if ( c2 >= 'A' && c2 <= 'Z' ) c2 += 'a' - 'A';
+            if ( c1 != c2 ) break;
+        }
+        if ( *key == '|' && *p == '\0' ) return true;
+        while ( *key != '|' ) key++;
+        key++;
+    }
+    return false;
+}
+
+SDL_Surface *SurfaceCache::duplicateSurface( SDL_Surface *src )
+{
+    SDL_PixelFormat *fmt = src->format;
+    SDL_Surface *dst = SDL_CreateRGBSurface( SDL_SWSURFACE, src->w, src->h, fmt->BitsPerPixel,
+                                             fmt->Rmask, fmt->Gmask, fmt->Bmask, fmt->Amask );
+    if ( dst == NULL ) return NULL;
+
+    SDL_LockSurface( src );
+    SDL_LockSurface( dst );
+    for ( int i=0 ; i<src->h ; i++ )
+        memcpy( (unsigned char*)dst->pixels + dst->pitch*i,
+                (unsigned char*)src->pixels + src->pitch*i, src->w*fmt->BytesPerPixel );
+    SDL_UnlockSurface( dst );
+    SDL_UnlockSurface( src );
+
+    return dst;
+}
+
+void SurfaceCache::unlink( Entry *e )
+{
+    e->prev->next = e->next;
+    e->next->prev = e->prev;
+}
+
+void SurfaceCache::linkFront( Entry *e )
+{
+    e->prev = &root;
+    e->next = root.next;
+    root.next->prev = e;
+    root.next = e;
+}
+
+// only entries dropped to stay within the budget count as evictions
+void SurfaceCache::evictLast()
+{
+    deleteEntry( root.prev );
+    eviction_count++;
+}
+
+void SurfaceCache::deleteEntry( Entry *e )
+{
+    unlink( e );
+    Entry **bucket = &table[e->hash & (SURFACE_CACHE_HASH_SIZE-1)];
+    while ( *bucket != e ) bucket = &(*bucket)->hash_next;
+    *bucket = e->hash_next;
+    size -= e->size;
+
+    SDL_FreeSurface( e->surface );
+    delete[] e->key;
+    delete e;
+}
@@ -0,0 +1,79 @@
+/* -*- C++ -*-
+ * 
+ *  SurfaceCache.h - LRU cache of decoded images
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __SURFACE_CACHE_H__
+#define __SURFACE_CACHE_H__
+
+#include <SDL.h>
+
+#define SURFACE_CACHE_HASH_SIZE 256 // a power of two
+
+class SurfaceCache
+{
+public:
+    SurfaceCache();
+    ~SurfaceCache();
+
+    void setBudget( size_t bytes );
+    bool isEnabled(){ return budget > 0; };
+    void clear();
+    // drops every entry decoded from the file, e.g. after it was rewritten
+    void remove( const char *file_name );
+
+    // both return or keep a copy, the caller still owns its surface
+    SDL_Surface *get( const char *key, int *orig_w, int *orig_h );
+    void put( const char *key, SDL_Surface *surface, int orig_w, int orig_h );
+
+    size_t getSize(){ return size; };
+    unsigned int hit_count;
+    unsigned int miss_count;
+    unsigned int eviction_count;
+
+private:
+    struct Entry{
+        char *key;
+        unsigned int hash;
+        SDL_Surface *surface;
+        int orig_w, orig_h;
+        size_t size;
+        Entry *prev, *next;
+        Entry *hash_next; // in the same bucket
+    };
+
+    // most recently used first
+    Entry root;
+    // chained by the hash of the key
+    Entry *table[SURFACE_CACHE_HASH_SIZE];
+    size_t budget;
+    size_t size;
+
+    unsigned int calcHash( const char *key );
+    bool matchFileName( const char *key, const char *file_name );
+    SDL_Surface *duplicateSurface( SDL_Surface *src );
+    void unlink( Entry *e );
+    void linkFront( Entry *e );
+    void evictLast();
+    void deleteEntry( Entry *e );
+};
+
+#endif // __SURFACE_CACHE_H__
@@ -0,0 +1,151 @@
+/* -*- C++ -*-
+ *
+ *  TextPrerenderer.cpp - Renders the glyphs of the coming text in the background
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#include "TextPrerenderer.h"
+
+TextPrerenderer::TextPrerenderer()
+{
+    func = NULL;
+    data = NULL;
+    thread = NULL;
+    font_mutex = queue_mutex = NULL;
+    queue_cond = NULL;
+    quit_flag = false;
+    queue_head = queue_num = 0;
+}
+
+TextPrerenderer::~TextPrerenderer()
+{
+    stop();
+}
+
+void TextPrerenderer::start( RenderFunc func, void *data )
+{
+    if ( thread ) return;
+
+    this->func = func;
+    this->data = data;
+    font_mutex = SDL_CreateMutex();
+    queue_mutex = SDL_CreateMutex();
+    queue_cond = SDL_CreateCond();
+    quit_flag = false;
+
+    SDL_mutexP( font_mutex );
+    thread = SDL_CreateThread( threadMain, this );
+    if ( thread == NULL ){
+        SDL_mutexV( font_mutex );
+        SDL_DestroyCond( queue_cond );
+        SDL_DestroyMutex( queue_mutex );
+        SDL_DestroyMutex( font_mutex );
+        font_mutex = queue_mutex = NULL;
+        queue_cond = NULL;
+    }
+}
+
+void TextPrerenderer::stop()
+{
+    if ( thread == NULL ) return;
+
+    SDL_mutexP( queue_mutex );
+    quit_flag = true;
+    SDL_CondSignal( queue_cond );
+    SDL_mutexV( queue_mutex );
+
+    // the worker may be waiting for the fonts
+    SDL_mutexV( font_mutex );
+    SDL_WaitThread( thread, NULL );
+    thread = NULL;
+
+    SDL_DestroyCond( queue_cond );
+    SDL_DestroyMutex( queue_mutex );
+    SDL_DestroyMutex( font_mutex );
+    font_mutex = queue_mutex = NULL;
+    queue_cond = NULL;
+    queue_num = 0;
+}
+
+void TextPrerenderer::clear()
+{
+    if ( thread == NULL ) return;
+
+    SDL_mutexP( queue_mutex );
+    queue_num = 0;
+    SDL_mutexV( queue_mutex );
+}
+
+void TextPrerenderer::request( void *font, void *font_s, int style, unsigned short unicode )
+{
+    if ( thread == NULL ) return;
+
+    SDL_mutexP( queue_mutex );
+    if ( queue_num < PRERENDER_QUEUE_SIZE ){
+        Request &r = queue[ (queue_head + queue_num) % PRERENDER_QUEUE_SIZE ];
+        r.font = font;
+        r.font_s = font_s;
+        r.style = style;
+        r.unicode = unicode;
+        queue_num++;
+        SDL_CondSignal( queue_cond );
+    }
+    SDL_mutexV( queue_mutex );
+}
+
+void TextPrerenderer::release()
+{
+    if ( thread ) SDL_mutexV( font_mutex );
+}
+
+void TextPrerenderer::acquire()
+{
+    if ( thread ) SDL_mutexP( font_mutex );
+}
+
+int TextPrerenderer::threadMain( void *data )
+{
+    ((TextPrerenderer*)data)->run();
+    return 0;
+}
+
+void TextPrerenderer::run()
+{
+    Request r;
+
+    while (1){
+        SDL_mutexP( queue_mutex );
+        while ( queue_num == 0 && !quit_flag )
+            SDL_CondWait( queue_cond, queue_mutex );
+        if ( quit_flag ){
+            SDL_mutexV( queue_mutex );
+            break;
+        }
+        r = queue[ queue_head ];
+        queue_head = (queue_head + 1) % PRERENDER_QUEUE_SIZE;
+        queue_num--;
+        SDL_mutexV( queue_mutex );
+
+        // one glyph at a time, so acquire() returns soon after the wait
+        SDL_mutexP( font_mutex );
+        if ( !quit_flag ) func( data, r.font, r.font_s, r.style, r.unicode );
+        SDL_mutexV( font_mutex );
+    }
+}
@@ -0,0 +1,78 @@
+/* -*- C++ -*-
+ *
+ *  TextPrerenderer.h - Renders the glyphs of the coming text in the background
+ *
+ *  Copyright (c) 2001-2016 Ogapee. All rights reserved.
+ *
+ *  ogapee@aqua.dti2.ne.jp
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+#ifndef __TEXT_PRERENDERER_H__
+#define __TEXT_PRERENDERER_H__
+
+#include <SDL.h>
+
+#define PRERENDER_QUEUE_SIZE 1024
+#define PRERENDER_LOOKAHEAD 2048 // bytes of the script scanned after the current line
+
+// Only warms the glyph cache, layout and blending stay on the script thread.
+// The script thread owns the fonts and the glyph cache and hands them to the
+// worker only while it is blocked waiting for events, the same as
+// ResourcePrefetcher does with the readers.
+class TextPrerenderer
+{
+public:
+    typedef void (*RenderFunc)( void *data, void *font, void *font_s, int style, unsigned short unicode );
+
+    TextPrerenderer();
+    ~TextPrerenderer();
+
+    bool isEnabled(){ return thread != NULL; };
+
+    // both called on the script thread, which keeps the fonts until release()
+    void start( RenderFunc func, void *data );
+    void stop();
+
+    // replaces the glyphs not rendered yet, font_s is the outline font or NULL
+    void clear();
+    void request( void *font, void *font_s, int style, unsigned short unicode );
+    void release();
+    void acquire();
+
+private:
+    RenderFunc func;
+    void *data;
+
+    SDL_Thread *thread;
+    SDL_mutex *font_mutex;
+    SDL_mutex *queue_mutex;
+    SDL_cond *queue_cond;
+    bool quit_flag;
+
+    struct Request{
+        void *font, *font_s;
+        int style;
+        unsigned short unicode;
+    };
+    Request queue[PRERENDER_QUEUE_SIZE];
+    int queue_head, queue_num;
+
+    static int threadMain( void *data );
+    void run();
+};
+
+#endif // __TEXT_PRERENDERER_H__
@@ -95,6 +95,17 @@ void optionHelp()
     printf( "      --enable-wheeldown-advance\tadvance the text on mouse wheel down\n");
     printf( "      --disable-rescale\tdo not rescale the images in the archives\n");
     printf( "      --render-font-outline\trender the outline of a text instead of casting a shadow\n");
+    printf( "      --mmap-archives\tmap the archives into memory instead of reading them with stdio\n");
+    printf( "      --header-cache\tkeep the parsed archive headers in the save folder for the next launch\n");
+    printf( "      --script-cache\tkeep the decoded script and its labels in the save folder for the next launch\n");
+    printf( "      --stream-archives\tdecode music and large images from the archives while they are read\n");
+    printf( "      --parallel-composite\tdraw the layers of the screen in horizontal bands on several threads\n");
+    printf( "      --gpu-composite\tdraw the sprites above the other layers as OpenGL ES textures\n");
+    printf( "      --prerender-text\twarm the glyph cache with the characters of the coming text in the background\n");
+    printf( "      --headless\trun the script skipped without showing or playing anything until the first choice, print the commands and labels per second and go on from the choice\n");
+    printf( "      --headless-commands num\trun num commands headless taking the first option of every choice, then print the commands and labels per second and exit\n");
+    printf( "      --image-cache-size MB\tkeep up to MB megabytes of decoded images in memory\n");
+    printf( "      --prefetch-size MB\tread files named ahead of the script into up to MB megabytes in the background\n");
     printf( "      --edit\t\tenable online modification of the volume and variables when 'z' is pressed\n");
     printf( "      --key-exe file\tset a file (*.EXE) that includes a key table\n");
     printf( "  -h, --help\t\tshow this help and exit\n");
@@ -168,6 +179,24 @@ JNIEXPORT void JNICALL JAVA_EXPORT_NAME(ONScripterView_nativeLoadSaveFile) (JNIE
     }
 }
 
+JNIEXPORT void JNICALL JAVA_EXPORT_NAME(ONScripterView_nativeSkipToNextChoice) (JNIEnv * jniEnv, jobject thiz)
+{
+    if (ons) {
+        ons->skipToNextChoice();
+    }
+}
+
+JNIEXPORT jlongArray JNICALL JAVA_EXPORT_NAME(ONScripterView_nativeGetImageCacheStats) (JNIEnv * jniEnv, jobject thiz)
+{
+    if (!ons || !ons->getImageCache().isEnabled()) return NULL;
+
+    SurfaceCache &cache = ons->getImageCache();
+    jlong stats[4] = { cache.hit_count, cache.miss_count, cache.eviction_count, (jlong)cache.getSize() };
+    jlongArray ret = jniEnv->NewLongArray(4);
+    if (ret) jniEnv->SetLongArrayRegion(ret, 0, 4, stats);
+    return ret;
+}
+
 void playVideoAndroid(const char *filename, bool click_flag, bool loop_flag)
 {
     JNIWrapper wrapper(ONScripter::JNI_VM);
@@ -326,9 +355,48 @@ int main( int argc, char **argv )
             else if ( !strcmp( argv[0]+1, "-render-font-outline" ) ){
                 ons->renderFontOutline();
             }
+            else if ( !strcmp( argv[0]+1, "-mmap-archives" ) ){
+                ons->useMemoryMappedArchives();
+            }
+            else if ( !strcmp( argv[0]+1, "-header-cache" ) ){
+                ons->useHeaderCache();
+            }
+            else if ( !strcmp( argv[0]+1, "-script-cache" ) ){
+                ons->useScriptCache();
+            }
+            else if ( !strcmp( argv[0]+1, "-stream-archives" ) ){
+                ons->useStreamingDecode();
+            }
+            else if ( !strcmp( argv[0]+1, "-parallel-composite" ) ){
+                ons->useParallelCompositing();
+            }
+            else if ( !strcmp( argv[0]+1, "-gpu-composite" ) ){
+                ons->useGpuCompositing();
+            }
+            else if ( !strcmp( argv[0]+1, "-prerender-text" ) ){
+                ons->useTextPrerendering();
+            }
+            else if ( !strcmp( argv[0]+1, "-headless" ) ){
+                ons->useHeadless();
+            }
+            else if ( !strcmp( argv[0]+1, "-headless-commands" ) ){
+                argc--;
+                argv++;
+                ons->setHeadlessCommandLimit(strtoul(argv[0], NULL, 10));
+            }
             else if ( !strcmp( argv[0]+1, "-use-parent-resources" ) ){
                 ons->useParentResources();
             }
+            else if ( !strcmp( argv[0]+1, "-image-cache-size" ) ){
+                argc--;
+                argv++;
+                ons->setImageCacheSize((size_t)atoi(argv[0]) * 1024 * 1024);
+            }
+            else if ( !strcmp( argv[0]+1, "-prefetch-size" ) ){
+                argc--;
+                argv++;
+                ons->setPrefetchSize((size_t)atoi(argv[0]) * 1024 * 1024);
+            }
             else if ( !strcmp( argv[0]+1, "-edit" ) ){
                 ons->enableEdit();
             }
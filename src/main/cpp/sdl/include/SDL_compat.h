@@ -277,6 +277,11 @@ extern DECLSPEC SDL_Surface *SDLCALL SDL_SetVideoMode(int width, int height,
 extern DECLSPEC SDL_Surface *SDLCALL SDL_GetVideoSurface(void);
 extern DECLSPEC void SDLCALL SDL_UpdateRects(SDL_Surface * screen,
                                              int numrects, SDL_Rect * rects);
+/* Same as SDL_UpdateRects() without SDL_RenderPresent(), so that more can be
+   drawn over the screen first. Returns 1 if the screen was drawn. */
+extern DECLSPEC int SDLCALL SDL_UpdateRectsNoPresent(SDL_Surface * screen,
+                                                     int numrects,
+                                                     SDL_Rect * rects);
 extern DECLSPEC void SDLCALL SDL_UpdateRect(SDL_Surface * screen,
                                             Sint32 x,
                                             Sint32 y, Uint32 w, Uint32 h);
@@ -1252,6 +1252,58 @@ extern DECLSPEC int SDLCALL SDL_RenderCopy(SDL_Texture * texture,
                                            const SDL_Rect * srcrect,
                                            const SDL_Rect * dstrect);
 
+/**
+ *  \brief Copy a portion of the texture onto a quadrilateral of the window.
+ *  
+ *  \param texture  The source texture.
+ *  \param srcrect  A pointer to the source rectangle, or NULL for the entire 
+ *                  texture.
+ *  \param corners  The top-left, top-right, bottom-left and bottom-right 
+ *                  corners of the destination as x, y pairs in window 
+ *                  coordinates. They are scaled to the display the same way 
+ *                  as SDL_RenderCopy() scales the window.
+ *  
+ *  \return 0 on success, or -1 if there is no rendering context current, or the
+ *          driver doesn't support the requested operation.
+ */
+extern DECLSPEC int SDLCALL SDL_RenderCopyQuad(SDL_Texture * texture,
+                                               const SDL_Rect * srcrect,
+                                               const float *corners);
+
+/**
+ *  \brief Copy a portion of the texture onto a quadrilateral of the window,
+ *         keeping only the texels whose alpha is greater than \c ref.
+ *  
+ *  The texels that pass replace the window contents unblended, the color 
+ *  and alpha modulation of the texture are ignored.
+ *  
+ *  \return 0 on success, or -1 if there is no rendering context current, or the
+ *          driver doesn't support the requested operation.
+ *  
+ *  \sa SDL_RenderCopyQuad()
+ */
+extern DECLSPEC int SDLCALL SDL_RenderCopyQuadAlphaTest(SDL_Texture * texture,
+                                                        const SDL_Rect * srcrect,
+                                                        const float *corners,
+                                                        Uint8 ref);
+
+/**
+ *  \brief Blend a portion of the texture onto a quadrilateral of the window,
+ *         with \c offset added to the alpha of every texel.
+ *  
+ *  \param offset  -255 to 255, the sum is clamped to 0 and 255. The color 
+ *                 and alpha modulation of the texture are ignored.
+ *  
+ *  \return 0 on success, or -1 if there is no rendering context current, or the
+ *          driver doesn't support the requested operation.
+ *  
+ *  \sa SDL_RenderCopyQuad()
+ */
+extern DECLSPEC int SDLCALL SDL_RenderCopyQuadAlphaOffset(SDL_Texture * texture,
+                                                          const SDL_Rect * srcrect,
+                                                          const float *corners,
+                                                          int offset);
+
 /**
  *  \brief Read pixels from the current rendering target.
  *  
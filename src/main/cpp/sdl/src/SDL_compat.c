@@ -852,6 +852,14 @@ SDL_UpdateRect(SDL_Surface * screen, Sint32 x, Sint32 y, Uint32 w, Uint32 h)
 
 void
 SDL_UpdateRects(SDL_Surface * screen, int numrects, SDL_Rect * rects)
+{
+    if (SDL_UpdateRectsNoPresent(screen, numrects, rects)) {
+        SDL_RenderPresent();
+    }
+}
+
+int
+SDL_UpdateRectsNoPresent(SDL_Surface * screen, int numrects, SDL_Rect * rects)
 {
     int i;
 
@@ -892,8 +900,9 @@ SDL_UpdateRects(SDL_Surface * screen, int numrects, SDL_Rect * rects)
             rect.h = screen->h;
             SDL_RenderCopy(SDL_VideoTexture, &rect, &rect);
         }
-        SDL_RenderPresent();
+        return 1;
     }
+    return 0;
 }
 
 void
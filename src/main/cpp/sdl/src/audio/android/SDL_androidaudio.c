@@ -49,6 +49,19 @@ static Uint8 *ANDROIDAUD_GetAudioBuf(_THIS);
 static void ANDROIDAUD_CloseAudio(_THIS);
 static void ANDROIDAUD_ThreadInit(_THIS);
 static void ANDROIDAUD_ThreadDeinit(_THIS);
+static int ANDROIDAUD_OpenNative(_THIS, const char *devname, int iscapture);
+static void ANDROIDAUD_CloseNative(_THIS);
+static void ANDROIDAUD_DeinitAudioTrack(_THIS);
+
+/* Largest mixer period used with the native backends, keeps sound effects close to taps */
+#define ANDROIDAUD_NATIVE_MAX_SAMPLES 1024
+
+/* Set from Java before SDL starts the audio subsystem */
+static int useNativeOutput = 0;
+static int nativeOutputPaused = 0;
+static SDL_AudioDevice *nativeDevice = NULL;
+static pthread_mutex_t nativeDeviceLock = PTHREAD_MUTEX_INITIALIZER;
+static SDL_AudioDriverImpl *nativeImpl = NULL;
 
 /* Audio driver bootstrap functions */
 static int ANDROIDAUD_Available(void)
@@ -60,16 +73,40 @@ static void ANDROIDAUD_DeleteDevice()
 {
 }
 
-static int ANDROIDAUD_CreateDevice(SDL_AudioDriverImpl * impl)
+/* Switches the driver between the native backends and AudioTrack, OpenNative may fall back at open time */
+static void ANDROIDAUD_SetImpl(SDL_AudioDriverImpl * impl, int native)
 {
-	/* Set the function pointers */
-	impl->OpenDevice = ANDROIDAUD_OpenAudio;
+	if( native )
+	{
+		/* AAudio or OpenSL ES call us back on their own thread, SDL does not need to run one */
+		impl->CloseDevice = ANDROIDAUD_CloseNative;
+		impl->ProvidesOwnCallbackThread = 1;
+		return;
+	}
+
 	impl->WaitDevice = ANDROIDAUD_WaitAudio;
 	impl->PlayDevice = ANDROIDAUD_PlayAudio;
 	impl->GetDeviceBuf = ANDROIDAUD_GetAudioBuf;
 	impl->CloseDevice = ANDROIDAUD_CloseAudio;
 	impl->ThreadInit = ANDROIDAUD_ThreadInit;
 	impl->WaitDone = ANDROIDAUD_ThreadDeinit;
+	impl->ProvidesOwnCallbackThread = 0;
+}
+
+static int ANDROIDAUD_CreateDevice(SDL_AudioDriverImpl * impl)
+{
+	/* Set the function pointers */
+	if( useNativeOutput )
+	{
+		nativeImpl = impl;
+		impl->OpenDevice = ANDROIDAUD_OpenNative;
+		ANDROIDAUD_SetImpl(impl, 1);
+	}
+	else
+	{
+		impl->OpenDevice = ANDROIDAUD_OpenAudio;
+		ANDROIDAUD_SetImpl(impl, 0);
+	}
 	impl->Deinitialize = ANDROIDAUD_DeleteDevice;
 	impl->OnlyHasDefaultOutputDevice = 1;
 
@@ -87,6 +124,7 @@ static size_t audioBufferSize = 0;
 
 // Extremely wicked JNI environment to call Java functions from C code
 static jbyteArray audioBufferJNI = NULL;
+static jobject audioDirectBufferJNI = NULL;
 static JavaVM *jniVM = NULL;
 static jobject JavaAudioThread = NULL;
 static jmethodID JavaInitAudio = NULL;
@@ -98,23 +136,17 @@ static Uint8 *ANDROIDAUD_GetAudioBuf(_THIS)
 	return(audioBuffer);
 }
 
-static int ANDROIDAUD_OpenAudio(_THIS, const char *devname, int iscapture)
+/* Creates the Java AudioTrack for this->spec, shared by OpenAudio and the native fallback */
+static int ANDROIDAUD_InitAudioTrack(_THIS)
 {
 	SDL_AudioSpec *audioFormat = &this->spec;
 	int bytesPerSample;
 	JNIEnv * jniEnv = NULL;
 
-	this->hidden = (struct SDL_PrivateAudioData *) SDL_malloc((sizeof *this->hidden));
-	if ( this->hidden == NULL ) {
-		SDL_OutOfMemory();
-		return(-1);
-	}
-	SDL_memset(this->hidden, 0, (sizeof *this->hidden));
-
 	if( ! (this->spec.format == AUDIO_S8 || this->spec.format == AUDIO_S16) )
 	{
 		__android_log_print(ANDROID_LOG_ERROR, "libSDL", "Application requested unsupported audio format - only S8 and S16 are supported");
-		return (-1); // TODO: enable format conversion? Don't know how to do that in SDL
+		return 0; // TODO: enable format conversion? Don't know how to do that in SDL
 	}
 
 	bytesPerSample = (audioFormat->format & 0xFF) / 8;
@@ -125,7 +157,7 @@ static int ANDROIDAUD_OpenAudio(_THIS, const char *devname, int iscapture)
 	if( !jniEnv )
 	{
 		__android_log_print(ANDROID_LOG_ERROR, "libSDL", "ANDROIDAUD_OpenAudio: Java VM AttachCurrentThread() failed");
-		return (-1); // TODO: enable format conversion? Don't know how to do that in SDL
+		return 0;
 	}
 
 	audioBufferSize = (*jniEnv)->CallIntMethod( jniEnv, JavaAudioThread, JavaInitAudio, 
@@ -135,8 +167,8 @@ static int ANDROIDAUD_OpenAudio(_THIS, const char *devname, int iscapture)
 	if( audioBufferSize == 0 )
 	{
 		__android_log_print(ANDROID_LOG_INFO, "libSDL", "ANDROIDAUD_OpenAudio(): failed to get audio buffer from JNI");
-		ANDROIDAUD_CloseAudio(this);
-		return(-1);
+		ANDROIDAUD_DeinitAudioTrack(this);
+		return 0;
 	}
 
 	/* We cannot call DetachCurrentThread() from main thread or we'll crash */
@@ -147,16 +179,20 @@ static int ANDROIDAUD_OpenAudio(_THIS, const char *devname, int iscapture)
 
 	SDL_CalculateAudioSpec(&this->spec);
 	
-	return(1);
+	return 1;
 }
 
-static void ANDROIDAUD_CloseAudio(_THIS)
+static void ANDROIDAUD_DeinitAudioTrack(_THIS)
 {
 	JNIEnv * jniEnv = NULL;
 	(*jniVM)->AttachCurrentThread(jniVM, &jniEnv, NULL);
 
-	(*jniEnv)->DeleteGlobalRef(jniEnv, audioBufferJNI);
+	if( audioBufferJNI )
+		(*jniEnv)->DeleteGlobalRef(jniEnv, audioBufferJNI);
 	audioBufferJNI = NULL;
+	if( audioDirectBufferJNI )
+		(*jniEnv)->DeleteGlobalRef(jniEnv, audioDirectBufferJNI);
+	audioDirectBufferJNI = NULL;
 	audioBuffer = NULL;
 	audioBufferSize = 0;
 	
@@ -164,7 +200,30 @@ static void ANDROIDAUD_CloseAudio(_THIS)
 
 	/* We cannot call DetachCurrentThread() from main thread or we'll crash */
 	/* (*jniVM)->DetachCurrentThread(jniVM); */
-	
+}
+
+static int ANDROIDAUD_OpenAudio(_THIS, const char *devname, int iscapture)
+{
+	this->hidden = (struct SDL_PrivateAudioData *) SDL_malloc((sizeof *this->hidden));
+	if ( this->hidden == NULL ) {
+		SDL_OutOfMemory();
+		return(-1);
+	}
+	SDL_memset(this->hidden, 0, (sizeof *this->hidden));
+
+	if( !ANDROIDAUD_InitAudioTrack(this) )
+	{
+		SDL_free(this->hidden);
+		this->hidden = NULL;
+		return(-1);
+	}
+	return(1);
+}
+
+static void ANDROIDAUD_CloseAudio(_THIS)
+{
+	ANDROIDAUD_DeinitAudioTrack(this);
+
 	if ( this->hidden != NULL ) {
 		SDL_free(this->hidden);
 		this->hidden = NULL;
@@ -185,6 +244,7 @@ static void ANDROIDAUD_ThreadInit(_THIS)
 	jclass JavaAudioThreadClass = NULL;
 	jmethodID JavaInitThread = NULL;
 	jmethodID JavaGetBuffer = NULL;
+	jmethodID JavaGetDirectBuffer = NULL;
 	jboolean isCopy = JNI_TRUE;
 
 	(*jniVM)->AttachCurrentThread(jniVM, &jniEnvPlaying, NULL);
@@ -196,6 +256,22 @@ static void ANDROIDAUD_ThreadInit(_THIS)
 	JavaInitThread = (*jniEnvPlaying)->GetMethodID(jniEnvPlaying, JavaAudioThreadClass, "initAudioThread", "()I");
 	(*jniEnvPlaying)->CallIntMethod( jniEnvPlaying, JavaAudioThread, JavaInitThread );
 
+	/* The mixer writes straight into a direct ByteBuffer when Java allocated one, no pinning needed */
+	JavaGetDirectBuffer = (*jniEnvPlaying)->GetMethodID(jniEnvPlaying, JavaAudioThreadClass, "getDirectBuffer", "()Ljava/nio/ByteBuffer;");
+	audioDirectBufferJNI = (*jniEnvPlaying)->CallObjectMethod( jniEnvPlaying, JavaAudioThread, JavaGetDirectBuffer );
+	if( audioDirectBufferJNI )
+	{
+		audioDirectBufferJNI = (*jniEnvPlaying)->NewGlobalRef(jniEnvPlaying, audioDirectBufferJNI);
+		audioBuffer = (unsigned char *) (*jniEnvPlaying)->GetDirectBufferAddress(jniEnvPlaying, audioDirectBufferJNI);
+		if( !audioBuffer )
+		{
+			__android_log_print(ANDROID_LOG_ERROR, "libSDL", "ANDROIDAUD_ThreadInit() JNI::GetDirectBufferAddress() failed! we will crash now");
+			return;
+		}
+		SDL_memset(audioBuffer, this->spec.silence, this->spec.size);
+		return;
+	}
+
 	JavaGetBuffer = (*jniEnvPlaying)->GetMethodID(jniEnvPlaying, JavaAudioThreadClass, "getBuffer", "()[B");
 	audioBufferJNI = (*jniEnvPlaying)->CallObjectMethod( jniEnvPlaying, JavaAudioThread, JavaGetBuffer );
 	audioBufferJNI = (*jniEnvPlaying)->NewGlobalRef(jniEnvPlaying, audioBufferJNI);
@@ -220,6 +296,13 @@ static void ANDROIDAUD_PlayAudio(_THIS)
 {
 	jboolean isCopy = JNI_TRUE;
 
+	if( audioDirectBufferJNI )
+	{
+		/* Buffer is shared with Java, AudioTrack reads it in place */
+		(*jniEnvPlaying)->CallIntMethod( jniEnvPlaying, JavaAudioThread, JavaFillBuffer );
+		return;
+	}
+
 	(*jniEnvPlaying)->ReleaseByteArrayElements(jniEnvPlaying, audioBufferJNI, (jbyte *)audioBuffer, 0);
 	audioBuffer = NULL;
 
@@ -233,6 +316,224 @@ static void ANDROIDAUD_PlayAudio(_THIS)
 		__android_log_print(ANDROID_LOG_INFO, "libSDL", "ANDROIDAUD_PlayAudio() JNI returns a copy of byte array - that's slow");
 }
 
+void ANDROIDAUD_MixNative(SDL_AudioDevice *this, Uint8 *stream, int len)
+{
+	Uint32 remaining, chunk;
+
+	/* Only do anything if audio is enabled and not paused */
+	if( !this->enabled || this->paused || !this->hidden->mixbuf )
+	{
+		SDL_memset(stream, this->spec.silence, len);
+		return;
+	}
+
+	/* The device period rarely matches the mixer period, keep the leftover for the next callback */
+	remaining = len;
+	while( remaining > 0 )
+	{
+		if( this->hidden->mixbufOffset >= this->hidden->mixbufSize )
+		{
+			SDL_memset(this->hidden->mixbuf, this->spec.silence, this->hidden->mixbufSize);
+			SDL_mutexP(this->mixer_lock);
+			(*this->spec.callback) (this->spec.userdata, this->hidden->mixbuf, this->hidden->mixbufSize);
+			SDL_mutexV(this->mixer_lock);
+			this->hidden->mixbufOffset = 0;
+		}
+
+		chunk = this->hidden->mixbufSize - this->hidden->mixbufOffset;
+		if( chunk > remaining )
+			chunk = remaining;
+		SDL_memcpy(stream, this->hidden->mixbuf + this->hidden->mixbufOffset, chunk);
+		stream += chunk;
+		remaining -= chunk;
+		this->hidden->mixbufOffset += chunk;
+	}
+}
+
+/* Opens AAudio, or else OpenSL ES, with the spec requested at open time, fails if neither plays it unconverted */
+static int ANDROIDAUD_OpenNativeBackend(_THIS)
+{
+	Uint8 *mixbuf;
+
+	this->spec = this->hidden->requested;
+	this->hidden->backend = NULL;
+
+	/* The backends play the mixer output unconverted, neither the format nor the rate may change */
+	if( this->spec.format != AUDIO_S16 )
+	{
+		__android_log_print(ANDROID_LOG_INFO, "libSDL", "ANDROIDAUD_OpenNative(): only S16 is supported by the native output");
+		return 0;
+	}
+	if( this->spec.samples > ANDROIDAUD_NATIVE_MAX_SAMPLES )
+		this->spec.samples = ANDROIDAUD_NATIVE_MAX_SAMPLES;
+	if( ANDROIDAUD_AAudioBackend.Open(this) )
+		this->hidden->backend = &ANDROIDAUD_AAudioBackend;
+	else if( ANDROIDAUD_OpenSLESBackend.Open(this) )
+		this->hidden->backend = &ANDROIDAUD_OpenSLESBackend;
+	else
+		return 0;
+
+	if( this->spec.freq != this->hidden->requested.freq )
+	{
+		this->hidden->backend->Close(this);
+		this->hidden->backend = NULL;
+		return 0;
+	}
+
+	/* The new stream may want a different period, no callback runs until it is started */
+	SDL_CalculateAudioSpec(&this->spec);
+	mixbuf = (Uint8 *) SDL_realloc(this->hidden->mixbuf, this->spec.size);
+	if( !mixbuf )
+	{
+		this->hidden->backend->Close(this);
+		this->hidden->backend = NULL;
+		SDL_OutOfMemory();
+		return 0;
+	}
+	this->hidden->mixbuf = mixbuf;
+	this->hidden->mixbufSize = this->spec.size;
+	this->hidden->mixbufOffset = this->spec.size;
+
+	__android_log_print(ANDROID_LOG_INFO, "libSDL", "ANDROIDAUD_OpenNative(): using %s, %d Hz, %d samples",
+						this->hidden->backend->name, this->spec.freq, this->spec.samples);
+	return 1;
+}
+
+/* Feeds AudioTrack from the restart thread once no native backend takes the stream any more,
+   SDL does not run its own audio thread for a device opened as native */
+static void ANDROIDAUD_RunAudioTrack(_THIS)
+{
+	this->spec = this->hidden->requested;
+	if( !ANDROIDAUD_InitAudioTrack(this) )
+		return;
+
+	ANDROIDAUD_ThreadInit(this);
+	while( !this->hidden->closing )
+	{
+		if( !this->enabled || this->paused || !audioBuffer )
+		{
+			SDL_Delay((this->spec.samples * 1000) / this->spec.freq);
+			continue;
+		}
+		SDL_mutexP(this->mixer_lock);
+		(*this->spec.callback) (this->spec.userdata, audioBuffer, this->spec.size);
+		SDL_mutexV(this->mixer_lock);
+		ANDROIDAUD_PlayAudio(this);
+	}
+	ANDROIDAUD_DeinitAudioTrack(this);
+	ANDROIDAUD_ThreadDeinit(this);
+}
+
+static void *ANDROIDAUD_RestartThread(void *arg)
+{
+	SDL_AudioDevice *this = (SDL_AudioDevice *) arg;
+	struct SDL_PrivateAudioData *hidden = this->hidden;
+	int reopened;
+
+	for(;;)
+	{
+		pthread_mutex_lock(&hidden->restartLock);
+		while( !hidden->disconnected && !hidden->closing )
+			pthread_cond_wait(&hidden->restartCond, &hidden->restartLock);
+		hidden->disconnected = 0;
+		pthread_mutex_unlock(&hidden->restartLock);
+		if( hidden->closing )
+			return NULL;
+
+		__android_log_print(ANDROID_LOG_INFO, "libSDL", "ANDROIDAUD_RestartThread(): %s output disconnected, reopening",
+							hidden->backend ? hidden->backend->name : "native");
+
+		/* nativeAudioSetPaused() must not reach a backend that is being replaced */
+		pthread_mutex_lock(&nativeDeviceLock);
+		if( hidden->backend )
+			hidden->backend->Close(this);
+		reopened = ANDROIDAUD_OpenNativeBackend(this);
+		if( reopened && !nativeOutputPaused )
+			hidden->backend->SetPaused(this, 0);
+		pthread_mutex_unlock(&nativeDeviceLock);
+
+		if( !reopened )
+		{
+			__android_log_print(ANDROID_LOG_INFO, "libSDL", "ANDROIDAUD_RestartThread(): no native audio output could be reopened, using AudioTrack");
+			ANDROIDAUD_RunAudioTrack(this);
+			return NULL;
+		}
+	}
+}
+
+void ANDROIDAUD_NativeDisconnected(SDL_AudioDevice *this)
+{
+	pthread_mutex_lock(&this->hidden->restartLock);
+	this->hidden->disconnected = 1;
+	pthread_cond_signal(&this->hidden->restartCond);
+	pthread_mutex_unlock(&this->hidden->restartLock);
+}
+
+static int ANDROIDAUD_OpenNative(_THIS, const char *devname, int iscapture)
+{
+	this->hidden = (struct SDL_PrivateAudioData *) SDL_malloc((sizeof *this->hidden));
+	if ( this->hidden == NULL ) {
+		SDL_OutOfMemory();
+		return 0;
+	}
+	SDL_memset(this->hidden, 0, (sizeof *this->hidden));
+	this->hidden->requested = this->spec;
+
+	if( !ANDROIDAUD_OpenNativeBackend(this) )
+	{
+		__android_log_print(ANDROID_LOG_INFO, "libSDL", "ANDROIDAUD_OpenNative(): no native audio output could be opened, using AudioTrack");
+		this->spec = this->hidden->requested;
+		SDL_free(this->hidden->mixbuf);
+		SDL_free(this->hidden);
+		this->hidden = NULL;
+		/* SDL starts its own audio thread for AudioTrack once OpenDevice returns */
+		ANDROIDAUD_SetImpl(nativeImpl, 0);
+		return ANDROIDAUD_OpenAudio(this, devname, iscapture);
+	}
+	ANDROIDAUD_SetImpl(nativeImpl, 1);
+
+	pthread_mutex_init(&this->hidden->restartLock, NULL);
+	pthread_cond_init(&this->hidden->restartCond, NULL);
+	if( pthread_create(&this->hidden->restartThread, NULL, ANDROIDAUD_RestartThread, this) == 0 )
+		this->hidden->restartThreadStarted = 1;
+	else
+		__android_log_print(ANDROID_LOG_WARN, "libSDL", "ANDROIDAUD_OpenNative(): cannot start restart thread, output will stay silent after a device change");
+
+	pthread_mutex_lock(&nativeDeviceLock);
+	nativeDevice = this;
+	if( !nativeOutputPaused )
+		this->hidden->backend->SetPaused(this, 0);
+	pthread_mutex_unlock(&nativeDeviceLock);
+	return 1;
+}
+
+static void ANDROIDAUD_CloseNative(_THIS)
+{
+	pthread_mutex_lock(&nativeDeviceLock);
+	if( nativeDevice == this )
+		nativeDevice = NULL;
+	pthread_mutex_unlock(&nativeDeviceLock);
+
+	if ( this->hidden != NULL ) {
+		/* Stop the restart thread first, it may be reopening the stream or feeding AudioTrack */
+		if( this->hidden->restartThreadStarted )
+		{
+			pthread_mutex_lock(&this->hidden->restartLock);
+			this->hidden->closing = 1;
+			pthread_cond_signal(&this->hidden->restartCond);
+			pthread_mutex_unlock(&this->hidden->restartLock);
+			pthread_join(this->hidden->restartThread, NULL);
+		}
+		pthread_cond_destroy(&this->hidden->restartCond);
+		pthread_mutex_destroy(&this->hidden->restartLock);
+		if( this->hidden->backend )
+			this->hidden->backend->Close(this);
+		SDL_free(this->hidden->mixbuf);
+		SDL_free(this->hidden);
+		this->hidden = NULL;
+	}
+}
+
 #ifndef SDL_JAVA_PACKAGE_PATH
 #error You have to define SDL_JAVA_PACKAGE_PATH to your package path with dots replaced with underscores, for example "com_example_SanAngeles"
 #endif
@@ -253,6 +554,20 @@ JNIEXPORT jint JNICALL JAVA_EXPORT_NAME(AudioThread_nativeAudioInitJavaCallbacks
 	*/
 }
 
+JNIEXPORT void JNICALL JAVA_EXPORT_NAME(AudioThread_nativeAudioUseNativeOutput) (JNIEnv * jniEnv, jobject thiz, jboolean enable)
+{
+	useNativeOutput = enable ? 1 : 0;
+}
+
+JNIEXPORT void JNICALL JAVA_EXPORT_NAME(AudioThread_nativeAudioSetPaused) (JNIEnv * jniEnv, jobject thiz, jboolean paused)
+{
+	pthread_mutex_lock(&nativeDeviceLock);
+	nativeOutputPaused = paused ? 1 : 0;
+	if( nativeDevice && nativeDevice->hidden && nativeDevice->hidden->backend )
+		nativeDevice->hidden->backend->SetPaused(nativeDevice, nativeOutputPaused);
+	pthread_mutex_unlock(&nativeDeviceLock);
+}
+
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved)
 {
 	jniVM = vm;
@@ -25,8 +25,43 @@
 #define _SDL_androidaudio_h
 
 #include "../SDL_sysaudio.h"
+#include <pthread.h>
+
+struct ANDROIDAUD_NativeBackend;
 
 struct SDL_PrivateAudioData {
+	/* Only used by the native (AAudio / OpenSL ES) output backends */
+	Uint8 *mixbuf;
+	Uint32 mixbufSize;
+	Uint32 mixbufOffset;
+	const struct ANDROIDAUD_NativeBackend *backend;
+	void *backendData;
+	/* Spec asked for at open, a lost stream is reopened with it */
+	SDL_AudioSpec requested;
+	/* Reopens the output when a backend reports its device gone, backends may not close their own stream from a callback */
+	pthread_t restartThread;
+	pthread_mutex_t restartLock;
+	pthread_cond_t restartCond;
+	int restartThreadStarted;
+	int disconnected;
+	volatile int closing;
 };
 
+/* Output backend that pulls audio from its own callback thread, bypassing AudioThread.java */
+typedef struct ANDROIDAUD_NativeBackend {
+	const char *name;
+	/* Creates the stream without starting it, may lower this->spec.samples to suit the device */
+	int (*Open)(SDL_AudioDevice *device);
+	void (*SetPaused)(SDL_AudioDevice *device, int paused);
+	void (*Close)(SDL_AudioDevice *device);
+} ANDROIDAUD_NativeBackend;
+
+extern const ANDROIDAUD_NativeBackend ANDROIDAUD_AAudioBackend;
+extern const ANDROIDAUD_NativeBackend ANDROIDAUD_OpenSLESBackend;
+
+/* Called from the backend callbacks to fill len bytes of output from the SDL mixer */
+extern void ANDROIDAUD_MixNative(SDL_AudioDevice *device, Uint8 *stream, int len);
+/* Called from the backend callbacks when the output device went away, the stream is reopened from another thread */
+extern void ANDROIDAUD_NativeDisconnected(SDL_AudioDevice *device);
+
 #endif /* _SDL_androidaudio_h */
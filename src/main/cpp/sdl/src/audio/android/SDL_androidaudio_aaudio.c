@@ -0,0 +1,181 @@
+/*
+    SDL - Simple DirectMedia Layer
+    Copyright (C) 1997-2009 Sam Lantinga
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Sam Lantinga
+    slouken@libsdl.org
+*/
+#include "SDL_config.h"
+
+#include "SDL_audio.h"
+#include "../SDL_audio_c.h"
+#include "SDL_androidaudio.h"
+#include <aaudio/AAudio.h>
+#include <android/log.h>
+#include <dlfcn.h>
+
+#define _THIS	SDL_AudioDevice *this
+
+/* AAudio only exists since Android 8.0, it is resolved at runtime so libsdl still loads on older devices */
+static void *aaudioLib = NULL;
+static aaudio_result_t (*pAAudio_createStreamBuilder)(AAudioStreamBuilder **builder);
+static void (*pAAudioStreamBuilder_setSampleRate)(AAudioStreamBuilder *builder, int32_t sampleRate);
+static void (*pAAudioStreamBuilder_setChannelCount)(AAudioStreamBuilder *builder, int32_t channelCount);
+static void (*pAAudioStreamBuilder_setFormat)(AAudioStreamBuilder *builder, aaudio_format_t format);
+static void (*pAAudioStreamBuilder_setPerformanceMode)(AAudioStreamBuilder *builder, aaudio_performance_mode_t mode);
+static void (*pAAudioStreamBuilder_setDataCallback)(AAudioStreamBuilder *builder, AAudioStream_dataCallback callback, void *userData);
+static void (*pAAudioStreamBuilder_setErrorCallback)(AAudioStreamBuilder *builder, AAudioStream_errorCallback callback, void *userData);
+static aaudio_result_t (*pAAudioStreamBuilder_openStream)(AAudioStreamBuilder *builder, AAudioStream **stream);
+static aaudio_result_t (*pAAudioStreamBuilder_delete)(AAudioStreamBuilder *builder);
+static aaudio_result_t (*pAAudioStream_requestStart)(AAudioStream *stream);
+static aaudio_result_t (*pAAudioStream_requestPause)(AAudioStream *stream);
+static aaudio_result_t (*pAAudioStream_requestStop)(AAudioStream *stream);
+static aaudio_result_t (*pAAudioStream_close)(AAudioStream *stream);
+static int32_t (*pAAudioStream_getSampleRate)(AAudioStream *stream);
+static int32_t (*pAAudioStream_getFramesPerBurst)(AAudioStream *stream);
+static aaudio_result_t (*pAAudioStream_setBufferSizeInFrames)(AAudioStream *stream, int32_t numFrames);
+
+#define LOAD_AAUDIO_FUNC(name) \
+	if( (p##name = dlsym(aaudioLib, #name)) == NULL ) { \
+		__android_log_print(ANDROID_LOG_INFO, "libSDL", "AAudio: missing symbol " #name); \
+		dlclose(aaudioLib); \
+		aaudioLib = NULL; \
+		return 0; \
+	}
+
+static int AAUDIO_LoadLibrary()
+{
+	if( aaudioLib )
+		return 1;
+
+	aaudioLib = dlopen("libaaudio.so", RTLD_NOW);
+	if( !aaudioLib )
+		return 0;
+
+	LOAD_AAUDIO_FUNC(AAudio_createStreamBuilder);
+	LOAD_AAUDIO_FUNC(AAudioStreamBuilder_setSampleRate);
+	LOAD_AAUDIO_FUNC(AAudioStreamBuilder_setChannelCount);
+	LOAD_AAUDIO_FUNC(AAudioStreamBuilder_setFormat);
+	LOAD_AAUDIO_FUNC(AAudioStreamBuilder_setPerformanceMode);
+	LOAD_AAUDIO_FUNC(AAudioStreamBuilder_setDataCallback);
+	LOAD_AAUDIO_FUNC(AAudioStreamBuilder_setErrorCallback);
+	LOAD_AAUDIO_FUNC(AAudioStreamBuilder_openStream);
+	LOAD_AAUDIO_FUNC(AAudioStreamBuilder_delete);
+	LOAD_AAUDIO_FUNC(AAudioStream_requestStart);
+	LOAD_AAUDIO_FUNC(AAudioStream_requestPause);
+	LOAD_AAUDIO_FUNC(AAudioStream_requestStop);
+	LOAD_AAUDIO_FUNC(AAudioStream_close);
+	LOAD_AAUDIO_FUNC(AAudioStream_getSampleRate);
+	LOAD_AAUDIO_FUNC(AAudioStream_getFramesPerBurst);
+	LOAD_AAUDIO_FUNC(AAudioStream_setBufferSizeInFrames);
+	return 1;
+}
+
+#undef LOAD_AAUDIO_FUNC
+
+static aaudio_data_callback_result_t AAUDIO_DataCallback(AAudioStream *stream, void *userData,
+															void *audioData, int32_t numFrames)
+{
+	SDL_AudioDevice *this = (SDL_AudioDevice *) userData;
+	ANDROIDAUD_MixNative(this, (Uint8 *) audioData, numFrames * this->spec.channels * sizeof(Sint16));
+	return AAUDIO_CALLBACK_RESULT_CONTINUE;
+}
+
+static void AAUDIO_ErrorCallback(AAudioStream *stream, void *userData, aaudio_result_t error)
+{
+	__android_log_print(ANDROID_LOG_WARN, "libSDL", "AAudio: stream error %d", error);
+	/* A disconnected stream stays dead, AAudio forbids closing it from here so the restart thread reopens it */
+	if( error == AAUDIO_ERROR_DISCONNECTED )
+		ANDROIDAUD_NativeDisconnected((SDL_AudioDevice *) userData);
+}
+
+static int AAUDIO_Open(_THIS)
+{
+	AAudioStreamBuilder *builder = NULL;
+	AAudioStream *stream = NULL;
+	aaudio_result_t result;
+	int32_t burst;
+
+	if( !AAUDIO_LoadLibrary() )
+		return 0;
+
+	if( pAAudio_createStreamBuilder(&builder) != AAUDIO_OK )
+		return 0;
+
+	pAAudioStreamBuilder_setSampleRate(builder, this->spec.freq);
+	pAAudioStreamBuilder_setChannelCount(builder, this->spec.channels);
+	pAAudioStreamBuilder_setFormat(builder, AAUDIO_FORMAT_PCM_I16);
+	pAAudioStreamBuilder_setPerformanceMode(builder, AAUDIO_PERFORMANCE_MODE_LOW_LATENCY);
+	pAAudioStreamBuilder_setDataCallback(builder, AAUDIO_DataCallback, this);
+	pAAudioStreamBuilder_setErrorCallback(builder, AAUDIO_ErrorCallback, this);
+
+	result = pAAudioStreamBuilder_openStream(builder, &stream);
+	pAAudioStreamBuilder_delete(builder);
+	if( result != AAUDIO_OK )
+	{
+		__android_log_print(ANDROID_LOG_INFO, "libSDL", "AAudio: openStream failed %d", result);
+		return 0;
+	}
+
+	/* MixNative hands the mixer output to the device unconverted, a different rate would
+	   change speed and pitch; the next backend gets a chance to open the requested rate */
+	if( pAAudioStream_getSampleRate(stream) != this->spec.freq )
+	{
+		__android_log_print(ANDROID_LOG_INFO, "libSDL", "AAudio: opened %d Hz instead of %d Hz",
+							pAAudioStream_getSampleRate(stream), this->spec.freq);
+		pAAudioStream_close(stream);
+		return 0;
+	}
+
+	/* Keep two bursts queued, the minimum that avoids glitches on most devices */
+	burst = pAAudioStream_getFramesPerBurst(stream);
+	if( burst > 0 )
+	{
+		pAAudioStream_setBufferSizeInFrames(stream, burst * 2);
+		while( this->spec.samples > 256 && this->spec.samples / 2 >= burst )
+			this->spec.samples /= 2;
+	}
+	this->hidden->backendData = stream;
+	return 1;
+}
+
+static void AAUDIO_SetPaused(_THIS, int paused)
+{
+	AAudioStream *stream = (AAudioStream *) this->hidden->backendData;
+	if( !stream )
+		return;
+
+	if( paused )
+		pAAudioStream_requestPause(stream);
+	else
+		pAAudioStream_requestStart(stream);
+}
+
+static void AAUDIO_Close(_THIS)
+{
+	AAudioStream *stream = (AAudioStream *) this->hidden->backendData;
+	if( !stream )
+		return;
+
+	pAAudioStream_requestStop(stream);
+	pAAudioStream_close(stream);
+	this->hidden->backendData = NULL;
+}
+
+const ANDROIDAUD_NativeBackend ANDROIDAUD_AAudioBackend = {
+	"AAudio", AAUDIO_Open, AAUDIO_SetPaused, AAUDIO_Close
+};
@@ -0,0 +1,186 @@
+/*
+    SDL - Simple DirectMedia Layer
+    Copyright (C) 1997-2009 Sam Lantinga
+
+    This library is free software; you can redistribute it and/or
+    modify it under the terms of the GNU Lesser General Public
+    License as published by the Free Software Foundation; either
+    version 2.1 of the License, or (at your option) any later version.
+
+    This library is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+    Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with this library; if not, write to the Free Software
+    Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+
+    Sam Lantinga
+    slouken@libsdl.org
+*/
+#include "SDL_config.h"
+
+#include "SDL_audio.h"
+#include "../SDL_audio_c.h"
+#include "SDL_androidaudio.h"
+#include <SLES/OpenSLES.h>
+#include <SLES/OpenSLES_Android.h>
+#include <android/log.h>
+
+#define _THIS	SDL_AudioDevice *this
+
+#define OPENSLES_NUM_BUFFERS 2
+
+struct OpenSLESData {
+	SLObjectItf engineObject;
+	SLEngineItf engine;
+	SLObjectItf outputMixObject;
+	SLObjectItf playerObject;
+	SLPlayItf player;
+	SLAndroidSimpleBufferQueueItf bufferQueue;
+	Uint8 *buffers[OPENSLES_NUM_BUFFERS];
+	int nextBuffer;
+};
+
+static void OPENSLES_BufferQueueCallback(SLAndroidSimpleBufferQueueItf bufferQueue, void *context)
+{
+	SDL_AudioDevice *this = (SDL_AudioDevice *) context;
+	struct OpenSLESData *data = (struct OpenSLESData *) this->hidden->backendData;
+	Uint8 *buffer = data->buffers[data->nextBuffer];
+
+	ANDROIDAUD_MixNative(this, buffer, this->spec.size);
+	(*bufferQueue)->Enqueue(bufferQueue, buffer, this->spec.size);
+	data->nextBuffer = (data->nextBuffer + 1) % OPENSLES_NUM_BUFFERS;
+}
+
+static void OPENSLES_Close(_THIS)
+{
+	struct OpenSLESData *data = (struct OpenSLESData *) this->hidden->backendData;
+	int i;
+	if( !data )
+		return;
+
+	if( data->playerObject )
+	{
+		if( data->player )
+			(*data->player)->SetPlayState(data->player, SL_PLAYSTATE_STOPPED);
+		(*data->playerObject)->Destroy(data->playerObject);
+	}
+	if( data->outputMixObject )
+		(*data->outputMixObject)->Destroy(data->outputMixObject);
+	if( data->engineObject )
+		(*data->engineObject)->Destroy(data->engineObject);
+	for( i = 0; i < OPENSLES_NUM_BUFFERS; i++ )
+		SDL_free(data->buffers[i]);
+	SDL_free(data);
+	this->hidden->backendData = NULL;
+}
+
+#define CHECK_SL_RESULT(msg) \
+	if( result != SL_RESULT_SUCCESS ) { \
+		__android_log_print(ANDROID_LOG_ERROR, "libSDL", "OpenSL ES: %s failed %d", msg, (int) result); \
+		OPENSLES_Close(this); \
+		return 0; \
+	}
+
+static int OPENSLES_Open(_THIS)
+{
+	struct OpenSLESData *data;
+	SLresult result;
+	int i;
+
+	SLDataLocator_AndroidSimpleBufferQueue locatorQueue = {
+		SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE, OPENSLES_NUM_BUFFERS
+	};
+	SLDataFormat_PCM formatPCM = {
+		SL_DATAFORMAT_PCM,
+		this->spec.channels,
+		this->spec.freq * 1000, /* milliHertz */
+		SL_PCMSAMPLEFORMAT_FIXED_16,
+		SL_PCMSAMPLEFORMAT_FIXED_16,
+		this->spec.channels == 1 ? SL_SPEAKER_FRONT_CENTER : (SL_SPEAKER_FRONT_LEFT | SL_SPEAKER_FRONT_RIGHT),
+		SL_BYTEORDER_LITTLEENDIAN
+	};
+	SLDataSource source = { &locatorQueue, &formatPCM };
+	SLDataLocator_OutputMix locatorOutputMix = { SL_DATALOCATOR_OUTPUTMIX, NULL };
+	SLDataSink sink = { &locatorOutputMix, NULL };
+	const SLInterfaceID ids[] = { SL_IID_ANDROIDSIMPLEBUFFERQUEUE };
+	const SLboolean required[] = { SL_BOOLEAN_TRUE };
+
+	data = (struct OpenSLESData *) SDL_malloc(sizeof(*data));
+	if( !data )
+		return 0;
+	SDL_memset(data, 0, sizeof(*data));
+	this->hidden->backendData = data;
+
+	result = slCreateEngine(&data->engineObject, 0, NULL, 0, NULL, NULL);
+	CHECK_SL_RESULT("slCreateEngine");
+	result = (*data->engineObject)->Realize(data->engineObject, SL_BOOLEAN_FALSE);
+	CHECK_SL_RESULT("engine Realize");
+	result = (*data->engineObject)->GetInterface(data->engineObject, SL_IID_ENGINE, &data->engine);
+	CHECK_SL_RESULT("engine GetInterface");
+
+	result = (*data->engine)->CreateOutputMix(data->engine, &data->outputMixObject, 0, NULL, NULL);
+	CHECK_SL_RESULT("CreateOutputMix");
+	result = (*data->outputMixObject)->Realize(data->outputMixObject, SL_BOOLEAN_FALSE);
+	CHECK_SL_RESULT("output mix Realize");
+
+	locatorOutputMix.outputMix = data->outputMixObject;
+	result = (*data->engine)->CreateAudioPlayer(data->engine, &data->playerObject, &source, &sink,
+												1, ids, required);
+	CHECK_SL_RESULT("CreateAudioPlayer");
+	result = (*data->playerObject)->Realize(data->playerObject, SL_BOOLEAN_FALSE);
+	CHECK_SL_RESULT("player Realize");
+	result = (*data->playerObject)->GetInterface(data->playerObject, SL_IID_PLAY, &data->player);
+	CHECK_SL_RESULT("player GetInterface");
+	result = (*data->playerObject)->GetInterface(data->playerObject, SL_IID_ANDROIDSIMPLEBUFFERQUEUE,
+												&data->bufferQueue);
+	CHECK_SL_RESULT("buffer queue GetInterface");
+	result = (*data->bufferQueue)->RegisterCallback(data->bufferQueue, OPENSLES_BufferQueueCallback, this);
+	CHECK_SL_RESULT("RegisterCallback");
+
+	/* Buffers hold one mixer period each, spec.samples is final at this point */
+	SDL_CalculateAudioSpec(&this->spec);
+	for( i = 0; i < OPENSLES_NUM_BUFFERS; i++ )
+	{
+		data->buffers[i] = (Uint8 *) SDL_malloc(this->spec.size);
+		if( !data->buffers[i] )
+		{
+			OPENSLES_Close(this);
+			return 0;
+		}
+		SDL_memset(data->buffers[i], this->spec.silence, this->spec.size);
+	}
+	return 1;
+}
+
+#undef CHECK_SL_RESULT
+
+static void OPENSLES_SetPaused(_THIS, int paused)
+{
+	struct OpenSLESData *data = (struct OpenSLESData *) this->hidden->backendData;
+	SLuint32 state;
+	int i;
+	if( !data )
+		return;
+
+	if( paused )
+	{
+		(*data->player)->SetPlayState(data->player, SL_PLAYSTATE_PAUSED);
+		return;
+	}
+
+	/* The queue drains to empty only before the first start, prime it with silence then */
+	(*data->player)->GetPlayState(data->player, &state);
+	if( state == SL_PLAYSTATE_STOPPED )
+	{
+		for( i = 0; i < OPENSLES_NUM_BUFFERS; i++ )
+			(*data->bufferQueue)->Enqueue(data->bufferQueue, data->buffers[i], this->spec.size);
+	}
+	(*data->player)->SetPlayState(data->player, SL_PLAYSTATE_PLAYING);
+}
+
+const ANDROIDAUD_NativeBackend ANDROIDAUD_OpenSLESBackend = {
+	"OpenSL ES", OPENSLES_Open, OPENSLES_SetPaused, OPENSLES_Close
+};
@@ -4,7 +4,7 @@
 */
 #define SDL_PROC_UNUSED(ret,func,params)
 
-SDL_PROC_UNUSED(void, glAlphaFunc, (GLenum func, GLclampf ref))
+SDL_PROC(void, glAlphaFunc, (GLenum func, GLclampf ref))
 SDL_PROC(void, glClearColor,
          (GLclampf red, GLclampf green, GLclampf blue, GLclampf alpha))
 SDL_PROC_UNUSED(void, glClearDepthf, (GLclampf depth))
@@ -53,7 +53,7 @@ SDL_PROC_UNUSED(void, glRotatef,
                 (GLfloat angle, GLfloat x, GLfloat y, GLfloat z))
 SDL_PROC_UNUSED(void, glScalef, (GLfloat x, GLfloat y, GLfloat z))
 SDL_PROC(void, glTexEnvf, (GLenum target, GLenum pname, GLfloat param))
-SDL_PROC_UNUSED(void, glTexEnvfv,
+SDL_PROC(void, glTexEnvfv,
                 (GLenum target, GLenum pname, const GLfloat * params))
 SDL_PROC(void, glTexParameterf, (GLenum target, GLenum pname, GLfloat param))
 SDL_PROC_UNUSED(void, glTexParameterfv,
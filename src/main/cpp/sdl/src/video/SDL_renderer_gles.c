@@ -96,6 +96,14 @@ static int GLES_RenderFillRects(SDL_Renderer * renderer,
 static int GLES_RenderCopy(SDL_Renderer * renderer, SDL_Texture * texture,
                            const SDL_Rect * srcrect,
                            const SDL_Rect * dstrect);
+static int GLES_RenderCopyQuadAlpha(SDL_Renderer * renderer,
+                                    SDL_Texture * texture,
+                                    const SDL_Rect * srcrect,
+                                    const float *vertices, int test,
+                                    int value);
+static int GLES_RenderCopyQuad(SDL_Renderer * renderer, SDL_Texture * texture,
+                               const SDL_Rect * srcrect,
+                               const float *vertices);
 static void GLES_RenderPresent(SDL_Renderer * renderer);
 static void GLES_DestroyTexture(SDL_Renderer * renderer,
                                 SDL_Texture * texture);
@@ -254,6 +262,8 @@ GLES_CreateRenderer(SDL_Window * window, Uint32 flags)
     renderer->RenderDrawRects = GLES_RenderDrawRects;
     renderer->RenderFillRects = GLES_RenderFillRects;
     renderer->RenderCopy = GLES_RenderCopy;
+    renderer->RenderCopyQuad = GLES_RenderCopyQuad;
+    renderer->RenderCopyQuadAlpha = GLES_RenderCopyQuadAlpha;
     renderer->RenderPresent = GLES_RenderPresent;
     renderer->DestroyTexture = GLES_DestroyTexture;
     renderer->DestroyRenderer = GLES_DestroyRenderer;
@@ -830,15 +840,11 @@ GLES_RenderFillRects(SDL_Renderer * renderer, const SDL_Rect ** rects,
     return 0;
 }
 
-static int
-GLES_RenderCopy(SDL_Renderer * renderer, SDL_Texture * texture,
-                const SDL_Rect * srcrect, const SDL_Rect * dstrect)
+/* Uploads the dirty rects and binds the texture with its color, blending and filtering */
+static void
+GLES_BindTexture(GLES_RenderData * data, SDL_Texture * texture)
 {
-
-    GLES_RenderData *data = (GLES_RenderData *) renderer->driverdata;
     GLES_TextureData *texturedata = (GLES_TextureData *) texture->driverdata;
-    int minx, miny, maxx, maxy;
-    GLfloat minu, maxu, minv, maxv;
     int i;
     void *temp_buffer;          /* used for reformatting dirty rect pixels */
     void *temp_ptr;
@@ -917,6 +923,19 @@ GLES_RenderCopy(SDL_Renderer * renderer, SDL_Texture * texture,
                               GL_LINEAR);
         break;
     }
+}
+
+static int
+GLES_RenderCopy(SDL_Renderer * renderer, SDL_Texture * texture,
+                const SDL_Rect * srcrect, const SDL_Rect * dstrect)
+{
+
+    GLES_RenderData *data = (GLES_RenderData *) renderer->driverdata;
+    GLES_TextureData *texturedata = (GLES_TextureData *) texture->driverdata;
+    int minx, miny, maxx, maxy;
+    GLfloat minu, maxu, minv, maxv;
+
+    GLES_BindTexture(data, texture);
 
     if (data->GL_OES_draw_texture_supported && data->useDrawTexture) {
         /* this code is a little funny because the viewport is upside down vs SDL's coordinate system */
@@ -991,6 +1010,90 @@ GLES_RenderCopy(SDL_Renderer * renderer, SDL_Texture * texture,
     return 0;
 }
 
+/* Draws the bound texture, the texture environment and blending are set up by the caller */
+static void
+GLES_DrawQuad(GLES_RenderData * data, SDL_Texture * texture,
+              const SDL_Rect * srcrect, const float *vertices)
+{
+    GLES_TextureData *texturedata = (GLES_TextureData *) texture->driverdata;
+    GLfloat minu, maxu, minv, maxv;
+    GLfloat texCoords[8];
+
+    minu = (GLfloat) srcrect->x / texture->w * texturedata->texw;
+    maxu = (GLfloat) (srcrect->x + srcrect->w) / texture->w * texturedata->texw;
+    minv = (GLfloat) srcrect->y / texture->h * texturedata->texh;
+    maxv = (GLfloat) (srcrect->y + srcrect->h) / texture->h * texturedata->texh;
+
+    texCoords[0] = minu;
+    texCoords[1] = minv;
+    texCoords[2] = maxu;
+    texCoords[3] = minv;
+    texCoords[4] = minu;
+    texCoords[5] = maxv;
+    texCoords[6] = maxu;
+    texCoords[7] = maxv;
+
+    data->glVertexPointer(2, GL_FLOAT, 0, vertices);
+    data->glEnableClientState(GL_VERTEX_ARRAY);
+    data->glTexCoordPointer(2, GL_FLOAT, 0, texCoords);
+    data->glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+    data->glDrawArrays(GL_TRIANGLE_STRIP, 0, 4);
+    data->glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+    data->glDisableClientState(GL_VERTEX_ARRAY);
+
+    data->glDisable(GL_TEXTURE_2D);
+}
+
+static int
+GLES_RenderCopyQuad(SDL_Renderer * renderer, SDL_Texture * texture,
+                    const SDL_Rect * srcrect, const float *vertices)
+{
+    GLES_RenderData *data = (GLES_RenderData *) renderer->driverdata;
+
+    GLES_BindTexture(data, texture);
+    GLES_DrawQuad(data, texture, srcrect, vertices);
+
+    return 0;
+}
+
+static int
+GLES_RenderCopyQuadAlpha(SDL_Renderer * renderer, SDL_Texture * texture,
+                         const SDL_Rect * srcrect, const float *vertices,
+                         int test, int value)
+{
+    GLES_RenderData *data = (GLES_RenderData *) renderer->driverdata;
+    GLfloat color[4] = { 0.0f, 0.0f, 0.0f, 0.0f };
+
+    GLES_BindTexture(data, texture);
+
+    if (test) {
+        /* the alpha test drops the texels, what passes is copied as is */
+        GLES_SetBlendMode(data, SDL_BLENDMODE_NONE, 0);
+        data->glEnable(GL_ALPHA_TEST);
+        data->glAlphaFunc(GL_GREATER, (GLfloat) value * inv255f);
+        GLES_DrawQuad(data, texture, srcrect, vertices);
+        data->glDisable(GL_ALPHA_TEST);
+        return 0;
+    }
+
+    /* one combiner stage: rgb = texture, alpha = texture +/- constant */
+    GLES_SetBlendMode(data, SDL_BLENDMODE_BLEND, 0);
+    color[3] = (GLfloat) (value < 0 ? -value : value) * inv255f;
+    data->glTexEnvf(GL_TEXTURE_ENV, GL_TEXTURE_ENV_MODE, GL_COMBINE);
+    data->glTexEnvf(GL_TEXTURE_ENV, GL_COMBINE_RGB, GL_REPLACE);
+    data->glTexEnvf(GL_TEXTURE_ENV, GL_SRC0_RGB, GL_TEXTURE);
+    data->glTexEnvf(GL_TEXTURE_ENV, GL_COMBINE_ALPHA,
+                    value < 0 ? GL_SUBTRACT : GL_ADD);
+    data->glTexEnvf(GL_TEXTURE_ENV, GL_SRC0_ALPHA, GL_TEXTURE);
+    data->glTexEnvf(GL_TEXTURE_ENV, GL_SRC1_ALPHA, GL_CONSTANT);
+    data->glTexEnvfv(GL_TEXTURE_ENV, GL_TEXTURE_ENV_COLOR, color);
+    GLES_DrawQuad(data, texture, srcrect, vertices);
+    /* SDL_BLENDMODE_BLEND is cached as GL_MODULATE */
+    data->glTexEnvf(GL_TEXTURE_ENV, GL_TEXTURE_ENV_MODE, GL_MODULATE);
+
+    return 0;
+}
+
 static void
 GLES_RenderPresent(SDL_Renderer * renderer)
 {
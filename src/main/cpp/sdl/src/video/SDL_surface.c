@@ -746,8 +746,15 @@ SDL_LockSurface(SDL_Surface * surface)
         }
     }
 
-    /* Increment the surface lock count, for recursive locks */
+    /* Increment the surface lock count, for recursive locks.
+       The count is changed atomically so that several threads can lock a
+       software surface to work on separate parts of it, RLE surfaces still
+       have to be locked by one thread at a time. */
+#if defined(__GNUC__)
+    __sync_add_and_fetch(&surface->locked, 1);
+#else
     ++surface->locked;
+#endif
 
     /* Ready to go.. */
     return (0);
@@ -760,9 +767,18 @@ void
 SDL_UnlockSurface(SDL_Surface * surface)
 {
     /* Only perform an unlock if we are locked */
-    if (!surface->locked || (--surface->locked > 0)) {
+    if (!surface->locked) {
+        return;
+    }
+#if defined(__GNUC__)
+    if (__sync_sub_and_fetch(&surface->locked, 1) > 0) {
         return;
     }
+#else
+    if (--surface->locked > 0) {
+        return;
+    }
+#endif
 
     /* Update RLE encoded surface with new data */
     if ((surface->flags & SDL_RLEACCEL) == SDL_RLEACCEL) {
@@ -103,6 +103,11 @@ struct SDL_Renderer
                               int w, int h);
     int (*RenderCopy) (SDL_Renderer * renderer, SDL_Texture * texture,
                        const SDL_Rect * srcrect, const SDL_Rect * dstrect);
+    int (*RenderCopyQuad) (SDL_Renderer * renderer, SDL_Texture * texture,
+                           const SDL_Rect * srcrect, const float *vertices);
+    int (*RenderCopyQuadAlpha) (SDL_Renderer * renderer, SDL_Texture * texture,
+                                const SDL_Rect * srcrect, const float *vertices,
+                                int test, int value);
     int (*RenderReadPixels) (SDL_Renderer * renderer, const SDL_Rect * rect,
                              Uint32 format, void * pixels, int pitch);
     int (*RenderWritePixels) (SDL_Renderer * renderer, const SDL_Rect * rect,
@@ -2618,6 +2618,121 @@ SDL_RenderCopy(SDL_Texture * texture, const SDL_Rect * srcrect,
                                 &real_dstrect);
 }
 
+/* Maps corners from window to display coordinates, real_srcrect is left empty if nothing is drawn */
+static SDL_Renderer *
+SDL_PrepareQuad(SDL_Texture * texture, const SDL_Rect * srcrect,
+                const float *corners, SDL_Rect * real_srcrect, float *vertices)
+{
+    SDL_Renderer *renderer;
+    SDL_Window *window;
+    float scale_x, scale_y;
+    int i;
+
+    renderer = SDL_GetCurrentRenderer(SDL_TRUE);
+    if (!renderer) {
+        return NULL;
+    }
+    if (texture->renderer != renderer) {
+        SDL_SetError("Texture was not created with this renderer");
+        return NULL;
+    }
+    window = renderer->window;
+
+    real_srcrect->x = 0;
+    real_srcrect->y = 0;
+    real_srcrect->w = texture->w;
+    real_srcrect->h = texture->h;
+    if (srcrect) {
+        if (!SDL_IntersectRect(srcrect, real_srcrect, real_srcrect)) {
+            real_srcrect->w = real_srcrect->h = 0;
+            return renderer;
+        }
+    }
+
+    /* the window is stretched over the whole display, see SDL_RenderCopy() */
+    scale_x = (float) SDL_CurrentDisplay->current_mode.w / window->w;
+    scale_y = (float) SDL_CurrentDisplay->current_mode.h / window->h;
+    for (i = 0; i < 4; ++i) {
+        vertices[i * 2] = corners[i * 2] * scale_x;
+        vertices[i * 2 + 1] = corners[i * 2 + 1] * scale_y;
+    }
+
+    return renderer;
+}
+
+int
+SDL_RenderCopyQuad(SDL_Texture * texture, const SDL_Rect * srcrect,
+                   const float *corners)
+{
+    SDL_Renderer *renderer;
+    SDL_Rect real_srcrect;
+    float vertices[8];
+
+    CHECK_TEXTURE_MAGIC(texture, -1);
+
+    renderer = SDL_PrepareQuad(texture, srcrect, corners, &real_srcrect,
+                               vertices);
+    if (!renderer) {
+        return -1;
+    }
+    if (!renderer->RenderCopyQuad) {
+        SDL_Unsupported();
+        return -1;
+    }
+    if (real_srcrect.w == 0 || real_srcrect.h == 0) {
+        return 0;
+    }
+
+    return renderer->RenderCopyQuad(renderer, texture, &real_srcrect,
+                                    vertices);
+}
+
+static int
+SDL_RenderCopyQuadAlpha(SDL_Texture * texture, const SDL_Rect * srcrect,
+                        const float *corners, int test, int value)
+{
+    SDL_Renderer *renderer;
+    SDL_Rect real_srcrect;
+    float vertices[8];
+
+    CHECK_TEXTURE_MAGIC(texture, -1);
+
+    renderer = SDL_PrepareQuad(texture, srcrect, corners, &real_srcrect,
+                               vertices);
+    if (!renderer) {
+        return -1;
+    }
+    if (!renderer->RenderCopyQuadAlpha) {
+        SDL_Unsupported();
+        return -1;
+    }
+    if (real_srcrect.w == 0 || real_srcrect.h == 0) {
+        return 0;
+    }
+
+    return renderer->RenderCopyQuadAlpha(renderer, texture, &real_srcrect,
+                                         vertices, test, value);
+}
+
+int
+SDL_RenderCopyQuadAlphaTest(SDL_Texture * texture, const SDL_Rect * srcrect,
+                            const float *corners, Uint8 ref)
+{
+    return SDL_RenderCopyQuadAlpha(texture, srcrect, corners, 1, ref);
+}
+
+int
+SDL_RenderCopyQuadAlphaOffset(SDL_Texture * texture, const SDL_Rect * srcrect,
+                              const float *corners, int offset)
+{
+    if (offset < -255) {
+        offset = -255;
+    } else if (offset > 255) {
+        offset = 255;
+    }
+    return SDL_RenderCopyQuadAlpha(texture, srcrect, corners, 0, offset);
+}
+
 int
 SDL_RenderReadPixels(const SDL_Rect * rect, Uint32 format,
                      void * pixels, int pitch)
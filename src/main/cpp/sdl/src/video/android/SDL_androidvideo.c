@@ -24,10 +24,14 @@
 #include <android/log.h>
 #include <GLES/gl.h>
 #include <GLES/glext.h>
+#include <EGL/egl.h>
+#include <android/native_window_jni.h>
 #include <sys/time.h>
+#include <pthread.h>
 #include <time.h>
 #include <stdint.h>
 #include <math.h>
+#include <stdlib.h>
 #include <string.h> // for memset()
 
 #include "SDL_config.h"
@@ -67,6 +71,26 @@ static jclass JavaRendererClass = NULL;
 static jobject JavaRenderer = NULL;
 static jmethodID JavaSwapBuffers = NULL;
 
+// Native EGL mode, frames are swapped here and Java is only entered when it asked for it
+static int sUseNativeEgl = 0;
+static volatile int sJavaSwapRequested = 1;
+static EGLDisplay sEglDisplay = EGL_NO_DISPLAY;
+static EGLConfig sEglConfig = NULL;
+static EGLContext sEglContext = EGL_NO_CONTEXT;
+static EGLSurface sEglSurface = EGL_NO_SURFACE;
+static ANativeWindow *sNativeWindow = NULL;
+
+// Frame pacing, presents are aligned to the vsync Java reports from Choreographer. A present
+// asked for within an interval that already has one is kept pending until the next vsync
+static volatile int sFramePacing = 0;
+static volatile int sMinFrameIntervalNs = 0;
+static volatile int sVsyncCount = 0;
+static int64_t sVsyncTimeNs = 0;
+static int sPresentedVsync = -1;
+static int64_t sPresentedTimeNs = 0;
+static int sSwapPending = 0;
+static pthread_t sSwapThread;
+
 static void SdlGlRenderInit();
 
 /* ANDROID driver bootstrap functions */
@@ -190,8 +214,18 @@ void ANDROID_VideoQuit(_THIS)
 {
 }
 
+static int FramePacingHoldsSwap();
+static void PresentFrame();
+
 void ANDROID_PumpEvents(_THIS)
 {
+	/* The last frame of a burst was held back, show it once a swap would be allowed,
+	   so the frame rate cap holds for it as well */
+	if( sSwapPending && pthread_equal(pthread_self(), sSwapThread) )
+	{
+		if( !FramePacingHoldsSwap() )
+			PresentFrame();
+	}
 }
 
 static inline int CallJavaSwapBuffers()
@@ -199,11 +233,52 @@ static inline int CallJavaSwapBuffers()
 	return (*JavaEnv)->CallIntMethod( JavaEnv, JavaRenderer, JavaSwapBuffers );
 }
 
+static int FramePacingHoldsSwap()
+{
+	int vsync = sVsyncCount;
+	int64_t vsyncTimeNs;
+
+	/* Java has to see the swap to handle pause and surface changes */
+	if( !sFramePacing || (sUseNativeEgl && sJavaSwapRequested) || vsync == 0 )
+		return 0;
+	if( vsync == sPresentedVsync )
+		return 1;
+
+	/* Vsync timestamps jitter a little, allow a millisecond before applying the cap */
+	vsyncTimeNs = __atomic_load_n(&sVsyncTimeNs, __ATOMIC_ACQUIRE);
+	if( sMinFrameIntervalNs > 0 && vsyncTimeNs - sPresentedTimeNs < sMinFrameIntervalNs - 1000000 )
+		return 1;
+	return 0;
+}
+
 void ANDROID_GL_SwapBuffers(_THIS, SDL_Window * window)
 {
-	CallJavaSwapBuffers();
+	sSwapThread = pthread_self();
+
+	/* The whole screen is redrawn for every present, a held back frame is simply replaced */
+	if( FramePacingHoldsSwap() )
+	{
+		sSwapPending = 1;
+		return;
+	}
+	PresentFrame();
 };
 
+static void PresentFrame()
+{
+	sSwapPending = 0;
+	sPresentedVsync = sVsyncCount;
+	sPresentedTimeNs = __atomic_load_n(&sVsyncTimeNs, __ATOMIC_ACQUIRE);
+
+	/* Java handles pause, resize, surface loss and queued events, skip it unless it has any */
+	if( sUseNativeEgl && !__sync_bool_compare_and_swap(&sJavaSwapRequested, 1, 0) )
+	{
+		if( sEglSurface != EGL_NO_SURFACE && eglSwapBuffers(sEglDisplay, sEglSurface) )
+			return;
+	}
+	CallJavaSwapBuffers();
+}
+
 SDL_GLContext ANDROID_GL_CreateContext(_THIS, SDL_Window * window)
 {
 	return (SDL_GLContext)1;
@@ -233,6 +308,141 @@ JAVA_EXPORT_NAME(DemoRenderer_nativeResize) ( JNIEnv*  env, jobject  thiz, jint
     __android_log_print(ANDROID_LOG_INFO, "libSDL", "Physical screen resolution is %dx%d", w, h);
 }
 
+static void DestroyNativeEglSurface()
+{
+	if( sEglSurface != EGL_NO_SURFACE )
+	{
+		eglMakeCurrent(sEglDisplay, EGL_NO_SURFACE, EGL_NO_SURFACE, EGL_NO_CONTEXT);
+		eglDestroySurface(sEglDisplay, sEglSurface);
+		sEglSurface = EGL_NO_SURFACE;
+	}
+	if( sNativeWindow )
+	{
+		ANativeWindow_release(sNativeWindow);
+		sNativeWindow = NULL;
+	}
+}
+
+JNIEXPORT jboolean JNICALL
+JAVA_EXPORT_NAME(DemoRenderer_nativeEglStart) ( JNIEnv*  env, jobject  thiz )
+{
+	EGLConfig configs[32];
+	EGLint numConfigs = 0, i;
+	int closestDistance = 1000;
+	/* Same choice as the Java SimpleEGLConfigChooser: closest to RGB565 with a 16 bit depth buffer */
+	const EGLint attribs[] = {
+		EGL_RED_SIZE, 4, EGL_GREEN_SIZE, 4, EGL_BLUE_SIZE, 4,
+		EGL_DEPTH_SIZE, 16, EGL_NONE
+	};
+	const EGLint wanted[][2] = {
+		{ EGL_RED_SIZE, 5 }, { EGL_GREEN_SIZE, 6 }, { EGL_BLUE_SIZE, 5 },
+		{ EGL_ALPHA_SIZE, 0 }, { EGL_DEPTH_SIZE, 16 }, { EGL_STENCIL_SIZE, 0 }
+	};
+
+	sEglDisplay = eglGetDisplay(EGL_DEFAULT_DISPLAY);
+	if( sEglDisplay == EGL_NO_DISPLAY || !eglInitialize(sEglDisplay, NULL, NULL) )
+	{
+		__android_log_print(ANDROID_LOG_ERROR, "libSDL", "nativeEglStart: eglInitialize failed 0x%x", eglGetError());
+		return JNI_FALSE;
+	}
+
+	if( !eglChooseConfig(sEglDisplay, attribs, configs, 32, &numConfigs) || numConfigs <= 0 )
+	{
+		__android_log_print(ANDROID_LOG_ERROR, "libSDL", "nativeEglStart: no EGL config found");
+		return JNI_FALSE;
+	}
+	sEglConfig = configs[0];
+	for( i = 0; i < numConfigs; i++ )
+	{
+		int j, distance = 0;
+		for( j = 0; j < (int)(sizeof(wanted) / sizeof(wanted[0])); j++ )
+		{
+			EGLint value = 0;
+			eglGetConfigAttrib(sEglDisplay, configs[i], wanted[j][0], &value);
+			distance += abs(value - wanted[j][1]);
+		}
+		if( distance < closestDistance )
+		{
+			closestDistance = distance;
+			sEglConfig = configs[i];
+		}
+	}
+
+	sEglContext = eglCreateContext(sEglDisplay, sEglConfig, EGL_NO_CONTEXT, NULL);
+	if( sEglContext == EGL_NO_CONTEXT )
+	{
+		__android_log_print(ANDROID_LOG_ERROR, "libSDL", "nativeEglStart: eglCreateContext failed 0x%x", eglGetError());
+		return JNI_FALSE;
+	}
+	sUseNativeEgl = 1;
+	return JNI_TRUE;
+}
+
+JNIEXPORT jboolean JNICALL
+JAVA_EXPORT_NAME(DemoRenderer_nativeEglCreateSurface) ( JNIEnv*  env, jobject  thiz, jobject surface )
+{
+	DestroyNativeEglSurface();
+
+	sNativeWindow = ANativeWindow_fromSurface(env, surface);
+	if( !sNativeWindow )
+		return JNI_FALSE;
+
+	sEglSurface = eglCreateWindowSurface(sEglDisplay, sEglConfig, sNativeWindow, NULL);
+	if( sEglSurface == EGL_NO_SURFACE )
+	{
+		__android_log_print(ANDROID_LOG_ERROR, "libSDL", "nativeEglCreateSurface: eglCreateWindowSurface failed 0x%x", eglGetError());
+		return JNI_FALSE;
+	}
+	return eglMakeCurrent(sEglDisplay, sEglSurface, sEglSurface, sEglContext) ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT jboolean JNICALL
+JAVA_EXPORT_NAME(DemoRenderer_nativeEglSwap) ( JNIEnv*  env, jobject  thiz )
+{
+	if( sEglSurface == EGL_NO_SURFACE )
+		return JNI_FALSE;
+	eglSwapBuffers(sEglDisplay, sEglSurface);
+	return eglGetError() != EGL_CONTEXT_LOST ? JNI_TRUE : JNI_FALSE;
+}
+
+JNIEXPORT void JNICALL
+JAVA_EXPORT_NAME(DemoRenderer_nativeEglFinish) ( JNIEnv*  env, jobject  thiz )
+{
+	DestroyNativeEglSurface();
+	if( sEglContext != EGL_NO_CONTEXT )
+	{
+		eglDestroyContext(sEglDisplay, sEglContext);
+		sEglContext = EGL_NO_CONTEXT;
+	}
+	if( sEglDisplay != EGL_NO_DISPLAY )
+	{
+		eglTerminate(sEglDisplay);
+		sEglDisplay = EGL_NO_DISPLAY;
+	}
+	/* Next swap has to recreate everything through Java */
+	__sync_lock_test_and_set(&sJavaSwapRequested, 1);
+}
+
+JNIEXPORT void JNICALL
+JAVA_EXPORT_NAME(DemoRenderer_nativeEglRequestJavaSwap) ( JNIEnv*  env, jobject  thiz )
+{
+	__sync_lock_test_and_set(&sJavaSwapRequested, 1);
+}
+
+JNIEXPORT void JNICALL
+JAVA_EXPORT_NAME(DemoRenderer_nativeSetFramePacing) ( JNIEnv*  env, jobject  thiz, jboolean enabled, jint maxFps )
+{
+	sMinFrameIntervalNs = maxFps > 0 ? 1000000000 / maxFps : 0;
+	sFramePacing = enabled ? 1 : 0;
+}
+
+JNIEXPORT void JNICALL
+JAVA_EXPORT_NAME(DemoRenderer_nativeOnVsync) ( JNIEnv*  env, jobject  thiz, jlong frameTimeNanos )
+{
+	__atomic_store_n(&sVsyncTimeNs, (int64_t) frameTimeNanos, __ATOMIC_RELEASE);
+	__sync_fetch_and_add(&sVsyncCount, 1);
+}
+
 /* Call to finalize the graphics state */
 JNIEXPORT void JNICALL 
 JAVA_EXPORT_NAME(DemoRenderer_nativeDone) ( JNIEnv*  env, jobject  thiz )
@@ -1,37 +1,145 @@
 package com.onscripter;
 
+import android.annotation.TargetApi;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
+import android.os.Build;
 
 import androidx.annotation.Keep;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 
 class AudioThread {
 
     private AudioTrack mAudio;
     private byte[] mAudioBuffer;
+    private ByteBuffer mDirectBuffer;
+    private final boolean mUseDirectBuffer;
+    private final boolean mUseNativeOutput;
+    private final boolean mUseAdaptiveBuffer;
+
+    // Pause state shared between the UI thread and the SDL mixer thread
+    private final ReentrantLock mStateLock = new ReentrantLock();
+    private final Condition mResumed = mStateLock.newCondition();
+    private boolean mPaused;
+    private long mResumeTimeNs;
+    private volatile long mResumeLatencyNs = -1;
+
+    // Adaptive buffer sizing, only touched by the SDL mixer thread except for the stats
+    private static final int ADAPTIVE_CAPACITY_PERIODS = 4;
+    private static final int ADAPTIVE_SHRINK_AFTER_PERIODS = 500;
+    private int mPeriodFrames;
+    private int mMinBufferFrames;
+    private int mLastUnderrunCount;
+    private int mStablePeriods;
+    private volatile int mBufferSizeFrames;
+    private volatile long mLastWriteTimeNs;
+    private volatile long mTotalWriteTimeNs;
+    private volatile long mWriteCount;
 
-    public AudioThread()
+    public AudioThread(boolean useDirectBuffer, boolean useNativeOutput, boolean useAdaptiveBuffer)
     {
         mAudio = null;
         mAudioBuffer = null;
+        mDirectBuffer = null;
+
+        // Writing a ByteBuffer with WRITE_BLOCKING is only available from Lollipop
+        mUseDirectBuffer = useDirectBuffer && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        mUseNativeOutput = useNativeOutput;
+
+        // Underrun count and runtime buffer resizing are only available from Nougat
+        mUseAdaptiveBuffer = useAdaptiveBuffer && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
         nativeAudioInitJavaCallbacks();
+
+        // SDL opens AAudio/OpenSL ES itself and falls back to the AudioTrack here when neither
+        // can play the mixer format and rate, so pause and resume go to both
+        nativeAudioUseNativeOutput(useNativeOutput);
     }
 
     /* Called from SDL_androidaudio.c */
     @Keep
     int fillBuffer()
     {
-        while (mAudio.getPlayState() == AudioTrack.PLAYSTATE_PAUSED) {
-            try{
-                Thread.sleep(500);
-            } catch(Exception ignored){}
-        };
-        mAudio.write( mAudioBuffer, 0, mAudioBuffer.length );
+        long resumeTimeNs = 0;
+        mStateLock.lock();
+        try {
+            // Park the mixer thread until onResume() signals, no polling while in background
+            while (mPaused) {
+                mResumed.awaitUninterruptibly();
+            }
+            resumeTimeNs = mResumeTimeNs;
+            mResumeTimeNs = 0;
+        } finally {
+            mStateLock.unlock();
+        }
+
+        final long writeStartNs = System.nanoTime();
+        if (mDirectBuffer != null) {
+            writeDirectBuffer();
+        } else {
+            mAudio.write( mAudioBuffer, 0, mAudioBuffer.length );
+        }
+        final long writeEndNs = System.nanoTime();
+        if (resumeTimeNs != 0) {
+            mResumeLatencyNs = writeEndNs - resumeTimeNs;
+        }
+        mLastWriteTimeNs = writeEndNs - writeStartNs;
+        mTotalWriteTimeNs += mLastWriteTimeNs;
+        mWriteCount++;
+
+        if (mUseAdaptiveBuffer) {
+            adaptBufferSize();
+        }
         return 1;
     }
 
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void writeDirectBuffer() {
+        // The mixer wrote in place, only the position needs to be reset
+        mDirectBuffer.position(0);
+        mAudio.write( mDirectBuffer, mDirectBuffer.capacity(), AudioTrack.WRITE_BLOCKING );
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private void startAdaptiveBuffer() {
+        final int result = mAudio.setBufferSizeInFrames(mPeriodFrames);
+        if (result > 0) {
+            mBufferSizeFrames = result;
+        }
+        mLastUnderrunCount = mAudio.getUnderrunCount();
+    }
+
+    /**
+     * Grow the AudioTrack buffer by one period whenever an underrun happens and give back half
+     * a period after a long run without any, never going below the size it started with
+     */
+    @TargetApi(Build.VERSION_CODES.N)
+    private void adaptBufferSize() {
+        final int underruns = mAudio.getUnderrunCount();
+        int size = mBufferSizeFrames;
+        if (underruns > mLastUnderrunCount) {
+            size += mPeriodFrames;
+            mStablePeriods = 0;
+        } else if (++mStablePeriods >= ADAPTIVE_SHRINK_AFTER_PERIODS) {
+            size = Math.max(mMinBufferFrames, size - mPeriodFrames / 2);
+            mStablePeriods = 0;
+        }
+        mLastUnderrunCount = underruns;
+
+        if (size != mBufferSizeFrames) {
+            size = Math.min(size, mAudio.getBufferCapacityInFrames());
+            final int result = mAudio.setBufferSizeInFrames(size);
+            if (result > 0) {
+                mBufferSizeFrames = result;
+            }
+        }
+    }
+
     /* Called from SDL_androidaudio.c */
     @Keep
     int initAudio(int rate, int channels, int encoding, int bufSize)
@@ -47,17 +155,38 @@ class AudioThread {
                 bufSize = AudioTrack.getMinBufferSize( rate, channels, encoding );
             }
 
-            mAudioBuffer = new byte[bufSize];
+            if (mUseDirectBuffer) {
+                mDirectBuffer = ByteBuffer.allocateDirect(bufSize).order(ByteOrder.nativeOrder());
+            } else {
+                mAudioBuffer = new byte[bufSize];
+            }
+
+            final int frameSize = (channels == AudioFormat.CHANNEL_OUT_MONO ? 1 : 2)
+                    * (encoding == AudioFormat.ENCODING_PCM_16BIT ? 2 : 1);
+            mPeriodFrames = bufSize / frameSize;
+            mMinBufferFrames = mPeriodFrames;
+            mBufferSizeFrames = mPeriodFrames;
 
+            // Leave room for the buffer to grow, it starts at a single period either way
             mAudio = new AudioTrack(AudioManager.STREAM_MUSIC,
                     rate,
                     channels,
                     encoding,
-                    bufSize,
+                    mUseAdaptiveBuffer ? bufSize * ADAPTIVE_CAPACITY_PERIODS : bufSize,
                     AudioTrack.MODE_STREAM );
-            mAudio.play();
+            if (mUseAdaptiveBuffer) {
+                startAdaptiveBuffer();
+            }
+            mStateLock.lock();
+            try {
+                if (!mPaused) {
+                    mAudio.play();
+                }
+            } finally {
+                mStateLock.unlock();
+            }
         }
-        return mAudioBuffer.length;
+        return mDirectBuffer != null ? mDirectBuffer.capacity() : mAudioBuffer.length;
     }
 
     /* Called from SDL_androidaudio.c */
@@ -67,6 +196,13 @@ class AudioThread {
         return mAudioBuffer;
     }
 
+    /* Called from SDL_androidaudio.c, null when not using the direct buffer mode */
+    @Keep
+    public ByteBuffer getDirectBuffer()
+    {
+        return mDirectBuffer;
+    }
+
     /* Called from SDL_androidaudio.c */
     @Keep
     public int deinitAudio()
@@ -78,6 +214,7 @@ class AudioThread {
             mAudio = null;
         }
         mAudioBuffer = null;
+        mDirectBuffer = null;
         return 1;
     }
 
@@ -91,17 +228,72 @@ class AudioThread {
     }
 
     public void onPause() {
-        if( mAudio != null ) {
-            mAudio.pause();
+        if (mUseNativeOutput) {
+            nativeAudioSetPaused(true);
+        }
+        mStateLock.lock();
+        try {
+            mPaused = true;
+            mResumeTimeNs = 0;
+            if( mAudio != null ) {
+                mAudio.pause();
+            }
+        } finally {
+            mStateLock.unlock();
         }
     }
 
     public void onResume() {
-        if( mAudio != null ) {
-            mAudio.play();
+        if (mUseNativeOutput) {
+            nativeAudioSetPaused(false);
+        }
+        mStateLock.lock();
+        try {
+            if (!mPaused) {
+                return;
+            }
+            mPaused = false;
+            if( mAudio != null ) {
+                mAudio.play();
+                mResumeTimeNs = System.nanoTime();
+            }
+            mResumed.signalAll();
+        } finally {
+            mStateLock.unlock();
         }
     }
 
+    /**
+     * Time between the last onResume() and the first buffer being written to AudioTrack
+     * @return latency in nanoseconds or -1 if audio has not been resumed yet
+     */
+    public long getResumeLatencyNs() {
+        return mResumeLatencyNs;
+    }
+
+    /**
+     * Get a snapshot of the AudioTrack playback statistics
+     * @return stats or null when audio is not playing through AudioTrack
+     */
+    ONScripterView.AudioStats getStats() {
+        final AudioTrack audio = mAudio;
+        if (audio == null) {
+            return null;
+        }
+        final long count = mWriteCount;
+        final int underruns = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                ? getUnderrunCount(audio) : -1;
+        return new ONScripterView.AudioStats(underruns, mBufferSizeFrames, mLastWriteTimeNs,
+                count > 0 ? mTotalWriteTimeNs / count : 0);
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private static int getUnderrunCount(AudioTrack audio) {
+        return audio.getUnderrunCount();
+    }
+
     private native int nativeAudioInitJavaCallbacks();
+    private native void nativeAudioUseNativeOutput(boolean enable);
+    private native void nativeAudioSetPaused(boolean paused);
 }
 
@@ -1,15 +1,19 @@
 package com.onscripter;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.graphics.Point;
 import android.media.AudioManager;
 import android.net.Uri;
+import android.opengl.GLES10;
 import android.os.Build;
 import android.provider.DocumentsContract;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
+import android.view.Surface;
 
 import androidx.annotation.Keep;
 import androidx.annotation.NonNull;
@@ -29,8 +33,12 @@ class DemoRenderer extends GLSurfaceView_SDL.Renderer {
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
-        // Set background to black when nothing is drawn
-        gl.glEnable(GL10.GL_DEPTH_TEST);
+        // Set background to black when nothing is drawn, no GL10 is given with native EGL
+        if (gl != null) {
+            gl.glEnable(GL10.GL_DEPTH_TEST);
+        } else {
+            GLES10.glEnable(GLES10.GL_DEPTH_TEST);
+        }
     }
 
     @Override
@@ -64,6 +72,38 @@ class DemoRenderer extends GLSurfaceView_SDL.Renderer {
         if (mBuilder.useHQAudio) {
             flags.add("--audio-hq");
         }
+        if (mBuilder.useMemoryMappedArchives) {
+            flags.add("--mmap-archives");
+        }
+        if (mBuilder.useArchiveHeaderCache) {
+            flags.add("--header-cache");
+        }
+        if (mBuilder.useScriptCache) {
+            flags.add("--script-cache");
+        }
+        if (mBuilder.useStreamingDecode) {
+            flags.add("--stream-archives");
+        }
+        if (mBuilder.useParallelCompositing) {
+            flags.add("--parallel-composite");
+        }
+        if (mBuilder.useGpuCompositing) {
+            flags.add("--gpu-composite");
+        }
+        if (mBuilder.useTextPrerendering) {
+            flags.add("--prerender-text");
+        }
+        if (mBuilder.runHeadless) {
+            flags.add("--headless");
+        }
+        if (mBuilder.imageCacheSizeMb > 0) {
+            flags.add("--image-cache-size");
+            flags.add(String.valueOf(mBuilder.imageCacheSizeMb));
+        }
+        if (mBuilder.prefetchSizeMb > 0) {
+            flags.add("--prefetch-size");
+            flags.add(String.valueOf(mBuilder.prefetchSizeMb));
+        }
 
         flags.add("-r");
         flags.add(mBuilder.gameFolder);
@@ -92,6 +132,31 @@ class DemoRenderer extends GLSurfaceView_SDL.Renderer {
         nativeDone();
     };
 
+    @Override
+    protected boolean startNativeEgl() {
+        return nativeEglStart();
+    }
+
+    @Override
+    protected boolean createNativeEglSurface(Surface surface) {
+        return nativeEglCreateSurface(surface);
+    }
+
+    @Override
+    protected boolean swapNativeEgl() {
+        return nativeEglSwap();
+    }
+
+    @Override
+    protected void finishNativeEgl() {
+        nativeEglFinish();
+    }
+
+    @Override
+    protected void requestJavaSwap() {
+        nativeEglRequestJavaSwap();
+    }
+
     Point getScaledDimensions(int containerWidth, int containerHeight) {
         final Point size = new Point(containerWidth, containerHeight);
         int gameWidth = nativeGetWidth();
@@ -115,6 +180,13 @@ class DemoRenderer extends GLSurfaceView_SDL.Renderer {
     private native void nativeInit(String path, String[] arg);
     private native void nativeResize(int w, int h);
     private native void nativeDone();
+    private native boolean nativeEglStart();
+    private native boolean nativeEglCreateSurface(Surface surface);
+    private native boolean nativeEglSwap();
+    private native void nativeEglFinish();
+    private native void nativeEglRequestJavaSwap();
+    native void nativeSetFramePacing(boolean enabled, int maxFps);
+    native void nativeOnVsync(long frameTimeNanos);
     native int nativeGetWidth();
     native int nativeGetHeight();
 
@@ -129,9 +201,16 @@ class DemoGLSurfaceView extends GLSurfaceView_SDL {
         super(builder.context);
         nativeInitJavaCallbacks();
         mRenderer = new DemoRenderer(builder);
+        setNativeEglEnabled(builder.useNativeEgl);
         setRenderer(mRenderer);
         mExitted = false;
         mRenderer.doNativeInit(true);
+
+        if (builder.useFramePacing && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mFrameRateCap = builder.frameRateCap;
+            mVsyncCallback = new VsyncCallback();
+            startFramePacing();
+        }
     }
 
     @Override
@@ -206,6 +285,9 @@ class DemoGLSurfaceView extends GLSurfaceView_SDL {
 
         // Some games require saving the gloval again when going to overview to save last file
         queueEvent(mSaveGameSettingsRunnable);
+
+        // Native code has to reach Java on its next swap to pause, which vsync no longer drives
+        stopFramePacing();
         super.onPause();
         surfaceDestroyed(this.getHolder());
     }
@@ -213,9 +295,24 @@ class DemoGLSurfaceView extends GLSurfaceView_SDL {
     @Override
     public void onResume() {
         super.onResume();
+        startFramePacing();
         triggerKeyEvent(0, 3); // send SDL_ACTIVEEVENT
     }
 
+    private void startFramePacing() {
+        if (mVsyncCallback != null) {
+            mRenderer.nativeSetFramePacing(true, mFrameRateCap);
+            mVsyncCallback.start();
+        }
+    }
+
+    private void stopFramePacing() {
+        if (mVsyncCallback != null) {
+            mVsyncCallback.stop();
+            mRenderer.nativeSetFramePacing(false, 0);
+        }
+    }
+
     protected void triggerKeyEvent(int keyCode, int down) {
         if (!mExitted) {
             nativeKey(keyCode, down);
@@ -233,8 +330,40 @@ class DemoGLSurfaceView extends GLSurfaceView_SDL {
         }
     };
 
+    /**
+     * Passes every display vsync to native code, which presents at most once per vsync
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class VsyncCallback implements Choreographer.FrameCallback {
+        private boolean mRunning;
+
+        void start() {
+            if (!mRunning) {
+                mRunning = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        void stop() {
+            if (mRunning) {
+                mRunning = false;
+                Choreographer.getInstance().removeFrameCallback(this);
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mRunning && !mExitted) {
+                mRenderer.nativeOnVsync(frameTimeNanos);
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+    }
+
     private Point mLastGameSize;
     private boolean mExitted;
+    private VsyncCallback mVsyncCallback;
+    private int mFrameRateCap;
 
     DemoRenderer mRenderer;
 
@@ -38,6 +38,7 @@ import android.opengl.GLSurfaceView;
 import android.os.Handler;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Surface;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
@@ -288,6 +289,20 @@ public class GLSurfaceView_SDL extends SurfaceView implements SurfaceHolder.Call
         mGLThread.start();
     }
 
+    /**
+     * Let the renderer own the EGL display, context and surface in native code. Java is then only
+     * entered to swap when the surface or the view state changes, see
+     * {@link Renderer#requestJavaSwap()}. Must be called before {@link #setRenderer(Renderer)}.
+     * @param enabled true to use the renderer's native EGL hooks
+     */
+    public void setNativeEglEnabled(boolean enabled) {
+        if (mGLThread != null) {
+            throw new IllegalStateException(
+                    "setNativeEglEnabled must be called before setRenderer.");
+        }
+        mNativeEgl = enabled;
+    }
+
     /**
      * Install a custom EGLConfigChooser.
      * <p>If this method is
@@ -600,6 +615,44 @@ public class GLSurfaceView_SDL extends SurfaceView implements SurfaceHolder.Call
             mSwapBuffersCallback = c;
         }
 
+        /**
+         * Native EGL mode only: initialize the display and create the context.
+         * @return false if EGL could not be initialized
+         */
+        protected boolean startNativeEgl() {
+            return false;
+        }
+
+        /**
+         * Native EGL mode only: create the window surface and make the context current.
+         * @param surface surface of this view
+         * @return false if the surface could not be created
+         */
+        protected boolean createNativeEglSurface(Surface surface) {
+            return false;
+        }
+
+        /**
+         * Native EGL mode only: swap the native surface.
+         * @return false if the context has been lost
+         */
+        protected boolean swapNativeEgl() {
+            return false;
+        }
+
+        /**
+         * Native EGL mode only: destroy the surface, context and display.
+         */
+        protected void finishNativeEgl() {
+        }
+
+        /**
+         * Native EGL mode only: the next swap from native code has to go through
+         * {@link #SwapBuffers()} because the view state changed. Called from any thread.
+         */
+        protected void requestJavaSwap() {
+        }
+
         private SwapBuffersCallback mSwapBuffersCallback = null;
     }
 
@@ -865,6 +918,42 @@ public class GLSurfaceView_SDL extends SurfaceView implements SurfaceHolder.Call
         EGLContext mEglContext;
     }
 
+    /**
+     * Delegates EGL to the renderer's native hooks, no GL interface is handed out in this mode.
+     */
+    private class NativeEglHelper extends EglHelper {
+        NativeEglHelper(Renderer renderer) {
+            mRenderer = renderer;
+        }
+
+        @Override
+        public void start() {
+            if (!mRenderer.startNativeEgl()) {
+                Log.e("GLSurfaceView", "Unable to start native EGL");
+            }
+        }
+
+        @Override
+        public GL createSurface(SurfaceHolder holder) {
+            if (!mRenderer.createNativeEglSurface(holder.getSurface())) {
+                Log.e("GLSurfaceView", "Unable to create native EGL surface");
+            }
+            return null;
+        }
+
+        @Override
+        public boolean swap() {
+            return mRenderer.swapNativeEgl();
+        }
+
+        @Override
+        public void finish() {
+            mRenderer.finishNativeEgl();
+        }
+
+        private final Renderer mRenderer;
+    }
+
     /**
      * A generic GL Thread. Takes care of initializing EGL and GL. Delegates
      * to a Renderer instance to do the actual drawing. Can be configured to
@@ -900,7 +989,7 @@ public class GLSurfaceView_SDL extends SurfaceView implements SurfaceHolder.Call
                 return;
             }
 
-            mEglHelper = new EglHelper();
+            mEglHelper = mNativeEgl ? new NativeEglHelper(mRenderer) : new EglHelper();
             // mEglHelper.start();
             mNeedStart = true;
             mSizeChanged = true;
@@ -1034,6 +1123,7 @@ public class GLSurfaceView_SDL extends SurfaceView implements SurfaceHolder.Call
                 mHasSurface = true;
                 notify();
             }
+            requestJavaSwap();
         }
 
         public void surfaceDestroyed() {
@@ -1041,6 +1131,7 @@ public class GLSurfaceView_SDL extends SurfaceView implements SurfaceHolder.Call
                 mHasSurface = false;
                 notify();
             }
+            requestJavaSwap();
         }
 
         public void onPause() {
@@ -1049,6 +1140,7 @@ public class GLSurfaceView_SDL extends SurfaceView implements SurfaceHolder.Call
                 mWidthBack = mWidth;
                 mHeightBack = mHeight;
             }
+            requestJavaSwap();
         }
 
         public void onResume()
@@ -1076,6 +1168,7 @@ public class GLSurfaceView_SDL extends SurfaceView implements SurfaceHolder.Call
                 mSizeChanged = true;
                 notify();
             }
+            requestJavaSwap();
         }
 
         public void requestExitAndWait() {
@@ -1085,6 +1178,7 @@ public class GLSurfaceView_SDL extends SurfaceView implements SurfaceHolder.Call
                 mDone = true;
                 notify();
             }
+            requestJavaSwap();
             try {
                 join();
             } catch (InterruptedException ex) {
@@ -1100,6 +1194,13 @@ public class GLSurfaceView_SDL extends SurfaceView implements SurfaceHolder.Call
             synchronized(this) {
                 mEventQueue.add(r);
             }
+            requestJavaSwap();
+        }
+
+        private void requestJavaSwap() {
+            if (mNativeEgl) {
+                mRenderer.requestJavaSwap();
+            }
         }
 
         private Runnable getEvent() {
@@ -1171,6 +1272,7 @@ public class GLSurfaceView_SDL extends SurfaceView implements SurfaceHolder.Call
 
     private static final Semaphore sEglSemaphore = new Semaphore(1);
     private boolean mSizeChanged = true;
+    private boolean mNativeEgl;
 
     private GLThread mGLThread;
     private EGLConfigChooser mEGLConfigChooser;
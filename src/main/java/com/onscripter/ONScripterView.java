@@ -57,6 +57,10 @@ public class ONScripterView extends DemoGLSurfaceView {
         void onGameFinished();
     }
 
+    public interface StartupTimingListener {
+        void onStartupTiming(@NonNull StartupTiming timing);
+    }
+
     private static class UpdateHandler extends Handler {
         private final WeakReference<ONScripterView> mThisView;
         UpdateHandler(ONScripterView activity) {
@@ -98,6 +102,8 @@ public class ONScripterView extends DemoGLSurfaceView {
     private native void nativeSetSentenceFontScale(double scale);
     private native void nativeLoadSaveFile(int number);
     private native int nativeGetDialogFontSize();
+    private native long[] nativeGetImageCacheStats();
+    private native void nativeSkipToNextChoice();
 
     /**
      * Constructor with parameters
@@ -106,7 +112,8 @@ public class ONScripterView extends DemoGLSurfaceView {
     public ONScripterView(@NonNull Builder builder) {
         super(builder);
 
-        mAudioThread = new AudioThread();
+        mAudioThread = new AudioThread(builder.useDirectAudioBuffer, builder.useLowLatencyAudio,
+                builder.useAdaptiveAudioBuffer);
         mMainHandler = new Handler(Looper.getMainLooper());
         sHandler = new UpdateHandler(this);
 
@@ -119,6 +126,7 @@ public class ONScripterView extends DemoGLSurfaceView {
     private static UpdateHandler sHandler;
 
     private ONScripterEventListener mListener;
+    private StartupTimingListener mStartupTimingListener;
     private boolean mGameReady;
     boolean mIsVideoPlaying = false;
     boolean mHasExit = false;
@@ -160,6 +168,15 @@ public class ONScripterView extends DemoGLSurfaceView {
         mListener = listener;
     }
 
+    /**
+     * Set the listener that receives how long each start-up phase took, it is called once
+     * after the first frame of the game is shown
+     * @param listener listener object
+     */
+    public void setStartupTimingListener(StartupTimingListener listener) {
+        mStartupTimingListener = listener;
+    }
+
     /**
      * Send native key press to the app
      * @param keyCode the key to simulate into the game
@@ -198,6 +215,34 @@ public class ONScripterView extends DemoGLSurfaceView {
         return mRenderer.nativeGetHeight();
     }
 
+    /**
+     * Get how long audio took to output its first samples after the last onResume()
+     * @return latency in milliseconds or -1 if audio has not resumed since starting
+     */
+    public long getAudioResumeLatencyMillis() {
+        final long latencyNs = mAudioThread.getResumeLatencyNs();
+        return latencyNs >= 0 ? latencyNs / 1000000 : -1;
+    }
+
+    /**
+     * Get the current audio playback statistics, useful to tune latency per device
+     * @return stats or null if audio has not started or does not go through AudioTrack
+     */
+    @Nullable
+    public AudioStats getAudioStats() {
+        return mAudioThread.getStats();
+    }
+
+    /**
+     * Get the counters of the decoded image cache
+     * @return stats or null if the game is not running or the cache is disabled
+     */
+    @Nullable
+    public ImageCacheStats getImageCacheStats() {
+        final long[] stats = !mHasExit ? nativeGetImageCacheStats() : null;
+        return stats != null ? new ImageCacheStats(stats[0], stats[1], stats[2], stats[3]) : null;
+    }
+
     /**
      * Set the font scaling where 1.0 is default 100% size
      * @param scaleFactor scale factor
@@ -214,6 +259,16 @@ public class ONScripterView extends DemoGLSurfaceView {
         }
     }
 
+    /**
+     * Run the script to the next choice without showing or playing anything on the way, as
+     * {@link Builder#runHeadless()} does at start. Ignored while a choice is on screen.
+     */
+    public void skipToNextChoice() {
+        if (!mHasExit) {
+            nativeSkipToNextChoice();
+        }
+    }
+
     /* Called from ONScripter.h */
     @Keep
     protected void playVideo(String filepath, boolean clickToSkip, boolean shouldLoop){
@@ -263,6 +318,22 @@ public class ONScripterView extends DemoGLSurfaceView {
         });
     }
 
+    /* Called from ONScripter.h */
+    @Keep
+    protected void receiveStartupTiming(int archiveIndexMs, int scriptLoadMs, int fontOpenMs,
+                                        int firstFrameMs) {
+        final StartupTiming timing = new StartupTiming(archiveIndexMs, scriptLoadMs, fontOpenMs,
+                firstFrameMs);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mStartupTimingListener != null) {
+                    mStartupTimingListener.onStartupTiming(timing);
+                }
+            }
+        });
+    }
+
     /* Called from ONScripter.h */
     @Keep
     protected void onLoadFile(String filename, String savePath) {
@@ -309,6 +380,142 @@ public class ONScripterView extends DemoGLSurfaceView {
         }
     }
 
+    /**
+     * Playback statistics of the AudioTrack output
+     */
+    public static class AudioStats {
+        private final int mUnderrunCount;
+        private final int mBufferSizeFrames;
+        private final long mLastWriteTimeNs;
+        private final long mAverageWriteTimeNs;
+
+        AudioStats(int underrunCount, int bufferSizeFrames, long lastWriteTimeNs,
+                   long averageWriteTimeNs) {
+            mUnderrunCount = underrunCount;
+            mBufferSizeFrames = bufferSizeFrames;
+            mLastWriteTimeNs = lastWriteTimeNs;
+            mAverageWriteTimeNs = averageWriteTimeNs;
+        }
+
+        /**
+         * @return underruns since audio started or -1 before Nougat
+         */
+        public int getUnderrunCount() {
+            return mUnderrunCount;
+        }
+
+        /**
+         * @return size of the AudioTrack buffer currently used, in frames
+         */
+        public int getBufferSizeFrames() {
+            return mBufferSizeFrames;
+        }
+
+        /**
+         * @return time spent writing the last period to AudioTrack in nanoseconds
+         */
+        public long getLastWriteTimeNs() {
+            return mLastWriteTimeNs;
+        }
+
+        /**
+         * @return average time spent writing a period to AudioTrack in nanoseconds
+         */
+        public long getAverageWriteTimeNs() {
+            return mAverageWriteTimeNs;
+        }
+    }
+
+    /**
+     * Time spent in each phase of starting the game
+     */
+    public static class StartupTiming {
+        private final int mArchiveIndexMs;
+        private final int mScriptLoadMs;
+        private final int mFontOpenMs;
+        private final int mFirstFrameMs;
+
+        StartupTiming(int archiveIndexMs, int scriptLoadMs, int fontOpenMs, int firstFrameMs) {
+            mArchiveIndexMs = archiveIndexMs;
+            mScriptLoadMs = scriptLoadMs;
+            mFontOpenMs = fontOpenMs;
+            mFirstFrameMs = firstFrameMs;
+        }
+
+        /**
+         * @return milliseconds spent opening the archives and reading their file lists
+         */
+        public int getArchiveIndexMs() {
+            return mArchiveIndexMs;
+        }
+
+        /**
+         * @return milliseconds spent reading and decoding the script
+         */
+        public int getScriptLoadMs() {
+            return mScriptLoadMs;
+        }
+
+        /**
+         * @return milliseconds spent opening the font
+         */
+        public int getFontOpenMs() {
+            return mFontOpenMs;
+        }
+
+        /**
+         * @return milliseconds from onReady() until the first frame was shown
+         */
+        public int getFirstFrameMs() {
+            return mFirstFrameMs;
+        }
+    }
+
+    /**
+     * Counters of the decoded image cache
+     */
+    public static class ImageCacheStats {
+        private final long mHitCount;
+        private final long mMissCount;
+        private final long mEvictionCount;
+        private final long mSizeBytes;
+
+        ImageCacheStats(long hitCount, long missCount, long evictionCount, long sizeBytes) {
+            mHitCount = hitCount;
+            mMissCount = missCount;
+            mEvictionCount = evictionCount;
+            mSizeBytes = sizeBytes;
+        }
+
+        /**
+         * @return images that were copied from the cache instead of decoded
+         */
+        public long getHitCount() {
+            return mHitCount;
+        }
+
+        /**
+         * @return images that had to be read from the archive and decoded
+         */
+        public long getMissCount() {
+            return mMissCount;
+        }
+
+        /**
+         * @return images dropped to stay within the cache size
+         */
+        public long getEvictionCount() {
+            return mEvictionCount;
+        }
+
+        /**
+         * @return memory currently held by the cache in bytes
+         */
+        public long getSizeBytes() {
+            return mSizeBytes;
+        }
+    }
+
     public static class Builder {
         @NonNull
         final Context context;
@@ -321,6 +528,22 @@ public class ONScripterView extends DemoGLSurfaceView {
         @Nullable
         String screenshotPath;
         boolean useHQAudio;
+        boolean useDirectAudioBuffer;
+        boolean useLowLatencyAudio;
+        boolean useAdaptiveAudioBuffer;
+        boolean useNativeEgl;
+        boolean useFramePacing;
+        int frameRateCap;
+        int imageCacheSizeMb;
+        int prefetchSizeMb;
+        boolean useMemoryMappedArchives;
+        boolean useArchiveHeaderCache;
+        boolean useScriptCache;
+        boolean useStreamingDecode;
+        boolean useParallelCompositing;
+        boolean useGpuCompositing;
+        boolean useTextPrerendering;
+        boolean runHeadless;
         boolean renderOutline;
         boolean readParentAssets;
 
@@ -346,6 +569,158 @@ public class ONScripterView extends DemoGLSurfaceView {
             return this;
         }
 
+        /**
+         * Mix audio directly into a native buffer that is handed to AudioTrack without copying.
+         * Only takes effect on Lollipop and newer, older devices use the byte array path
+         */
+        public Builder useDirectAudioBuffer() {
+            useDirectAudioBuffer = true;
+            return this;
+        }
+
+        /**
+         * Output audio through AAudio (or OpenSL ES before Android 8.0) from native code instead
+         * of AudioTrack, lowers the delay of sound effects. Overrides useDirectAudioBuffer()
+         */
+        public Builder useLowLatencyAudio() {
+            useLowLatencyAudio = true;
+            return this;
+        }
+
+        /**
+         * Start the AudioTrack buffer at its minimum size and grow it when underruns occur.
+         * Only takes effect on Nougat and newer, see getAudioStats() for the results
+         */
+        public Builder useAdaptiveAudioBuffer() {
+            useAdaptiveAudioBuffer = true;
+            return this;
+        }
+
+        /**
+         * Keep the EGL context and surface in native code so each frame is swapped without
+         * calling into Java, Java is only entered when the surface or view state changes
+         */
+        public Builder useNativeEgl() {
+            useNativeEgl = true;
+            return this;
+        }
+
+        /**
+         * Align presents to the display vsync through Choreographer, several flushes within one
+         * refresh interval are shown as a single frame. Only takes effect on Jelly Bean and newer
+         */
+        public Builder useFramePacing() {
+            useFramePacing = true;
+            return this;
+        }
+
+        /**
+         * Limit how many frames are presented per second to save battery, needs useFramePacing()
+         * @param fps maximum frame rate, 0 follows the display refresh rate
+         */
+        public Builder setFrameRateCap(int fps) {
+            frameRateCap = Math.max(fps, 0);
+            return this;
+        }
+
+        /**
+         * Keep decoded images in memory so sprites and backgrounds that are shown again skip
+         * reading and decoding, the least recently used images are dropped first
+         * @param megabytes memory the cache may use, 0 disables it
+         */
+        public Builder setImageCacheSize(int megabytes) {
+            imageCacheSizeMb = Math.max(megabytes, 0);
+            return this;
+        }
+
+        /**
+         * Read the images and sounds named a few lines ahead of the script on a background thread
+         * while the game waits for input, so they are already in memory when the script gets there
+         * @param megabytes memory the prefetched files may use, 0 disables prefetching
+         */
+        public Builder setPrefetchSize(int megabytes) {
+            prefetchSizeMb = Math.max(megabytes, 0);
+            return this;
+        }
+
+        /**
+         * Map the nsa/sar/ns2 archives into memory once instead of seeking and reading them for
+         * every file. Archives that do not fit in the address space are still read normally
+         */
+        public Builder useMemoryMappedArchives() {
+            useMemoryMappedArchives = true;
+            return this;
+        }
+
+        /**
+         * Store the file lists of the archives in the save folder, the next launch reads them from
+         * there instead of parsing every archive header. Archives whose size or modification time
+         * changed are parsed again
+         */
+        public Builder useArchiveHeaderCache() {
+            useArchiveHeaderCache = true;
+            return this;
+        }
+
+        /**
+         * Store the decoded script and its label table in the save folder, the next launch reads
+         * them from there instead of decrypting and scanning the script again. The cache is
+         * rebuilt when the size or modification time of a script file changed
+         */
+        public Builder useScriptCache() {
+            useScriptCache = true;
+            return this;
+        }
+
+        /**
+         * Decode music and large images from the archives while they are played or loaded instead
+         * of reading the whole decompressed file into memory first. SPB images are always read whole
+         */
+        public Builder useStreamingDecode() {
+            useStreamingDecode = true;
+            return this;
+        }
+
+        /**
+         * Draw the sprites and text of each screen update in horizontal bands on one thread per
+         * big core. The layers are drawn in the same order, so the result does not change
+         */
+        public Builder useParallelCompositing() {
+            useParallelCompositing = true;
+            return this;
+        }
+
+        /**
+         * Keep the sprites above the other layers of the screen as OpenGL ES textures, so moving,
+         * fading or rotating them does not blend pixels on the CPU. Nega, monochrome and
+         * subtractive sprites, and everything below them, are still drawn on the CPU.
+         * Shutter, curtain, scroll, crossfade and quake effects are drawn on the GPU as well
+         */
+        public Builder useGpuCompositing() {
+            useGpuCompositing = true;
+            return this;
+        }
+
+        /**
+         * Warm the glyph cache with the characters of the coming text on a worker thread while the
+         * game waits for a click or for the next character. Layout and blending the glyphs into
+         * the text window still happen as the text is shown, only the font rasterizing is saved
+         */
+        public Builder useTextPrerendering() {
+            useTextPrerendering = true;
+            return this;
+        }
+
+        /**
+         * Run the script in skip mode without drawing to the screen or playing audio until it
+         * waits for a choice, log the commands and labels executed per second, then show the
+         * game from that choice with sound as if it had been skipped to there
+         */
+        public Builder runHeadless() {
+            runHeadless = true;
+            return this;
+        }
+
         public Builder useRenderOutline() {
             renderOutline = true;
             return this;